@@ -0,0 +1,6 @@
+@echo off
+setlocal
+for %%? in ("%~dp0..") do set JLITE_HOME=%%~f?
+call "%JLITE_HOME%\cli\set-classpath.bat"
+
+java -cp %CLASSPATH% jlite.cli.Daemon %*
\ No newline at end of file
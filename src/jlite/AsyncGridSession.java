@@ -0,0 +1,199 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.glite.wsdl.types.lb.JobStatus;
+
+/**
+ * Asynchronous variant of the grid session.<br>
+ * Each method returns immediately with a future which is completed
+ * with the result of the corresponding {@link GridSession} method, or
+ * completed exceptionally with its GridAPIException.<br>
+ * Operations are executed by the session executor, which can be supplied
+ * by the application (see {@link GridSessionFactory#createAsync}).
+ * Status requests issued within a short time are coalesced into
+ * multi-job queries, so that thousands of status futures are served
+ * by a few LB requests.
+ *
+ * @author Oleg Sukhoroslov
+ * @see GridSession
+ */
+public interface AsyncGridSession {
+
+	/**
+	 * Returns the underlying grid session.
+	 *
+	 * @return grid session which executes the operations
+	 */
+	public GridSession getSession();
+
+	/**
+	 * Delegates a proxy certificate linked to the session
+	 * to WMProxy service.
+	 *
+	 * @see GridSession#delegateProxy(String)
+	 * @param delegationId delegation identifier
+	 * @return future completed when the proxy is delegated
+	 */
+	public CompletableFuture<Void> delegateProxy(String delegationId);
+
+	/**
+	 * Delegates a proxy certificate linked to the session
+	 * to the specified WMProxy service.
+	 *
+	 * @see GridSession#delegateProxy(String, String)
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param delegationId delegation identifier
+	 * @return future completed when the proxy is delegated
+	 */
+	public CompletableFuture<Void> delegateProxy(String wmProxyURL, String delegationId);
+
+	/**
+	 * Matches available grid resources to requirements specified in the job description.
+	 *
+	 * @see GridSession#listMatchedCE(String)
+	 * @param jdl job description in JDL format
+	 * @return future list of matched CEs
+	 */
+	public CompletableFuture<List<MatchedCE>> listMatchedCE(String jdl);
+
+	/**
+	 * Matches available grid resources to requirements specified in the job description.
+	 *
+	 * @see GridSession#listMatchedCE(String, String)
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param jdl job description in JDL format
+	 * @return future list of matched CEs
+	 */
+	public CompletableFuture<List<MatchedCE>> listMatchedCE(String wmProxyURL, String jdl);
+
+	/**
+	 * Submits a job via WMProxy service.
+	 *
+	 * @see GridSession#submitJob(String, String)
+	 * @param jdl job description in JDL format
+	 * @param inputDir search input files in the specified directory
+	 * @return future job identifier
+	 */
+	public CompletableFuture<String> submitJob(String jdl, String inputDir);
+
+	/**
+	 * Submits a job via WMProxy service.
+	 *
+	 * @see GridSession#submitJob(String, String, String)
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param jdl job description in JDL format
+	 * @param inputDir search input files in the specified directory
+	 * @return future job identifier
+	 */
+	public CompletableFuture<String> submitJob(String wmProxyURL, String jdl, String inputDir);
+
+	/**
+	 * Retrieves the status of a job.<br>
+	 * Requests for several jobs are coalesced into multi-job queries.
+	 *
+	 * @see GridSession#getJobStatus(String)
+	 * @param jobId job identifier
+	 * @return future job status
+	 */
+	public CompletableFuture<JobStatus> getJobStatus(String jobId);
+
+	/**
+	 * Retrieves the statuses of several jobs.
+	 *
+	 * @see GridSession#getJobStatuses(Collection)
+	 * @param jobIds job identifiers
+	 * @return future map <job-identifier, job-status> in the order of requested jobs
+	 */
+	public CompletableFuture<Map<String,JobStatus>> getJobStatuses(Collection<String> jobIds);
+
+	/**
+	 * Retrieves current job state of a job.
+	 *
+	 * @see GridSession#getJobState(String)
+	 * @param jobId job identifier
+	 * @return future job state
+	 */
+	public CompletableFuture<String> getJobState(String jobId);
+
+	/**
+	 * Retrieves the output of a job via GridFTP.
+	 *
+	 * @see GridSession#getJobOutput(String, String, boolean)
+	 * @param jobId job identifier
+	 * @param outputDir directory to store retrieved files
+	 * @param purge purge job output from the server after retrieval
+	 * @return future completed when the output is retrieved
+	 */
+	public CompletableFuture<Void> getJobOutput(String jobId, String outputDir, boolean purge);
+
+	/**
+	 * Retrieves the output of a job via GridFTP.
+	 *
+	 * @see GridSession#getJobOutput(String, String, String, boolean)
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param jobId job identifier
+	 * @param outputDir directory to store retrieved files
+	 * @param purge purge job output from the server after retrieval
+	 * @return future completed when the output is retrieved
+	 */
+	public CompletableFuture<Void> getJobOutput(String wmProxyURL, String jobId, String outputDir, boolean purge);
+
+	/**
+	 * Returns URIs of the job output files on the server.
+	 *
+	 * @see GridSession#listJobOutput(String, String)
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param jobId job identifier
+	 * @return future list of file URIs
+	 */
+	public CompletableFuture<List<String>> listJobOutput(String wmProxyURL, String jobId);
+
+	/**
+	 * Requests cancellation of a job.
+	 *
+	 * @see GridSession#cancelJob(String)
+	 * @param jobId job identifier
+	 * @return future completed when the cancellation is requested
+	 */
+	public CompletableFuture<Void> cancelJob(String jobId);
+
+	/**
+	 * Requests cancellation of a job.
+	 *
+	 * @see GridSession#cancelJob(String, String)
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param jobId job identifier
+	 * @return future completed when the cancellation is requested
+	 */
+	public CompletableFuture<Void> cancelJob(String wmProxyURL, String jobId);
+
+	/**
+	 * Closes the session and the underlying grid session.<br>
+	 * Status requests waiting for the next batch fail, 
+	 * operations in progress complete.
+	 *
+	 * @see GridSession#close()
+	 */
+	public void close();
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import jlite.util.ThrottledExecutor;
+
+import org.apache.log4j.Logger;
+import org.glite.wsdl.types.lb.JobStatus;
+
+/**
+ * Implementation of the asynchronous grid session on top of a grid session.<br>
+ * Blocking operations of the grid session are run by the executor.
+ * Status requests are collected for a short time (or until a batch
+ * is full) and then requested with a single getJobStatuses call,
+ * concurrent requests for the same job share a single future.
+ *
+ * @author Oleg Sukhoroslov
+ * @see AsyncGridSession
+ */
+class AsyncGridSessionImpl implements AsyncGridSession {
+
+	private static final Logger logger = Logger.getLogger(AsyncGridSessionImpl.class);
+
+	private GridSession session;
+	// executor supplied by the application (null if the default executor is used)
+	private Executor executor;
+	// default executor created by this session (null if supplied)
+	private ThrottledExecutor defaultExecutor;
+	private long coalesceDelay;
+	private int batchSize;
+
+	// status requests waiting for the next batch, map <job-identifier, future>
+	private Map<String,CompletableFuture<JobStatus>> pendingStatuses;
+	private final Object statusLock = new Object();
+	private Timer flushTimer;
+	private boolean flushScheduled = false;
+
+	/**
+	 * @param session grid session which executes the operations
+	 * @param config session configuration
+	 * @param executor executor of the operations (null for the default executor)
+	 */
+	AsyncGridSessionImpl(GridSession session, GridSessionConfig config, Executor executor) {
+		this.session = session;
+		if (executor == null) {
+			int maxOperations = Math.max(1, config.getMaxAsyncOperations());
+			defaultExecutor = new ThrottledExecutor("jlite-async", maxOperations, maxOperations);
+		}
+		this.executor = executor;
+		this.coalesceDelay = config.getStatusCoalesceDelay();
+		this.batchSize = Math.max(1, config.getLBQueryBatchSize());
+		this.pendingStatuses = new LinkedHashMap<String,CompletableFuture<JobStatus>>();
+		this.flushTimer = new Timer("jlite-async-status", true);
+	}
+
+	public GridSession getSession() {
+		return session;
+	}
+
+	public CompletableFuture<Void> delegateProxy(final String delegationId) {
+		return execute(new Callable<Void>() {
+			public Void call() throws Exception {
+				session.delegateProxy(delegationId);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> delegateProxy(final String wmProxyURL, final String delegationId) {
+		return execute(new Callable<Void>() {
+			public Void call() throws Exception {
+				session.delegateProxy(wmProxyURL, delegationId);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<List<MatchedCE>> listMatchedCE(final String jdl) {
+		return execute(new Callable<List<MatchedCE>>() {
+			public List<MatchedCE> call() throws Exception {
+				return session.listMatchedCE(jdl);
+			}
+		});
+	}
+
+	public CompletableFuture<List<MatchedCE>> listMatchedCE(final String wmProxyURL, final String jdl) {
+		return execute(new Callable<List<MatchedCE>>() {
+			public List<MatchedCE> call() throws Exception {
+				return session.listMatchedCE(wmProxyURL, jdl);
+			}
+		});
+	}
+
+	public CompletableFuture<String> submitJob(final String jdl, final String inputDir) {
+		return execute(new Callable<String>() {
+			public String call() throws Exception {
+				return session.submitJob(jdl, inputDir);
+			}
+		});
+	}
+
+	public CompletableFuture<String> submitJob(final String wmProxyURL, final String jdl, final String inputDir) {
+		return execute(new Callable<String>() {
+			public String call() throws Exception {
+				return session.submitJob(wmProxyURL, jdl, inputDir);
+			}
+		});
+	}
+
+	public CompletableFuture<JobStatus> getJobStatus(String jobId) {
+		synchronized (statusLock) {
+			CompletableFuture<JobStatus> future = pendingStatuses.get(jobId);
+			if (future == null) {
+				future = new CompletableFuture<JobStatus>();
+				pendingStatuses.put(jobId, future);
+				if (pendingStatuses.size() >= batchSize) {
+					flushStatuses();
+				} else if (!flushScheduled) {
+					flushScheduled = true;
+					flushTimer.schedule(new TimerTask() {
+						public void run() {
+							synchronized (statusLock) {
+								flushScheduled = false;
+								flushStatuses();
+							}
+						}
+					}, coalesceDelay);
+				}
+			}
+			return future;
+		}
+	}
+
+	public CompletableFuture<Map<String,JobStatus>> getJobStatuses(Collection<String> jobIds) {
+		final List<String> ids = new ArrayList<String>(jobIds);
+		final List<CompletableFuture<JobStatus>> futures = new ArrayList<CompletableFuture<JobStatus>>();
+		for (String jobId : ids) {
+			futures.add(getJobStatus(jobId));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(new Function<Void,Map<String,JobStatus>>() {
+			public Map<String,JobStatus> apply(Void v) {
+				Map<String,JobStatus> statuses = new LinkedHashMap<String,JobStatus>();
+				for (int i=0; i<ids.size(); i++) {
+					statuses.put(ids.get(i), futures.get(i).join());
+				}
+				return statuses;
+			}
+		});
+	}
+
+	public CompletableFuture<String> getJobState(final String jobId) {
+		return execute(new Callable<String>() {
+			public String call() throws Exception {
+				return session.getJobState(jobId);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> getJobOutput(final String jobId, final String outputDir, final boolean purge) {
+		return execute(new Callable<Void>() {
+			public Void call() throws Exception {
+				session.getJobOutput(jobId, outputDir, purge);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> getJobOutput(final String wmProxyURL, final String jobId,
+			final String outputDir, final boolean purge) {
+		return execute(new Callable<Void>() {
+			public Void call() throws Exception {
+				session.getJobOutput(wmProxyURL, jobId, outputDir, purge);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<List<String>> listJobOutput(final String wmProxyURL, final String jobId) {
+		return execute(new Callable<List<String>>() {
+			public List<String> call() throws Exception {
+				return session.listJobOutput(wmProxyURL, jobId);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> cancelJob(final String jobId) {
+		return execute(new Callable<Void>() {
+			public Void call() throws Exception {
+				session.cancelJob(jobId);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> cancelJob(final String wmProxyURL, final String jobId) {
+		return execute(new Callable<Void>() {
+			public Void call() throws Exception {
+				session.cancelJob(wmProxyURL, jobId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Requests statuses of all pending jobs with a single call.<br>
+	 * Must be called while holding the status lock.
+	 */
+	private void flushStatuses() {
+		if (pendingStatuses.isEmpty()) {
+			return;
+		}
+		final Map<String,CompletableFuture<JobStatus>> batch = pendingStatuses;
+		pendingStatuses = new LinkedHashMap<String,CompletableFuture<JobStatus>>();
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					Map<String,JobStatus> statuses = session.getJobStatuses(batch.keySet());
+					for (Map.Entry<String,CompletableFuture<JobStatus>> entry : batch.entrySet()) {
+						entry.getValue().complete(statuses.get(entry.getKey()));
+					}
+				} catch (Throwable e) {
+					if (batch.size() == 1) {
+						batch.values().iterator().next().completeExceptionally(e);
+						return;
+					}
+					// a single failed job fails the whole batch, so request the jobs one by one
+					logger.debug("Batch status request failed, requesting " + batch.size()
+							+ " jobs one by one: " + e.getMessage());
+					for (final Map.Entry<String,CompletableFuture<JobStatus>> entry : batch.entrySet()) {
+						execute(new Callable<JobStatus>() {
+							public JobStatus call() throws Exception {
+								return session.getJobStatus(entry.getKey());
+							}
+						}, entry.getValue());
+					}
+				}
+			}
+		};
+		execute(task, batch.values());
+	}
+
+	public void close() {
+		List<CompletableFuture<JobStatus>> pending;
+		synchronized (statusLock) {
+			flushTimer.cancel();
+			pending = new ArrayList<CompletableFuture<JobStatus>>(pendingStatuses.values());
+			pendingStatuses.clear();
+		}
+		for (CompletableFuture<JobStatus> future : pending) {
+			future.completeExceptionally(new IllegalStateException("Grid session is closed"));
+		}
+		if (defaultExecutor != null) {
+			defaultExecutor.shutdown();
+		}
+		session.close();
+	}
+
+	private <T> CompletableFuture<T> execute(Callable<T> operation) {
+		return execute(operation, new CompletableFuture<T>());
+	}
+
+	/**
+	 * Runs the operation by the executor and completes the future with its result.
+	 */
+	private <T> CompletableFuture<T> execute(final Callable<T> operation, final CompletableFuture<T> future) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					future.complete(operation.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			}
+		}, Collections.singletonList(future));
+		return future;
+	}
+
+	/**
+	 * Runs the task by the executor.<br>
+	 * The task completes the futures itself; if it is rejected by the executor, 
+	 * including the default executor shut down before the task has started, 
+	 * the futures are completed with the error.
+	 */
+	private void execute(final Runnable task, final Collection<? extends CompletableFuture<?>> futures) {
+		try {
+			if (executor != null) {
+				executor.execute(task);
+				return;
+			}
+			defaultExecutor.submit("", new Callable<Void>() {
+				public Void call() throws Exception {
+					task.run();
+					return null;
+				}
+			}).exceptionally(new Function<Throwable,Void>() {
+				public Void apply(Throwable e) {
+					failAll(futures, e);
+					return null;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			failAll(futures, e);
+		}
+	}
+
+	private static void failAll(Collection<? extends CompletableFuture<?>> futures, Throwable e) {
+		for (CompletableFuture<?> future : futures) {
+			future.completeExceptionally(e);
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of proxies delegated to WMProxy servers.<br>
+ * For each delegation, identified by WMProxy endpoint, delegation identifier
+ * and identity of the delegated proxy, the registry keeps the expiry time of
+ * the delegated proxy, so that subsequent sessions do not delegate the same
+ * proxy again. The registry is a small text file shared by concurrent
+ * processes: it is read again only when modified, and updated under the
+ * lock file by replacing the whole file. Expired delegations are dropped
+ * on update. Errors are logged and the registry is then treated as empty,
+ * which only leads to extra delegations.
+ *
+ * @author Oleg Sukhoroslov
+ */
+class DelegationRegistry {
+
+	private static final Logger logger = Logger.getLogger(DelegationRegistry.class);
+
+	// opened registries, map <registry-file, registry>
+	private static final Map<File,DelegationRegistry> registries = new HashMap<File,DelegationRegistry>();
+
+	private File file;
+	private File lockFile;
+	private long fileModified = -1;
+	private long fileLength = -1;
+
+	// map <endpoint|delegation-id|identity, expiry-time>
+	private Map<String,Long> delegations = new LinkedHashMap<String,Long>();
+
+	private DelegationRegistry(File file) {
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+	}
+
+	/**
+	 * Opens the delegation registry stored in the file.<br>
+	 * Registries are shared within the process.
+	 *
+	 * @param file registry file
+	 * @return delegation registry
+	 */
+	static DelegationRegistry open(File file) {
+		file = file.getAbsoluteFile();
+		synchronized (registries) {
+			DelegationRegistry registry = registries.get(file);
+			if (registry == null) {
+				registry = new DelegationRegistry(file);
+				registries.put(file, registry);
+			}
+			return registry;
+		}
+	}
+
+	/**
+	 * Returns the expiry time of the delegated proxy.
+	 *
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param delegationId delegation identifier
+	 * @param identity identity of the delegated proxy
+	 * @return expiry time in milliseconds since the epoch (0 if the delegation is unknown)
+	 */
+	synchronized long getExpiry(String wmProxyURL, String delegationId, String identity) {
+		try {
+			refresh();
+		} catch (IOException e) {
+			logger.warn("Could not read delegation registry " + file + ": " + e.getMessage());
+		}
+		Long expiry = delegations.get(key(wmProxyURL, delegationId, identity));
+		return expiry != null ? expiry : 0;
+	}
+
+	/**
+	 * Records the delegated proxy.
+	 *
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param delegationId delegation identifier
+	 * @param identity identity of the delegated proxy
+	 * @param expiry expiry time of the delegated proxy in milliseconds since the epoch
+	 */
+	void put(String wmProxyURL, String delegationId, String identity, long expiry) {
+		update(key(wmProxyURL, delegationId, identity), expiry);
+	}
+
+	/**
+	 * Forgets the delegated proxy, e.g. when it is rejected by the server.
+	 *
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param delegationId delegation identifier
+	 * @param identity identity of the delegated proxy
+	 */
+	void remove(String wmProxyURL, String delegationId, String identity) {
+		update(key(wmProxyURL, delegationId, identity), null);
+	}
+
+	/**
+	 * Rewrites the registry with the changed delegation.<br>
+	 * Writers of all processes are serialized by the lock file.
+	 */
+	private void update(String key, Long expiry) {
+		try {
+			File dir = file.getParentFile();
+			if (dir != null) {
+				dir.mkdirs();
+			}
+			RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+			try {
+				FileLock fileLock = lock.getChannel().lock();
+				try {
+					synchronized (this) {
+						refresh();
+						if (expiry != null) {
+							delegations.put(key, expiry);
+						} else {
+							delegations.remove(key);
+						}
+						write();
+					}
+				} finally {
+					fileLock.release();
+				}
+			} finally {
+				lock.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Could not write delegation registry " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the registry again if it is modified since the last access.
+	 */
+	private void refresh() throws IOException {
+		if (!file.exists()) {
+			delegations.clear();
+			fileModified = -1;
+			fileLength = -1;
+			return;
+		}
+		if (file.lastModified() == fileModified && file.length() == fileLength) {
+			return;
+		}
+		fileModified = file.lastModified();
+		fileLength = file.length();
+		delegations.clear();
+
+		byte[] data = new byte[(int)fileLength];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			int n;
+			while (read < data.length && (n = in.read(data, read, data.length - read)) > 0) {
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		for (String record : new String(data, "UTF-8").split("\n")) {
+			int pos = record.lastIndexOf('\t');
+			if (pos > 0) {
+				try {
+					delegations.put(record.substring(0, pos), Long.parseLong(record.substring(pos + 1)));
+				} catch (NumberFormatException e) {
+					logger.debug("Malformed delegation registry record: " + record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the registry file with the unexpired delegations.
+	 */
+	private void write() throws IOException {
+		long now = System.currentTimeMillis();
+		StringBuilder records = new StringBuilder();
+		for (Iterator<Map.Entry<String,Long>> i = delegations.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<String,Long> delegation = i.next();
+			if (delegation.getValue() <= now) {
+				i.remove();
+			} else {
+				records.append(delegation.getKey()).append('\t').append(delegation.getValue()).append('\n');
+			}
+		}
+
+		// replace the file at once, so concurrent readers do not see a partial file
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			OutputStream out = new FileOutputStream(tmpFile);
+			try {
+				out.write(records.toString().getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(file)) {
+				file.delete();
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Could not rename " + tmpFile + " to " + file);
+				}
+			}
+		} finally {
+			tmpFile.delete();
+		}
+		fileModified = file.lastModified();
+		fileLength = file.length();
+	}
+
+	private static String key(String wmProxyURL, String delegationId, String identity) {
+		return (wmProxyURL + "\t" + delegationId + "\t" + identity).replaceAll("[\\r\\n]", " ");
+	}
+
+}
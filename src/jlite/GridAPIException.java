@@ -32,4 +32,8 @@ public class GridAPIException extends Exception {
 	public GridAPIException(Throwable throwable) {
 		super(throwable);
 	}
+
+	public GridAPIException(String message, Throwable throwable) {
+		super(message, throwable);
+	}
 }
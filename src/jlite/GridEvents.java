@@ -0,0 +1,143 @@
+/*   
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events of remote grid operations.<br>
+ * Events are created and timed around each operation, but their fields are 
+ * filled and the events are committed only if they are enabled in a running 
+ * recording, so the events cost almost nothing when recording is off.
+ * 
+ * @author Oleg Sukhoroslov
+ */
+class GridEvents {
+
+	private static final String CATEGORY = "jLite";
+
+	@Name("jlite.RemoteCall")
+	@Label("Grid Remote Call")
+	@Description("Attempt of a call to a WMProxy or LB service")
+	@Category(CATEGORY)
+	static class RemoteCall extends Event {
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Endpoint")
+		String endpoint;
+
+		@Label("Job ID")
+		String jobId;
+
+		@Label("Attempt")
+		int attempt;
+
+		@Label("Success")
+		boolean success;
+
+		@Label("Error")
+		String error;
+
+	}
+
+	@Name("jlite.Transfer")
+	@Label("GridFTP Transfer")
+	@Description("GridFTP file transfer or directory operation")
+	@Category(CATEGORY)
+	static class Transfer extends Event {
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Endpoint")
+		String endpoint;
+
+		@Label("Path")
+		String path;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Success")
+		boolean success;
+
+		@Label("Error")
+		String error;
+
+	}
+
+	@Name("jlite.Delegation")
+	@Label("Proxy Delegation")
+	@Description("Delegation of the session proxy to a WMProxy service")
+	@Category(CATEGORY)
+	static class Delegation extends Event {
+
+		@Label("Endpoint")
+		String endpoint;
+
+		@Label("Delegation ID")
+		String delegationId;
+
+		@Label("Reused")
+		@Description("The proxy was already delegated according to the delegation registry")
+		boolean reused;
+
+		@Label("Success")
+		boolean success;
+
+		@Label("Error")
+		String error;
+
+	}
+
+	@Name("jlite.ProxyCreation")
+	@Label("Proxy Creation")
+	@Description("Creation of a VOMS proxy")
+	@Category(CATEGORY)
+	static class ProxyCreation extends Event {
+
+		@Label("VOMS Arguments")
+		String vomsArgs;
+
+		@Label("Lifetime")
+		@Description("Requested proxy lifetime in seconds")
+		int lifetime;
+
+		@Label("Success")
+		boolean success;
+
+		@Label("Error")
+		String error;
+
+	}
+
+	/**
+	 * Returns the error of the operation for events.
+	 */
+	static String getError(Throwable e) {
+		return e != null ? e.getClass().getName() + ": " + e.getMessage() : null;
+	}
+
+}
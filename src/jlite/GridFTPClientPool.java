@@ -0,0 +1,243 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+import org.globus.ftp.GridFTPClient;
+import org.globus.ftp.Session;
+import org.ietf.jgss.GSSCredential;
+
+/**
+ * Pool of authenticated GridFTP control channels.<br>
+ * Keeps idle clients per GridFTP server (host:port), so that subsequent
+ * transfers to the same server, within a sandbox or across jobs,
+ * do not repeat the GSI handshake. Idle clients are closed after
+ * a configurable time. Clients authenticated with another credential
+ * or with a credential which is about to expire are not reused.
+ *
+ * @author Oleg Sukhoroslov
+ */
+class GridFTPClientPool {
+
+	private static final Logger logger = Logger.getLogger(GridFTPClientPool.class);
+
+	// clients are not reused if the credential expires within this time (in seconds)
+	private static final int MIN_REMAINING_LIFETIME = 60;
+
+	private long idleTimeout;
+	private Map<String,LinkedList<PooledClient>> idleClients;
+	// credentials of all clients opened by this pool, idle or in use
+	private Map<GridFTPClient,GSSCredential> credentials;
+	private Timer evictionTimer;
+	private boolean closed = false;
+
+	/**
+	 * @param idleTimeout time in seconds to keep idle clients open
+	 */
+	GridFTPClientPool(int idleTimeout) {
+		this.idleTimeout = idleTimeout * 1000L;
+		this.idleClients = new HashMap<String,LinkedList<PooledClient>>();
+		this.credentials = new HashMap<GridFTPClient,GSSCredential>();
+		this.evictionTimer = new Timer("jlite-gridftp-eviction", true);
+		long period = Math.max(1000L, this.idleTimeout / 2);
+		evictionTimer.schedule(new TimerTask() {
+			public void run() {
+				evictIdleClients();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Returns an authenticated client of the GridFTP server,
+	 * reusing an idle one if possible.
+	 *
+	 * @param host GridFTP server host
+	 * @param port GridFTP server port
+	 * @param cred credential used for authentication
+	 * @return GridFTP client
+	 */
+	GridFTPClient acquire(String host, int port, GSSCredential cred) throws Exception {
+		String key = host + ":" + port;
+		List<PooledClient> stale = new ArrayList<PooledClient>();
+		PooledClient pooled = null;
+		synchronized (idleClients) {
+			LinkedList<PooledClient> clients = idleClients.get(key);
+			while (clients != null && !clients.isEmpty() && pooled == null) {
+				PooledClient candidate = clients.removeLast();
+				if (candidate.isReusable(cred)) {
+					pooled = candidate;
+				} else {
+					stale.add(candidate);
+				}
+			}
+		}
+		close(stale);
+		if (pooled != null) {
+			logger.debug("Reusing GridFTP connection to " + key);
+			return pooled.client;
+		}
+
+		GridFTPClient client = new GridFTPClient(host, port);
+		try {
+			client.authenticate(cred);
+			client.setType(Session.TYPE_IMAGE);
+		} catch (Exception e) {
+			close(client);
+			throw e;
+		}
+		synchronized (idleClients) {
+			credentials.put(client, cred);
+		}
+		logger.debug("Opened GridFTP connection to " + key);
+		return client;
+	}
+
+	/**
+	 * Returns the client to the pool after a transfer.<br>
+	 * Clients which failed a transfer should not be reused
+	 * since the state of their control channel is unknown.
+	 *
+	 * @param client GridFTP client
+	 * @param reusable whether the client can be reused
+	 */
+	void release(GridFTPClient client, boolean reusable) {
+		GSSCredential cred;
+		synchronized (idleClients) {
+			cred = credentials.get(client);
+			if (reusable && cred != null && !closed) {
+				String key = client.getHost() + ":" + client.getPort();
+				LinkedList<PooledClient> clients = idleClients.get(key);
+				if (clients == null) {
+					clients = new LinkedList<PooledClient>();
+					idleClients.put(key, clients);
+				}
+				clients.addLast(new PooledClient(client, cred));
+				return;
+			}
+			credentials.remove(client);
+		}
+		close(client);
+	}
+
+	/**
+	 * Closes all idle clients.
+	 * Clients which are in use are closed when released.
+	 */
+	void invalidate() {
+		List<PooledClient> clients = new ArrayList<PooledClient>();
+		synchronized (idleClients) {
+			for (LinkedList<PooledClient> hostClients : idleClients.values()) {
+				clients.addAll(hostClients);
+			}
+			idleClients.clear();
+			credentials.clear();
+		}
+		close(clients);
+	}
+
+	/**
+	 * Stops the eviction timer and closes all idle clients.<br>
+	 * Clients which are in use are closed when released.
+	 */
+	void close() {
+		evictionTimer.cancel();
+		synchronized (idleClients) {
+			closed = true;
+		}
+		invalidate();
+	}
+
+	private void evictIdleClients() {
+		List<PooledClient> expired = new ArrayList<PooledClient>();
+		long now = System.currentTimeMillis();
+		synchronized (idleClients) {
+			Iterator<LinkedList<PooledClient>> iHosts = idleClients.values().iterator();
+			while (iHosts.hasNext()) {
+				LinkedList<PooledClient> clients = iHosts.next();
+				Iterator<PooledClient> iClients = clients.iterator();
+				while (iClients.hasNext()) {
+					PooledClient pooled = iClients.next();
+					if (now - pooled.idleSince > idleTimeout || !pooled.isReusable(pooled.cred)) {
+						iClients.remove();
+						credentials.remove(pooled.client);
+						expired.add(pooled);
+					}
+				}
+				if (clients.isEmpty()) {
+					iHosts.remove();
+				}
+			}
+		}
+		close(expired);
+	}
+
+	private void close(List<PooledClient> clients) {
+		for (PooledClient pooled : clients) {
+			synchronized (idleClients) {
+				credentials.remove(pooled.client);
+			}
+			close(pooled.client);
+		}
+	}
+
+	private void close(GridFTPClient client) {
+		try {
+			client.close(true);
+			logger.debug("Closed GridFTP connection to " + client.getHost() + ":" + client.getPort());
+		} catch (Exception e) {
+			logger.debug("Failed to close GridFTP connection", e);
+		}
+	}
+
+	/**
+	 * Idle client together with its credential.
+	 */
+	private static class PooledClient {
+
+		private GridFTPClient client;
+		private GSSCredential cred;
+		private long idleSince;
+
+		private PooledClient(GridFTPClient client, GSSCredential cred) {
+			this.client = client;
+			this.cred = cred;
+			this.idleSince = System.currentTimeMillis();
+		}
+
+		private boolean isReusable(GSSCredential current) {
+			if (cred != current) {
+				return false;
+			}
+			try {
+				return cred.getRemainingLifetime() > MIN_REMAINING_LIFETIME;
+			} catch (Exception e) {
+				return false;
+			}
+		}
+
+	}
+
+}
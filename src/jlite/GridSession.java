@@ -16,7 +16,9 @@
 
 package jlite;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.glite.wsdl.types.lb.JobStatus;
 import org.globus.gsi.GlobusCredential;
@@ -27,7 +29,14 @@ import org.globus.gsi.GlobusCredential;
  * It provides methods for VOMS proxy creation, job submission, 
  * monitoring, output retrieval etc.<br>
  * Grid session is configured by a GridSessionConfig object, 
- * instantiated via a GridSessionFactory and implemented by a GridSessionImpl.
+ * instantiated via a GridSessionFactory and implemented by a GridSessionImpl.<br>
+ * A grid session is safe for concurrent use by multiple threads, so a single 
+ * session (and its delegations, connections and cached service clients) 
+ * can be shared by all threads of an application. The session configuration 
+ * must not be modified after the session is created. Replacing the session 
+ * proxy (e.g. with createProxy) while other threads submit or retrieve jobs 
+ * is allowed, but operations started before the replacement may still use 
+ * the previous proxy.
  * 
  * @author Oleg Sukhoroslov
  */
@@ -65,6 +74,49 @@ public interface GridSession {
 	 */
 	public GlobusCredential getProxy();
 	
+	/**
+	 * Renews a proxy certificate linked to the session via the configured 
+	 * proxy source and delegates it again to all WMProxy services 
+	 * the session has delegated to.<br>
+	 * Operations in progress complete with the previous proxy.
+	 * 
+	 * @see GridSessionConfig#setProxySource(ProxySource)
+	 * @return new proxy certificate
+	 * @throws GridAPIException
+	 */
+	public GlobusCredential renewProxy() throws GridAPIException;
+	
+	/**
+	 * Returns the WMProxy service endpoint managing the job: the endpoint 
+	 * the job was submitted to in this session or according to the local job 
+	 * registry, the endpoint of the default VO of the proxy certificate on the host 
+	 * which registered the job according to the LB service, or else the endpoint 
+	 * currently preferred among endpoints of the default VO.<br>
+	 * Operations on a job without a WMProxy service endpoint are sent to this endpoint.
+	 * 
+	 * @param jobId job identifier
+	 * @return WMProxy service endpoint
+	 * @throws GridAPIException
+	 */
+	public String getWMProxy(String jobId) throws GridAPIException;
+	
+	/**
+	 * Returns metrics of remote operations (WMProxy and LB calls, GridFTP 
+	 * transfers) of all sessions of the process, per operation and endpoint.<br>
+	 * The same metrics are published as MBeans in the jlite JMX domain.
+	 * 
+	 * @return snapshots of operation metrics
+	 */
+	public List<OperationMetrics> getMetricsSnapshot();
+	
+	/**
+	 * Closes the session: stops background renewals of the proxy and delegations, 
+	 * closes pooled GridFTP connections and releases worker threads 
+	 * once the running operations complete.<br>
+	 * The session must not be used after it is closed.
+	 */
+	public void close();
+	
 	/**
 	 * Destroys a proxy certificate linked to the session.
 	 * 
@@ -93,6 +145,31 @@ public interface GridSession {
 	 */
 	public void delegateProxy(String wmProxyURL, String delegationId) throws GridAPIException;
 	
+	/**
+	 * Delegates a proxy certificate linked to the session 
+	 * to WMProxy service determined by the default VO of the proxy certificate.<br>
+	 * Unless forced, the proxy is not delegated again while its delegation 
+	 * recorded in the delegation registry is valid.
+	 * 
+	 * @param delegationId delegation identifier
+	 * @param force whether to delegate the proxy regardless of the delegation registry
+	 * @throws GridAPIException
+	 */
+	public void delegateProxy(String delegationId, boolean force) throws GridAPIException;
+	
+	/**
+	 * Delegates a proxy certificate linked to the session 
+	 * to the specified WMProxy service.<br>
+	 * Unless forced, the proxy is not delegated again while its delegation 
+	 * recorded in the delegation registry is valid.
+	 * 
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param delegationId delegation identifier
+	 * @param force whether to delegate the proxy regardless of the delegation registry
+	 * @throws GridAPIException
+	 */
+	public void delegateProxy(String wmProxyURL, String delegationId, boolean force) throws GridAPIException;
+	
 	/**
 	 * Matches available grid resources (computing elements, CE) 
 	 * to requirements specified in the job description.<br>
@@ -156,7 +233,42 @@ public interface GridSession {
 	public String submitJob(String wmProxyURL, String jdl, String inputDir) throws GridAPIException;
 	
 	/**
-	 * Retrieves the status of a job.
+	 * Submits several jobs via WMProxy service.<br>
+	 * The WMProxy service endpoint is determined by the 
+	 * default VO of the proxy certificate.
+	 * 
+	 * @see #submitJobs(String, List, String)
+	 * @param jdls job descriptions in JDL format
+	 * @param inputDir search input files in the specified directory
+	 * @return submission results in the order of job descriptions
+	 * @throws GridAPIException
+	 */
+	public List<SubmittedJob> submitJobs(List<String> jdls, String inputDir) throws GridAPIException;
+	
+	/**
+	 * Submits several jobs via WMProxy service.<br>
+	 * Submission stages of different jobs are pipelined: next jobs are 
+	 * registered while input files of previous jobs are uploaded, and each 
+	 * job is started as soon as its input files are uploaded. The number of 
+	 * concurrent registrations and the number of registered jobs waiting 
+	 * to be started are limited by the session configuration.<br>
+	 * Failure of a job does not stop the submission of other jobs, 
+	 * it is reported in the job result.
+	 * 
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param jdls job descriptions in JDL format
+	 * @param inputDir search input files in the specified directory
+	 * @return submission results in the order of job descriptions
+	 * @throws GridAPIException if the submission could not be started at all
+	 */
+	public List<SubmittedJob> submitJobs(String wmProxyURL, List<String> jdls, String inputDir) throws GridAPIException;
+	
+	/**
+	 * Retrieves the status of a job.<br>
+	 * The complete status is always requested from the LB service. The job status 
+	 * cache (see {@link GridSessionConfig#setStatusCachePath(String)}), which keeps 
+	 * only a part of the status fields, serves only {@link #getJobState(String)}, 
+	 * state-only queries and {@link #getJobSummaries(Collection)}.
 	 * 
 	 * @param jobId job identifier
 	 * @return job status structure (as returned from LB WS endpoint)
@@ -164,6 +276,44 @@ public interface GridSession {
 	 */
 	public JobStatus getJobStatus(String jobId) throws GridAPIException;
 	
+	/**
+	 * Retrieves the statuses of several jobs.<br>
+	 * Jobs are grouped by their LB servers and requested from each server 
+	 * with multi-job queries where the server supports them, 
+	 * otherwise one by one.
+	 * 
+	 * @param jobIds job identifiers
+	 * @return map <job-identifier, job-status> in the order of requested jobs
+	 * @throws GridAPIException
+	 */
+	public Map<String,JobStatus> getJobStatuses(Collection<String> jobIds) throws GridAPIException;
+	
+	/**
+	 * Retrieves the statuses of several jobs, as {@link #getJobStatuses(Collection)}.<br>
+	 * Only the basic part of the statuses (state, done code, times) can be requested, 
+	 * which is much cheaper for the LB server than the full statuses 
+	 * with job descriptions and statuses of children.
+	 * 
+	 * @param jobIds job identifiers
+	 * @param stateOnly whether to request only the basic part of the statuses
+	 * @return map <job-identifier, job-status> in the order of requested jobs
+	 * @throws GridAPIException
+	 */
+	public Map<String,JobStatus> getJobStatuses(Collection<String> jobIds, boolean stateOnly) throws GridAPIException;
+	
+	/**
+	 * Retrieves the statuses of several jobs, as {@link #getJobStatuses(Collection)}, 
+	 * taking the statuses from the job status cache where available.<br>
+	 * Cached statuses contain only the job identifier, state, done code, job type, 
+	 * status reason, destination, network server, job description, exit code, 
+	 * CPU time, state history and statuses of children; other fields are not set.
+	 * 
+	 * @param jobIds job identifiers
+	 * @return map <job-identifier, job-status> in the order of requested jobs
+	 * @throws GridAPIException
+	 */
+	public Map<String,JobStatus> getJobSummaries(Collection<String> jobIds) throws GridAPIException;
+	
 	/**
 	 * Retrieves current job state of a job.<br>
 	 * Possible job states are: SUBMITTED, WAITING, READY, SCHEDULED, RUNNING, DONE, ABORTED, CANCELED, CLEARED 
@@ -18,9 +18,12 @@ package jlite;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import jlite.util.ConfigCache;
 import jlite.util.VOMSESFileParser;
 import jlite.util.WMSDirParser;
 
@@ -34,7 +37,10 @@ import org.globus.gsi.GlobusCredential;
  * Use it to override the default configuration locations and options 
  * (refer to the user manual).<br>
  * When instantiated it applies the default configuration, so you 
- * can also use getter methods to check the default values. 
+ * can also use getter methods to check the default values.<br>
+ * Parsing of WMProxy and VOMS configuration files can be avoided 
+ * by enabling a configuration snapshot with the JLITE_CONFIG_CACHE 
+ * environment variable or system property (see {@link ConfigCache}). 
  * 
  * @author Oleg Sukhoroslov
  */
@@ -54,7 +60,37 @@ public class GridSessionConfig {
 	private VOMSServerMap vomsServers;
 	private String wmsDir;
 	private Map<String,String> wmProxies;
+	private Map<String,List<String>> wmProxyEndpoints;
 	private String delegationId;
+	private int lbVersionCacheTime = 3600;
+	private int lbQueryBatchSize = 100;
+	private int maxStatusRequests = 20;
+	private int maxStatusRequestsPerHost = 4;
+	private int maxTransfers = 8;
+	private int maxTransfersPerHost = 4;
+	private int gridFTPIdleTimeout = 60;
+	private String statusCachePath;
+	private int statusCacheTTL = 30;
+	private int maxAsyncOperations = 64;
+	private int statusCoalesceDelay = 50;
+	private int submitConcurrency = 2;
+	private int submitPipelineDepth = 8;
+	private int submitBundleSize = 0;
+	private String stagingURI;
+	private String stagingIndexPath;
+	private int stagingTTL = 86400;
+	private int sandboxPackThreshold = 0;
+	private String delegationRegistryPath;
+	private int delegationRenewalMargin = 3600;
+	private ProxySource proxySource;
+	private int proxyRenewalMargin = 3600;
+	private int retryMaxAttempts = 3;
+	private int retryInitialDelay = 1000;
+	private int retryMaxDelay = 30000;
+	private int retryDeadline = 120;
+	private int circuitBreakerThreshold = 5;
+	private int circuitBreakerOpenTime = 60;
+	private ConfigCache configCache;
 	
 	/**
 	 * Applies the default configuration locations and options 
@@ -63,6 +99,26 @@ public class GridSessionConfig {
 	public GridSessionConfig() {
 		vomsServers = new VOMSServerMap();
 		wmProxies = new HashMap<String,String>();
+		wmProxyEndpoints = new HashMap<String,List<String>>();
+		configCache = ConfigCache.open();
+		
+		// job status cache is enabled with JLITE_STATUS_CACHE
+		if (System.getProperty("JLITE_STATUS_CACHE") != null) {
+			setStatusCachePath(System.getProperty("JLITE_STATUS_CACHE"));
+		} else if (System.getenv("JLITE_STATUS_CACHE") != null) {
+			setStatusCachePath(System.getenv("JLITE_STATUS_CACHE"));
+		}
+		
+		// input sandbox staging is enabled with JLITE_STAGING_URI
+		if (System.getProperty("JLITE_STAGING_URI") != null) {
+			setStagingURI(System.getProperty("JLITE_STAGING_URI"));
+		} else if (System.getenv("JLITE_STAGING_URI") != null) {
+			setStagingURI(System.getenv("JLITE_STAGING_URI"));
+		}
+		setStagingIndexPath(System.getProperty("user.home") 
+				+ File.separator + ".jlite" + File.separator + "staging.index");
+		setDelegationRegistryPath(System.getProperty("user.home") 
+				+ File.separator + ".jlite" + File.separator + "delegations");
 		
 	    // default path to user certificate
 		if (System.getenv("X509_USER_CERT") != null) {
@@ -135,28 +191,31 @@ public class GridSessionConfig {
 		
 		// WMProxy client configuration files
 		if (new File("/opt/glite/etc").exists()) {
-			wmProxies.putAll(WMSDirParser.readWMProxies("/opt/glite/etc")); 
+			addWMProxies(readWMProxyEndpoints("/opt/glite/etc")); 
 		}		
 		if (System.getenv("GLITE_LOCATION") != null &&
 				new File(System.getenv("GLITE_LOCATION") + "/etc").exists()) {
-			wmProxies.putAll(WMSDirParser.readWMProxies(System.getenv("GLITE_LOCATION") + "/etc")); 
+			addWMProxies(readWMProxyEndpoints(System.getenv("GLITE_LOCATION") + "/etc")); 
 		}		
 		if (System.getenv("GLITE_WMS_LOCATION") != null &&
 				new File(System.getenv("GLITE_WMS_LOCATION") + "/etc").exists()) {
-			wmProxies.putAll(WMSDirParser.readWMProxies(System.getenv("GLITE_WMS_LOCATION") + "/etc")); 
+			addWMProxies(readWMProxyEndpoints(System.getenv("GLITE_WMS_LOCATION") + "/etc")); 
 		}		
 		if (new File(System.getProperty("user.home") + "/.glite").exists()) {
-			wmProxies.putAll(WMSDirParser.readWMProxies(System.getProperty("user.home") + "/.glite")); 
+			addWMProxies(readWMProxyEndpoints(System.getProperty("user.home") + "/.glite")); 
 		}		
 		if (System.getenv("JLITE_HOME") != null && 
 				new File(System.getenv("JLITE_HOME") + "/etc/wms").exists()) {
-			wmProxies.putAll(WMSDirParser.readWMProxies(System.getenv("JLITE_HOME") + "/etc/wms")); 
+			addWMProxies(readWMProxyEndpoints(System.getenv("JLITE_HOME") + "/etc/wms")); 
 		}
 		if (System.getProperty("JLITE_HOME") != null && 
 				new File(System.getProperty("JLITE_HOME") + "/etc/wms").exists()) {
-			wmProxies.putAll(WMSDirParser.readWMProxies(System.getProperty("JLITE_HOME") + "/etc/wms")); 
+			addWMProxies(readWMProxyEndpoints(System.getProperty("JLITE_HOME") + "/etc/wms")); 
+		}
+		
+		if (configCache != null) {
+			configCache.save();
 		}
-				
 
 		// important properties
 		System.setProperty( "sslProtocol", "SSLv3" );
@@ -208,8 +267,15 @@ public class GridSessionConfig {
     	String vomsParentDir = vomsDir.substring(0, vomsDir.lastIndexOf("/"));    	
 		System.setProperty("VOMSES_LOCATION", vomsParentDir);
     	try {
-    		vomsServers.merge(
-    				VOMSESFileParser.parse(new File(vomsDir)));
+    		if (configCache != null) {
+    			vomsServers.merge(configCache.readVOMSServers(vomsDir));
+    		} else {
+	    		vomsServers.merge(
+	    				VOMSESFileParser.parse(new File(vomsDir)));
+    		}
+    		if (configCache != null) {
+    			configCache.save();
+    		}
     	} catch (IOException e) {
     		e.printStackTrace();
     	}
@@ -345,8 +411,10 @@ public class GridSessionConfig {
 	 */
 	public void setWMSDir(String wmsDir) {
 		this.wmsDir = wmsDir;
-		Map<String,String> wmProxiesFromDir = WMSDirParser.readWMProxies(wmsDir);
-		wmProxies.putAll(wmProxiesFromDir);
+		addWMProxies(readWMProxyEndpoints(wmsDir));
+		if (configCache != null) {
+			configCache.save();
+		}
 	}
 	
 	/**
@@ -359,13 +427,35 @@ public class GridSessionConfig {
 	}
 
 	/**
-	 * Adds the WMProxy service endpoint.
+	 * Returns all known WMProxy service endpoints with alternative endpoints 
+	 * of each VO, the preferred endpoint first.<br>
+	 * The session balances jobs of the VO between these endpoints 
+	 * and fails over to the next endpoint if one is unavailable.
+	 * 
+	 * @return map <VO-name, WMProxy-endpoints>
+	 */
+	public Map<String,List<String>> getWMProxyEndpoints() {
+		return wmProxyEndpoints;
+	}
+
+	/**
+	 * Adds the WMProxy service endpoint as the preferred endpoint of the VO.
 	 * 
 	 * @param vo VO name
 	 * @param wmProxyURL WMProxy service URI
 	 */
 	public void addWMProxy(String vo, String wmProxyURL) {
 		wmProxies.put(vo, wmProxyURL);
+		List<String> endpoints = new ArrayList<String>();
+		endpoints.add(wmProxyURL);
+		if (wmProxyEndpoints.containsKey(vo)) {
+			for (String endpoint : wmProxyEndpoints.get(vo)) {
+				if (!endpoint.equals(wmProxyURL)) {
+					endpoints.add(endpoint);
+				}
+			}
+		}
+		wmProxyEndpoints.put(vo, endpoints);
 	}
 
 	/**
@@ -431,5 +521,590 @@ public class GridSessionConfig {
 		// unset default proxy path
 		this.proxyPath = null;
 	}
+
+	/**
+	 * Returns the time for which the version of an LB server is cached 
+	 * by the session before it is requested again.
+	 * 
+	 * @return LB version cache time in seconds
+	 */
+	public int getLBVersionCacheTime() {
+		return lbVersionCacheTime;
+	}
+
+	/**
+	 * Sets the time for which the version of an LB server is cached 
+	 * by the session before it is requested again.
+	 * 
+	 * @param lbVersionCacheTime LB version cache time in seconds
+	 */
+	public void setLBVersionCacheTime(int lbVersionCacheTime) {
+		this.lbVersionCacheTime = lbVersionCacheTime;
+	}
+
+	/**
+	 * Returns the maximum number of jobs requested from an LB server 
+	 * in a single multi-job status query.
+	 * 
+	 * @return LB query batch size
+	 */
+	public int getLBQueryBatchSize() {
+		return lbQueryBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of jobs requested from an LB server 
+	 * in a single multi-job status query.
+	 * 
+	 * @param lbQueryBatchSize LB query batch size
+	 */
+	public void setLBQueryBatchSize(int lbQueryBatchSize) {
+		this.lbQueryBatchSize = lbQueryBatchSize;
+	}
+
+	/**
+	 * Returns the maximum number of LB status requests 
+	 * which are executed concurrently by the session.
+	 * 
+	 * @return maximum number of concurrent status requests
+	 */
+	public int getMaxStatusRequests() {
+		return maxStatusRequests;
+	}
+
+	/**
+	 * Sets the maximum number of LB status requests 
+	 * which are executed concurrently by the session.
+	 * 
+	 * @param maxStatusRequests maximum number of concurrent status requests
+	 */
+	public void setMaxStatusRequests(int maxStatusRequests) {
+		this.maxStatusRequests = maxStatusRequests;
+	}
+
+	/**
+	 * Returns the maximum number of status requests 
+	 * which are executed concurrently on a single LB server.
+	 * 
+	 * @return maximum number of concurrent status requests per LB server
+	 */
+	public int getMaxStatusRequestsPerHost() {
+		return maxStatusRequestsPerHost;
+	}
+
+	/**
+	 * Sets the maximum number of status requests 
+	 * which are executed concurrently on a single LB server.
+	 * 
+	 * @param maxStatusRequestsPerHost maximum number of concurrent status requests per LB server
+	 */
+	public void setMaxStatusRequestsPerHost(int maxStatusRequestsPerHost) {
+		this.maxStatusRequestsPerHost = maxStatusRequestsPerHost;
+	}
+
+	/**
+	 * Returns the maximum number of GridFTP file transfers 
+	 * which are executed concurrently by the session.
+	 * 
+	 * @return maximum number of concurrent file transfers
+	 */
+	public int getMaxTransfers() {
+		return maxTransfers;
+	}
+
+	/**
+	 * Sets the maximum number of GridFTP file transfers 
+	 * which are executed concurrently by the session.
+	 * 
+	 * @param maxTransfers maximum number of concurrent file transfers
+	 */
+	public void setMaxTransfers(int maxTransfers) {
+		this.maxTransfers = maxTransfers;
+	}
+
+	/**
+	 * Returns the maximum number of file transfers 
+	 * which are executed concurrently with a single GridFTP server.
+	 * 
+	 * @return maximum number of concurrent file transfers per GridFTP server
+	 */
+	public int getMaxTransfersPerHost() {
+		return maxTransfersPerHost;
+	}
+
+	/**
+	 * Sets the maximum number of file transfers 
+	 * which are executed concurrently with a single GridFTP server.
+	 * 
+	 * @param maxTransfersPerHost maximum number of concurrent file transfers per GridFTP server
+	 */
+	public void setMaxTransfersPerHost(int maxTransfersPerHost) {
+		this.maxTransfersPerHost = maxTransfersPerHost;
+	}
+
+	/**
+	 * Returns the time in seconds to keep idle GridFTP connections 
+	 * open for reuse by subsequent transfers.
+	 * 
+	 * @return idle GridFTP connection timeout in seconds
+	 */
+	public int getGridFTPIdleTimeout() {
+		return gridFTPIdleTimeout;
+	}
+
+	/**
+	 * Sets the time in seconds to keep idle GridFTP connections 
+	 * open for reuse by subsequent transfers.
+	 * 
+	 * @param gridFTPIdleTimeout idle GridFTP connection timeout in seconds
+	 */
+	public void setGridFTPIdleTimeout(int gridFTPIdleTimeout) {
+		this.gridFTPIdleTimeout = gridFTPIdleTimeout;
+	}
+
+	/**
+	 * Returns the path to the file of job status cache.
+	 * 
+	 * @return path to status cache file (null if the cache is disabled)
+	 */
+	public String getStatusCachePath() {
+		return statusCachePath;
+	}
+
+	/**
+	 * Sets the path to the file of job status cache.<br>
+	 * Statuses of finished jobs are kept in the cache permanently, 
+	 * statuses of other jobs are kept for the status cache TTL. 
+	 * The cache file can be shared by concurrent processes. 
+	 * Cached statuses keep only a part of the status fields, so they serve 
+	 * only state queries and {@link GridSession#getJobSummaries(java.util.Collection)}.
+	 * 
+	 * @param statusCachePath path to status cache file (null disables the cache)
+	 */
+	public void setStatusCachePath(String statusCachePath) {
+		this.statusCachePath = statusCachePath;
+	}
+
+	/**
+	 * Returns the time in seconds to cache statuses of unfinished jobs.
+	 * 
+	 * @return status cache TTL in seconds
+	 */
+	public int getStatusCacheTTL() {
+		return statusCacheTTL;
+	}
+
+	/**
+	 * Sets the time in seconds to cache statuses of unfinished jobs.<br>
+	 * Zero disables caching of unfinished jobs.
+	 * 
+	 * @param statusCacheTTL status cache TTL in seconds
+	 */
+	public void setStatusCacheTTL(int statusCacheTTL) {
+		this.statusCacheTTL = statusCacheTTL;
+	}
+
+	/**
+	 * Returns the maximum number of operations of an asynchronous 
+	 * session which are executed concurrently by its default executor.
+	 * 
+	 * @return maximum number of concurrent asynchronous operations
+	 */
+	public int getMaxAsyncOperations() {
+		return maxAsyncOperations;
+	}
+
+	/**
+	 * Sets the maximum number of operations of an asynchronous 
+	 * session which are executed concurrently by its default executor.
+	 * 
+	 * @param maxAsyncOperations maximum number of concurrent asynchronous operations
+	 */
+	public void setMaxAsyncOperations(int maxAsyncOperations) {
+		this.maxAsyncOperations = maxAsyncOperations;
+	}
+
+	/**
+	 * Returns the time in milliseconds an asynchronous session collects 
+	 * status requests before requesting them together.
+	 * 
+	 * @return status request coalescing delay in milliseconds
+	 */
+	public int getStatusCoalesceDelay() {
+		return statusCoalesceDelay;
+	}
+
+	/**
+	 * Sets the time in milliseconds an asynchronous session collects 
+	 * status requests before requesting them together.
+	 * 
+	 * @param statusCoalesceDelay status request coalescing delay in milliseconds
+	 */
+	public void setStatusCoalesceDelay(int statusCoalesceDelay) {
+		this.statusCoalesceDelay = statusCoalesceDelay;
+	}
+
+	/**
+	 * Returns the maximum number of jobs which are registered 
+	 * concurrently during bulk submission.
+	 * 
+	 * @return maximum number of concurrent job registrations
+	 */
+	public int getSubmitConcurrency() {
+		return submitConcurrency;
+	}
+
+	/**
+	 * Sets the maximum number of jobs which are registered 
+	 * concurrently during bulk submission.
+	 * 
+	 * @param submitConcurrency maximum number of concurrent job registrations
+	 */
+	public void setSubmitConcurrency(int submitConcurrency) {
+		this.submitConcurrency = submitConcurrency;
+	}
+
+	/**
+	 * Returns the maximum number of jobs which are registered but 
+	 * not started yet (uploading input files) during bulk submission.
+	 * 
+	 * @return submission pipeline depth
+	 */
+	public int getSubmitPipelineDepth() {
+		return submitPipelineDepth;
+	}
+
+	/**
+	 * Sets the maximum number of jobs which are registered but 
+	 * not started yet (uploading input files) during bulk submission.
+	 * 
+	 * @param submitPipelineDepth submission pipeline depth
+	 */
+	public void setSubmitPipelineDepth(int submitPipelineDepth) {
+		this.submitPipelineDepth = submitPipelineDepth;
+	}
+
+	/**
+	 * Returns the maximum number of normal jobs which are bundled into 
+	 * a single collection during bulk submission (0 or 1 - no bundling).
+	 * 
+	 * @return maximum number of jobs in a bundle
+	 */
+	public int getSubmitBundleSize() {
+		return submitBundleSize;
+	}
+
+	/**
+	 * Sets the maximum number of normal jobs which are bundled into 
+	 * a single collection during bulk submission (0 or 1 - no bundling).
+	 * 
+	 * @param submitBundleSize maximum number of jobs in a bundle
+	 */
+	public void setSubmitBundleSize(int submitBundleSize) {
+		this.submitBundleSize = submitBundleSize;
+	}
+
+	/**
+	 * Returns the GridFTP directory where input sandbox files are staged.
+	 * 
+	 * @return staging area URI (null if staging is disabled)
+	 */
+	public String getStagingURI() {
+		return stagingURI;
+	}
+
+	/**
+	 * Sets the GridFTP directory where input sandbox files are staged.<br>
+	 * Local input files are uploaded to the staging area once per content 
+	 * and the job descriptions refer to the staged copies, so the files 
+	 * shared by many jobs are not uploaded with every job.
+	 * 
+	 * @param stagingURI staging area URI, e.g. gsiftp://host/path (null disables staging)
+	 */
+	public void setStagingURI(String stagingURI) {
+		this.stagingURI = stagingURI;
+	}
+
+	/**
+	 * Returns the path to the index of staged files.
+	 * 
+	 * @return path to staging index file
+	 */
+	public String getStagingIndexPath() {
+		return stagingIndexPath;
+	}
+
+	/**
+	 * Sets the path to the index of staged files.<br>
+	 * The index file can be shared by concurrent processes.
+	 * 
+	 * @param stagingIndexPath path to staging index file
+	 */
+	public void setStagingIndexPath(String stagingIndexPath) {
+		this.stagingIndexPath = stagingIndexPath;
+	}
+
+	/**
+	 * Returns the time in seconds staged files are reused by subsequent jobs.
+	 * 
+	 * @return staged file TTL in seconds
+	 */
+	public int getStagingTTL() {
+		return stagingTTL;
+	}
+
+	/**
+	 * Sets the time in seconds staged files are reused by subsequent jobs.<br>
+	 * It should not exceed the time files are kept in the staging area.
+	 * 
+	 * @param stagingTTL staged file TTL in seconds
+	 */
+	public void setStagingTTL(int stagingTTL) {
+		this.stagingTTL = stagingTTL;
+	}
+
+	/**
+	 * Returns the minimum number of sandbox files of a job 
+	 * which are packed into a single archive.
+	 * 
+	 * @return sandbox packing threshold (0 if packing is disabled)
+	 */
+	public int getSandboxPackThreshold() {
+		return sandboxPackThreshold;
+	}
+
+	/**
+	 * Sets the minimum number of sandbox files of a job 
+	 * which are packed into a single archive.<br>
+	 * Local input files of a normal job are packed into a tar.gz archive 
+	 * which is uploaded with a wrapper unpacking it on the worker node. 
+	 * Output files are packed on the worker node in the same way 
+	 * and unpacked when the job output is retrieved.
+	 * 
+	 * @param sandboxPackThreshold sandbox packing threshold (0 disables packing)
+	 */
+	public void setSandboxPackThreshold(int sandboxPackThreshold) {
+		this.sandboxPackThreshold = sandboxPackThreshold;
+	}
+
+	/**
+	 * Returns the path to the registry of delegated proxies.
+	 * 
+	 * @return path to delegation registry file (null if the registry is disabled)
+	 */
+	public String getDelegationRegistryPath() {
+		return delegationRegistryPath;
+	}
+
+	/**
+	 * Sets the path to the registry of delegated proxies.<br>
+	 * A proxy is not delegated again to the same WMProxy server with the same 
+	 * delegation identifier while the delegated proxy is valid. 
+	 * The registry file can be shared by concurrent processes.
+	 * 
+	 * @param delegationRegistryPath path to delegation registry file (null disables the registry)
+	 */
+	public void setDelegationRegistryPath(String delegationRegistryPath) {
+		this.delegationRegistryPath = delegationRegistryPath;
+	}
+
+	/**
+	 * Returns the time in seconds before expiry of a delegated proxy 
+	 * when it is renewed.
+	 * 
+	 * @return delegation renewal margin in seconds
+	 */
+	public int getDelegationRenewalMargin() {
+		return delegationRenewalMargin;
+	}
+
+	/**
+	 * Sets the time in seconds before expiry of a delegated proxy 
+	 * when it is renewed.<br>
+	 * The proxy is delegated again only if the session proxy lives longer 
+	 * than the delegated one.
+	 * 
+	 * @param delegationRenewalMargin delegation renewal margin in seconds
+	 */
+	public void setDelegationRenewalMargin(int delegationRenewalMargin) {
+		this.delegationRenewalMargin = delegationRenewalMargin;
+	}
+
+	/**
+	 * Returns the source of new proxies used to renew the session proxy.
+	 * 
+	 * @return proxy source (null if the proxy is not renewed)
+	 */
+	public ProxySource getProxySource() {
+		return proxySource;
+	}
+
+	/**
+	 * Sets the source of new proxies used to renew the session proxy.<br>
+	 * The session renews its proxy in the background ahead of expiry 
+	 * and delegates the new proxy to all WMProxy servers it has delegated to.
+	 * 
+	 * @param proxySource proxy source (null disables renewal)
+	 */
+	public void setProxySource(ProxySource proxySource) {
+		this.proxySource = proxySource;
+	}
+
+	/**
+	 * Returns the time in seconds before expiry of the session proxy 
+	 * when it is renewed.
+	 * 
+	 * @return proxy renewal margin in seconds
+	 */
+	public int getProxyRenewalMargin() {
+		return proxyRenewalMargin;
+	}
+
+	/**
+	 * Sets the time in seconds before expiry of the session proxy 
+	 * when it is renewed.
+	 * 
+	 * @param proxyRenewalMargin proxy renewal margin in seconds
+	 */
+	public void setProxyRenewalMargin(int proxyRenewalMargin) {
+		this.proxyRenewalMargin = proxyRenewalMargin;
+	}
+
+	/**
+	 * Returns the maximum number of attempts of a WMProxy or LB call 
+	 * failed with transient errors (timeouts, connection failures).
+	 * 
+	 * @return maximum number of attempts
+	 */
+	public int getRetryMaxAttempts() {
+		return retryMaxAttempts;
+	}
+
+	/**
+	 * Sets the maximum number of attempts of a WMProxy or LB call 
+	 * failed with transient errors (timeouts, connection failures).<br>
+	 * Calls which are not idempotent, such as job submission, are repeated 
+	 * only if the request has not reached the service.
+	 * 
+	 * @param retryMaxAttempts maximum number of attempts (1 disables retries)
+	 */
+	public void setRetryMaxAttempts(int retryMaxAttempts) {
+		this.retryMaxAttempts = retryMaxAttempts;
+	}
+
+	/**
+	 * Returns the delay in milliseconds before the first repeated call.
+	 * 
+	 * @return initial retry delay in milliseconds
+	 */
+	public int getRetryInitialDelay() {
+		return retryInitialDelay;
+	}
+
+	/**
+	 * Sets the delay in milliseconds before the first repeated call.<br>
+	 * The delay is doubled after each attempt up to the maximum delay, 
+	 * and randomized by up to a half to spread the calls of concurrent workers.
+	 * 
+	 * @param retryInitialDelay initial retry delay in milliseconds
+	 */
+	public void setRetryInitialDelay(int retryInitialDelay) {
+		this.retryInitialDelay = retryInitialDelay;
+	}
+
+	/**
+	 * Returns the maximum delay in milliseconds between repeated calls.
+	 * 
+	 * @return maximum retry delay in milliseconds
+	 */
+	public int getRetryMaxDelay() {
+		return retryMaxDelay;
+	}
+
+	/**
+	 * Sets the maximum delay in milliseconds between repeated calls.
+	 * 
+	 * @param retryMaxDelay maximum retry delay in milliseconds
+	 */
+	public void setRetryMaxDelay(int retryMaxDelay) {
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
+	/**
+	 * Returns the time in seconds after the first attempt 
+	 * when a call is no longer repeated.
+	 * 
+	 * @return retry deadline in seconds
+	 */
+	public int getRetryDeadline() {
+		return retryDeadline;
+	}
+
+	/**
+	 * Sets the time in seconds after the first attempt 
+	 * when a call is no longer repeated.
+	 * 
+	 * @param retryDeadline retry deadline in seconds
+	 */
+	public void setRetryDeadline(int retryDeadline) {
+		this.retryDeadline = retryDeadline;
+	}
+
+	/**
+	 * Returns the number of consecutive transient errors of a service 
+	 * which opens its circuit breaker.
+	 * 
+	 * @return circuit breaker threshold
+	 */
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+
+	/**
+	 * Sets the number of consecutive transient errors of a service 
+	 * which opens its circuit breaker.<br>
+	 * While the circuit is open, calls to the service fail at once with 
+	 * {@link ServiceUnavailableException}, and calls made with the VO 
+	 * endpoints go to other WMProxy servers.
+	 * 
+	 * @param circuitBreakerThreshold circuit breaker threshold (0 disables circuit breakers)
+	 */
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	/**
+	 * Returns the time in seconds the circuit of a failing service stays open.
+	 * 
+	 * @return circuit open time in seconds
+	 */
+	public int getCircuitBreakerOpenTime() {
+		return circuitBreakerOpenTime;
+	}
+
+	/**
+	 * Sets the time in seconds the circuit of a failing service stays open 
+	 * before a trial call is made to the service.
+	 * 
+	 * @param circuitBreakerOpenTime circuit open time in seconds
+	 */
+	public void setCircuitBreakerOpenTime(int circuitBreakerOpenTime) {
+		this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+	}
+
+	private void addWMProxies(Map<String,List<String>> endpoints) {
+		for (Map.Entry<String,List<String>> entry : endpoints.entrySet()) {
+			wmProxies.put(entry.getKey(), entry.getValue().get(0));
+			wmProxyEndpoints.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+		}
+	}
+	
+	private Map<String,List<String>> readWMProxyEndpoints(String dir) {
+		if (configCache != null) {
+			return configCache.readWMProxyEndpoints(dir);
+		} else {
+			return WMSDirParser.readWMProxyEndpoints(dir);
+		}
+	}
 	
 }
\ No newline at end of file
@@ -16,6 +16,8 @@
 
 package jlite;
 
+import java.util.concurrent.Executor;
+
 /**
  * Mother of all grid sessions.
  * 
@@ -43,4 +45,28 @@ public class GridSessionFactory {
         return new GridSessionImpl(config);
 	}
 
+	/**
+	 * Creates an asynchronous grid session with custom configuration.<br>
+	 * Operations are executed by the default executor which runs 
+	 * a limited number of operations concurrently. 
+	 *
+	 * @param config
+	 * @return new asynchronous grid session
+	 */
+	public static AsyncGridSession createAsync(GridSessionConfig config) {
+		return createAsync(config, null);
+	}
+
+	/**
+	 * Creates an asynchronous grid session with custom configuration 
+	 * and executor.
+	 *
+	 * @param config
+	 * @param executor executor of the session operations
+	 * @return new asynchronous grid session
+	 */
+	public static AsyncGridSession createAsync(GridSessionConfig config, Executor executor) {
+		return new AsyncGridSessionImpl(create(config), config, executor);
+	}
+
 }
@@ -19,25 +19,45 @@ package jlite;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
 
+import jlite.util.JobRegistry;
 import jlite.util.LBServiceFix;
+import jlite.util.ThrottledExecutor;
 import jlite.util.Util;
+import jlite.util.VOMSProxyInfo;
 
 import org.apache.log4j.Logger;
 import org.glite.jdl.Ad;
 import org.glite.jdl.Jdl;
 import org.glite.jdl.JobAd;
-import org.glite.voms.VOMSAttribute;
-import org.glite.voms.VOMSValidator;
 import org.glite.voms.contact.VOMSProxyBuilder;
 import org.glite.voms.contact.VOMSProxyInit;
 import org.glite.voms.contact.VOMSRequestOptions;
@@ -46,29 +66,26 @@ import org.glite.wms.wmproxy.DestURIStructType;
 import org.glite.wms.wmproxy.JobIdStructType;
 import org.glite.wms.wmproxy.StringAndLongType;
 import org.glite.wms.wmproxy.WMProxyAPI;
-import org.glite.wsdl.services.lb.LoggingAndBookkeepingLocator;
-import org.glite.wsdl.services.lb.LoggingAndBookkeepingPortType;
 import org.glite.wsdl.types.lb.JobFlags;
 import org.glite.wsdl.types.lb.JobFlagsValue;
 import org.glite.wsdl.types.lb.JobStatus;
+import org.glite.wsdl.types.lb.Jobtype;
 import org.glite.wsdl.types.lb.StatName;
 import org.glite.wsdl.types.lb.StateEnterTimesItem;
 import org.globus.gsi.GSIConstants;
 import org.globus.gsi.GlobusCredential;
 import org.globus.gsi.GlobusCredentialException;
-import org.globus.gsi.gssapi.GlobusGSSCredentialImpl;
-import org.globus.io.urlcopy.UrlCopy;
-import org.globus.io.urlcopy.UrlCopyException;
-import org.globus.util.GlobusURL;
-import org.ietf.jgss.GSSCredential;
-import org.ietf.jgss.GSSException;
 
+import condor.classad.ClassAdParser;
 import condor.classad.Constant;
 import condor.classad.Expr;
 import condor.classad.ListExpr;
 
 /**
- * Default implementation of the {@link GridSession} interface.
+ * Default implementation of the {@link GridSession} interface.<br>
+ * The implementation is thread-safe: delegation identifiers and 
+ * WMProxy clients are kept in concurrent maps, and a WMProxy client 
+ * is created only once per server even if requested by several threads.
  * 
  * @author Oleg Sukhoroslov
  * @see GridSession
@@ -77,10 +94,49 @@ public class GridSessionImpl implements GridSession {
 	
     private static final Logger logger = Logger.getLogger(GridSessionImpl.class);
 	
+	// status parts requested for state checks
+	private static final JobFlagsValue[] STATE_FLAGS = {};
+	private static final JobFlagsValue[] CHILDREN_FLAGS = {JobFlagsValue.CHILDREN};
+	
+	// key of the upload stage tasks of bulk submission
+	private static final String UPLOAD_QUEUE = "upload";
+	
+	// node names of jobs bundled into a collection
+	private static final String NODE_NAME = "NodeName";
+	private static final String BUNDLE_NODE_PREFIX = "node";
+	
+	// minimum and maximum delays of proxy renewal attempts, in milliseconds
+	private static final long MIN_RENEWAL_DELAY = 60 * 1000;
+	private static final long MAX_RENEWAL_RETRY_DELAY = 15 * 60 * 1000;
+	
+	// maximum number of remembered WMProxy servers of jobs
+	private static final int MAX_JOB_WMPROXIES = 10000;
+	
 	private GridSessionConfig config;	
-	private GlobusCredential vomsProxy = null;
-	private Map<String,String> delegationIds;
-	private Map<String,WMProxyAPI> wmProxyClients;
+	private volatile GlobusCredential vomsProxy = null;
+	private volatile VOMSProxyInfo vomsProxyInfo = null;
+	private ConcurrentMap<String,String> delegationIds;
+	private ConcurrentMap<String,Future<WMProxyAPI>> wmProxyClients;
+	private WMSSelector wmsSelector = new WMSSelector();
+	private ServiceGuard serviceGuard;
+	// WMProxy servers of recently used jobs, map <job-id, endpoint>
+	private Map<String,String> jobWMProxies;
+	private LBClientRegistry lbClients;
+	private ThrottledExecutor statusExecutor;
+	private ThrottledExecutor transferExecutor;
+	private TransferEngine transferEngine;
+	private ThrottledExecutor submitExecutor;
+	private ThrottledExecutor uploadExecutor;
+	private StatusCache statusCache;
+	private StagingArea stagingArea;
+	private DelegationRegistry delegationRegistry;
+	// scheduled delegation renewals, map <endpoint|delegation-id, renewal>
+	private Map<String,TimerTask> delegationRenewals = new HashMap<String,TimerTask>();
+	// renews the proxy and delegations of the session in the background
+	private volatile Timer renewalTimer;
+	private final Object proxyRenewalLock = new Object();
+	private int proxyRenewalFailures = 0;
+	private volatile boolean closed = false;
 	
 	protected GridSessionImpl(GridSessionConfig config) {
 		this.config = config;
@@ -90,31 +146,50 @@ public class GridSessionImpl implements GridSession {
 		} else {
 			if ((new File(config.getProxyPath()).exists())) {
 				try {
-					vomsProxy = new GlobusCredential(config.getProxyPath());
+					vomsProxyInfo = VOMSProxyInfo.getFileInfo(config.getProxyPath());
+					vomsProxy = vomsProxyInfo.getProxy();
 				} catch (GlobusCredentialException e) {
 					e.printStackTrace();
 				}
 			}
 		}
 		
-		delegationIds = new HashMap<String,String>();			
-		wmProxyClients = new HashMap<String,WMProxyAPI>();		        
+		delegationIds = new ConcurrentHashMap<String,String>();			
+		// the least recently used jobs are forgotten in long-lived sessions
+		jobWMProxies = Collections.synchronizedMap(new LinkedHashMap<String,String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+				return size() > MAX_JOB_WMPROXIES;
+			}
+		});
+		serviceGuard = new ServiceGuard(config);
+		wmProxyClients = new ConcurrentHashMap<String,Future<WMProxyAPI>>();		        
+		lbClients = new LBClientRegistry(config.getLBVersionCacheTime());
+		if (config.getStatusCachePath() != null) {
+			statusCache = StatusCache.open(new File(config.getStatusCachePath()));
+		}
+		if (config.getProxySource() != null) {
+			scheduleProxyRenewal(getProxyRenewalDelay());
+		}
 	}
 
 	public void cancelJob(String jobId) throws GridAPIException {
-		String vo = readVOFromVOMSProxy();
-		if (config.getWMProxies().containsKey(vo)) {
-			String wmProxyURL = config.getWMProxies().get(vo);
-			cancelJob(wmProxyURL, jobId);
-		} else {
-			throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
-		}
+		cancelJob(getWMProxy(jobId), jobId);
+		jobWMProxies.remove(jobId);
 	}
 
-	public void cancelJob(String wmProxyURL, String jobId) throws GridAPIException {
+	public void cancelJob(String wmProxyURL, final String jobId) throws GridAPIException {
 		try {			
-			WMProxyAPI client = getWMProxyClient(wmProxyURL);
-			client.jobCancel(jobId);
+			final WMProxyAPI client = getWMProxyClient(wmProxyURL);
+			callService("wmproxy.jobCancel", wmProxyURL, jobId, false, new Callable<Void>() {
+				public Void call() throws Exception {
+					client.jobCancel(jobId);
+					return null;
+				}
+			});
+			if (statusCache != null) {
+				statusCache.remove(jobId);
+			}
 		} catch (Exception e) {
 			if (e instanceof GridAPIException) {
 				throw (GridAPIException)e;
@@ -129,12 +204,24 @@ public class GridSessionImpl implements GridSession {
 	}
 	
 	public GlobusCredential createProxy(String[] vomsArgs, int lifetime, int proxyType, boolean limited) throws GridAPIException {
+		return createProxy(config.getUserCredentials(), vomsArgs, lifetime, proxyType, limited);
+	}
+	
+	/**
+	 * Creates the proxy from the user credentials, or from the configured 
+	 * certificate and key files if the credentials are null.
+	 */
+	GlobusCredential createProxy(GlobusCredential userCred, String[] vomsArgs, int lifetime, int proxyType, 
+			boolean limited) throws GridAPIException {
+		GridEvents.ProxyCreation event = new GridEvents.ProxyCreation();
+		event.begin();
+		Exception error = null;
 		try {
 			VOMSProxyInit vomsProxyInit;
-			if (config.getUserCredentials() == null) {
+			if (userCred == null) {
 				vomsProxyInit = VOMSProxyInit.instance(config.getUserKeyPass());
 			} else {
-				vomsProxyInit = VOMSProxyInit.instance(config.getUserCredentials());
+				vomsProxyInit = VOMSProxyInit.instance(userCred);
 			}
 			if (config.getProxyPath() != null) {
 				vomsProxyInit.setProxyOutputFile(config.getProxyPath());
@@ -187,36 +274,93 @@ public class GridSessionImpl implements GridSession {
 	        vomsProxy = vomsProxyInit.getVomsProxy(optionsList);
 	        return vomsProxy;
 		} catch (Exception e) {
+			error = e;
 			if (e instanceof GridAPIException) {
 				throw (GridAPIException)e;
 			} else {
 				throw new GridAPIException(e);
 			}
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.vomsArgs = Arrays.toString(vomsArgs);
+				event.lifetime = lifetime;
+				event.success = error == null;
+				event.error = GridEvents.getError(error);
+				event.commit();
+			}
 		}
 	}
 
 	public void delegateProxy(String delegationId) throws GridAPIException {
-		String vo = readVOFromVOMSProxy();
-		if (config.getWMProxies().containsKey(vo)) {
-			String wmProxyURL = config.getWMProxies().get(vo);
-			delegateProxy(wmProxyURL, delegationId);
-		} else {
-			throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
-		}
+		delegateProxy(delegationId, false);
+	}
+	
+	public void delegateProxy(final String delegationId, final boolean force) throws GridAPIException {
+		callWMProxy(new WMProxyCall<Void>() {
+			Void call(String wmProxyURL) throws GridAPIException {
+				delegateProxy(wmProxyURL, delegationId, force);
+				return null;
+			}
+		});
 	}
 	
 	public void delegateProxy(String wmProxyURL, String delegationId) throws GridAPIException {
+		delegateProxy(wmProxyURL, delegationId, false);
+	}
+	
+	public void delegateProxy(String wmProxyURL, final String delegationId, boolean force) throws GridAPIException {
+		GridEvents.Delegation event = new GridEvents.Delegation();
+		event.begin();
+		boolean reused = false;
+		Exception error = null;
 		try {
-			WMProxyAPI client = getWMProxyClient(wmProxyURL);
-			String proxy = client.grstGetProxyReq(delegationId);
-			client.grstPutProxy(delegationId, proxy);
+			VOMSProxyInfo proxyInfo = getVOMSProxyInfo();
+			DelegationRegistry registry = getDelegationRegistry();
+			if (registry != null && proxyInfo != null && !force) {
+				long expiry = registry.getExpiry(wmProxyURL, delegationId, getProxyIdentity(proxyInfo));
+				if (!isDelegationRequired(expiry, proxyInfo.getExpiryTime())) {
+					logger.debug("Proxy is already delegated to " + wmProxyURL + " with id " 
+							+ delegationId + " until " + new Date(expiry));
+					delegationIds.put(wmProxyURL, delegationId);
+					scheduleDelegationRenewal(wmProxyURL, delegationId, expiry);
+					reused = true;
+					return;
+				}
+			}
+			
+			final WMProxyAPI client = getWMProxyClient(wmProxyURL);
+			// a new proxy request is made on each attempt
+			callService("wmproxy.delegateProxy", wmProxyURL, null, true, new Callable<Void>() {
+				public Void call() throws Exception {
+					String proxy = client.grstGetProxyReq(delegationId);
+					client.grstPutProxy(delegationId, proxy);
+					return null;
+				}
+			});
 			delegationIds.put(wmProxyURL, delegationId);
+			
+			if (registry != null && proxyInfo != null) {
+				registry.put(wmProxyURL, delegationId, getProxyIdentity(proxyInfo), proxyInfo.getExpiryTime());
+				scheduleDelegationRenewal(wmProxyURL, delegationId, proxyInfo.getExpiryTime());
+			}
 		} catch (Exception e) {
+			error = e;
 			if (e instanceof GridAPIException) {
 				throw (GridAPIException)e;
 			} else {
 				throw new GridAPIException(e);
 			}
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.endpoint = wmProxyURL;
+				event.delegationId = delegationId;
+				event.reused = reused;
+				event.success = error == null;
+				event.error = GridEvents.getError(error);
+				event.commit();
+			}
 		}
 	}
 	
@@ -233,49 +377,43 @@ public class GridSessionImpl implements GridSession {
 	}
 
 	public void getJobOutput(String jobId, String outputDir, boolean purge) throws GridAPIException {
-		String vo = readVOFromVOMSProxy();
-		if (config.getWMProxies().containsKey(vo)) {
-			String wmProxyURL = config.getWMProxies().get(vo);
-			getJobOutput(wmProxyURL, jobId, outputDir, purge);
-		} else {
-			throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
+		getJobOutput(getWMProxy(jobId), jobId, outputDir, purge);
+		if (purge) {
+			jobWMProxies.remove(jobId);
 		}
 	}
 	
-	public void getJobOutput(String wmProxyURL, String jobId, String outputDir, boolean purge) throws GridAPIException {
+	public void getJobOutput(String wmProxyURL, final String jobId, String outputDir, boolean purge) throws GridAPIException {
 		try {			
-            JobStatus status = getJobStatus(jobId);
+			// check the state first, the full status is needed for collections only
+            JobStatus status = getJobStatus(jobId, STATE_FLAGS);
             StatName currState = status.getState();
             if (currState.equals(StatName.DONE)) {
             	
+            	if (status.getChildrenStates() == null && (status.getChildrenNum() > 0 
+            			|| Jobtype.COLLECTION.equals(status.getJobtype()) || Jobtype.DAG.equals(status.getJobtype()))) {
+            		status = getJobStatus(jobId);
+            	}
+            	
                 File dir = new File(outputDir);
                 if (!dir.exists()) {
                 	dir.mkdirs();
                 }
             
-				WMProxyAPI client = getWMProxyClient(wmProxyURL);
+				final WMProxyAPI client = getWMProxyClient(wmProxyURL);
 	            String[] children = status.getChildren();            
 	            
+	            // map <local-directory, output-file-URIs>
+	            Map<String,List<String>> outputs = new LinkedHashMap<String,List<String>>();
+	            
 	            if (children == null || children.length == 0) { // no children
 	            	
-	    			List<String> files = new ArrayList<String>();
-	    	        StringAndLongType[] fileInfo = client.getOutputFileList(jobId, "gsiftp").getFile();
-	    	        for (StringAndLongType file : fileInfo) {
-	    	        	files.add(file.getName());    
-	    	        }
-	    	        downloadFilesFromGridFTP(files, outputDir);
-	    	        logger.debug("Downloaded " + files.size() + " output files");
+	    	        outputs.put(outputDir, listOutputFiles(wmProxyURL, client, jobId));
 	            	
 	            } else { // download children outputs
 	            	
+	            	List<List<String>> childrenFiles = listOutputFiles(wmProxyURL, client, children);
 	            	for (int i=0; i<children.length; i++) {
-	            		String child = children[i];
-	        			List<String> files = new ArrayList<String>();
-	        	        StringAndLongType[] fileInfo = client.getOutputFileList(child, "gsiftp").getFile();
-	        	        for (StringAndLongType file : fileInfo) {
-	        	        	files.add(file.getName());		            
-	        	        }
-	        	        
 	        	        String jobName = "job" + (i+1); // by default
 	    	    		JobAd jdl = new JobAd(status.getChildrenStates(i).getJdl());
 	    	    		if (jdl.hasAttribute("NodeName")) {
@@ -284,15 +422,40 @@ public class GridSessionImpl implements GridSession {
 	    	    		
 	        	        File childDir = new File(outputDir + "/" + jobName);
 	        	        childDir.mkdirs();
-	        	        downloadFilesFromGridFTP(files, childDir.getAbsolutePath());
-	        	        logger.debug("Downloaded " + files.size() + 
-	        	        		" output files for child job " + (i+1) + ": " + child);
+	        	        List<String> files = outputs.get(childDir.getAbsolutePath());
+	        	        if (files == null) {
+	        	        	files = new ArrayList<String>();
+	        	        	outputs.put(childDir.getAbsolutePath(), files);
+	        	        }
+	        	        files.addAll(childrenFiles.get(i));
+	        	        logger.debug("Found " + childrenFiles.get(i).size() + 
+	        	        		" output files for child job " + (i+1) + ": " + children[i]);
 	            	}
 	            	
 	            }
+	            
+	            // all files are downloaded together
+	            getTransferEngine().download(outputs, vomsProxy);
+	            int filesCount = 0;
+	            for (Map.Entry<String,List<String>> output : outputs.entrySet()) {
+	            	filesCount += output.getValue().size();
+	            	// a job of a session without packing may return a file of the same name
+	            	if (config.getSandboxPackThreshold() > 0) {
+	            		SandboxPacking.unpackOutput(new File(output.getKey()));
+	            	}
+	            }
+	            logger.debug("Downloaded " + filesCount + " output files");
 	
 	            if (purge) {
-	            	client.jobPurge(jobId);
+	            	callService("wmproxy.jobPurge", wmProxyURL, jobId, false, new Callable<Void>() {
+	            		public Void call() throws Exception {
+	            			client.jobPurge(jobId);
+	            			return null;
+	            		}
+	            	});
+	            	if (statusCache != null) {
+	            		statusCache.remove(jobId);
+	            	}
 	            }
 	            
             } else {
@@ -309,7 +472,7 @@ public class GridSessionImpl implements GridSession {
 
 	public String getJobState(String jobId) throws GridAPIException {
 		try {
-			return getJobStatus(jobId).getState().getValue();
+			return getJobStatus(jobId, STATE_FLAGS).getState().getValue();
 		} catch (Exception e) {
 			if (e instanceof GridAPIException) {
 				throw (GridAPIException)e;
@@ -321,43 +484,139 @@ public class GridSessionImpl implements GridSession {
 	
 	public JobStatus getJobStatus(String jobId) throws GridAPIException {
 		try {
-			URL jobUrl = new URL(jobId);
-			URL lbServiceURL = new URL(jobUrl.getProtocol(), jobUrl.getHost(), 9003, "");
-			LoggingAndBookkeepingLocator locator = new LoggingAndBookkeepingLocator();
-			LoggingAndBookkeepingPortType lbService = locator.getLoggingAndBookkeeping(lbServiceURL);
-			String lbServiceVersion = lbService.getVersion(null);
+			return getFullJobStatus(jobId, false);
+		} catch (Exception e) {
+			if (e instanceof GridAPIException) {
+				throw (GridAPIException)e;
+			} else {
+				throw new GridAPIException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the full job status requested from LB, or the cached status if allowed.<br>
+	 * Full statuses retrieved from LB are cached.
+	 */
+	private JobStatus getFullJobStatus(final String jobId, boolean cached) throws Exception {
+		if (cached && statusCache != null) {
+			JobStatus status = statusCache.get(jobId);
+			if (status != null) {
+				return status;
+			}
+		}
+		
+		final LBClientRegistry.LBClient lbClient = lbClients.getClient(jobId);
+		JobStatus status = callService("lb.jobStatus", lbClient.getServiceURL().toString(), jobId, true,
+				new Callable<JobStatus>() {
+			public JobStatus call() throws Exception {
+				return fixJobStatus(lbClient, lbClient.getService().jobStatus(jobId, getStatusFlags()));
+			}
+		});
+		if (statusCache != null) {
+			statusCache.put(Collections.singletonMap(jobId, status), config.getStatusCacheTTL());
+		}
+		return status;
+	}
+	
+	public Map<String,JobStatus> getJobStatuses(Collection<String> jobIds) throws GridAPIException {
+		return getJobStatuses(jobIds, false, false);
+	}
+	
+	public Map<String,JobStatus> getJobStatuses(Collection<String> jobIds, boolean stateOnly) 
+			throws GridAPIException {
+		// cached statuses contain the state, while full statuses are requested complete
+		return getJobStatuses(jobIds, stateOnly, stateOnly);
+	}
+	
+	public Map<String,JobStatus> getJobSummaries(Collection<String> jobIds) throws GridAPIException {
+		return getJobStatuses(jobIds, false, true);
+	}
+	
+	/**
+	 * Retrieves the statuses of several jobs, full or state-only, 
+	 * taking the statuses from the job status cache if allowed.
+	 */
+	private Map<String,JobStatus> getJobStatuses(Collection<String> jobIds, final boolean stateOnly, 
+			final boolean cached) throws GridAPIException {
+		try {
+			// take cached statuses first
+			Map<String,JobStatus> statuses = new HashMap<String,JobStatus>();
+			if (cached && statusCache != null) {
+				statuses.putAll(statusCache.getAll(jobIds));
+			}
 			
-			if (logger.isDebugEnabled()) {
-				logger.debug("LB Service URL: " + lbServiceURL);
-				logger.debug("LB Service Version: " + lbServiceVersion);
+			// group the other jobs by LB server
+			Map<LBClientRegistry.LBClient,List<String>> lbJobs = 
+				new LinkedHashMap<LBClientRegistry.LBClient,List<String>>();
+			for (String jobId : jobIds) {
+				if (statuses.containsKey(jobId)) {
+					continue;
+				}
+				LBClientRegistry.LBClient lbClient = lbClients.getClient(jobId);
+				List<String> ids = lbJobs.get(lbClient);
+				if (ids == null) {
+					ids = new ArrayList<String>();
+					lbJobs.put(lbClient, ids);
+				}
+				if (!ids.contains(jobId)) {
+					ids.add(jobId);
+				}
 			}
-	        
-			JobFlags flags = new JobFlags();    
-	        flags.setFlag( new JobFlagsValue[] { JobFlagsValue.CLASSADS, JobFlagsValue.CHILDREN, JobFlagsValue.CHILDSTAT } );
-			JobStatus status = lbService.jobStatus(jobId, flags);
 			
-			// if LB version < 1.7.1 fix the status names
-			String[] versionParts = lbServiceVersion.split("\\.");
-			if (Integer.parseInt(versionParts[0]) == 1 && (Integer.parseInt(versionParts[1]) < 7 ||
-					(Integer.parseInt(versionParts[1]) == 7 && Integer.parseInt(versionParts[2]) < 1))) {
-				logger.debug("Using fix for LB job status history");
-				status = LBServiceFix.fixJobStatus(status); 
+			// request all LB servers concurrently, first with multi-job queries
+			List<Future<Map<String,JobStatus>>> queries = new ArrayList<Future<Map<String,JobStatus>>>();
+			for (Map.Entry<LBClientRegistry.LBClient,List<String>> entry : lbJobs.entrySet()) {
+				final LBClientRegistry.LBClient lbClient = entry.getKey();
+				List<String> ids = entry.getValue();
+				if (ids.size() > 1) {
+					int batchSize = Math.max(1, config.getLBQueryBatchSize());
+					for (int i=0; i<ids.size(); i+=batchSize) {
+						final List<String> batch = ids.subList(i, Math.min(i + batchSize, ids.size()));
+						queries.add(getStatusExecutor().submit(lbClient.getServiceURL().getHost(), 
+								new Callable<Map<String,JobStatus>>() {
+							public Map<String,JobStatus> call() throws Exception {
+								return queryJobStatuses(lbClient, batch, stateOnly);
+							}
+						}));
+					}
+				}
+			}
+			for (Map<String,JobStatus> result : waitForAll(queries)) {
+				statuses.putAll(result);
+				// state-only statuses are not cached, since the cache also serves summaries with children
+				if (statusCache != null && !stateOnly) {
+					statusCache.put(result, config.getStatusCacheTTL());
+				}
 			}
 			
-			// remove state enter times with wrong chronology (a bug in LB WS?)
-			List<StateEnterTimesItem> newItems = new ArrayList<StateEnterTimesItem>();
-			long prevTime = 0;
-			for (StateEnterTimesItem item : status.getStateEnterTimes()) {
-				long currTime = item.getTime().getTimeInMillis();
-				if (prevTime == 0 || currTime > prevTime) {
-					newItems.add(item);
-					prevTime = currTime;
+			// request the remaining jobs one by one
+			List<String> requestedIds = new ArrayList<String>();
+			List<Future<JobStatus>> requests = new ArrayList<Future<JobStatus>>();
+			for (Map.Entry<LBClientRegistry.LBClient,List<String>> entry : lbJobs.entrySet()) {
+				for (final String jobId : entry.getValue()) {
+					if (!statuses.containsKey(jobId)) {
+						requestedIds.add(jobId);
+						requests.add(getStatusExecutor().submit(entry.getKey().getServiceURL().getHost(), 
+								new Callable<JobStatus>() {
+							public JobStatus call() throws Exception {
+								return stateOnly ? getJobStatus(jobId, STATE_FLAGS) : getFullJobStatus(jobId, cached);
+							}
+						}));
+					}
 				}
 			}
-			status.setStateEnterTimes(newItems.toArray(new StateEnterTimesItem[]{}));
+			List<JobStatus> results = waitForAll(requests);
+			for (int i=0; i<results.size(); i++) {
+				statuses.put(requestedIds.get(i), results.get(i));
+			}
 			
-
-			return status;
+			// keep the order of requested jobs
+			Map<String,JobStatus> result = new LinkedHashMap<String,JobStatus>();
+			for (String jobId : jobIds) {
+				result.put(jobId, statuses.get(jobId));
+			}
+			return result;
 		} catch (Exception e) {
 			if (e instanceof GridAPIException) {
 				throw (GridAPIException)e;
@@ -371,21 +630,140 @@ public class GridSessionImpl implements GridSession {
 		return vomsProxy;
 	}
 	
-	public List<String> listJobOutput(String jobId) throws GridAPIException {
-		String vo = readVOFromVOMSProxy();
-		if (config.getWMProxies().containsKey(vo)) {
-			String wmProxyURL = config.getWMProxies().get(vo);
-			return listJobOutput(wmProxyURL, jobId);
-		} else {
-			throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
+	public GlobusCredential renewProxy() throws GridAPIException {
+		ProxySource proxySource = config.getProxySource();
+		if (proxySource == null) {
+			throw new GridAPIException("Proxy source is not configured");
+		}
+		GlobusCredential proxy;
+		synchronized (proxyRenewalLock) {
+			proxy = proxySource.getProxy(this, config);
+			replaceProxy(proxy);
+		}
+		
+		// delegations of the previous proxy expire with it
+		GridAPIException error = null;
+		for (Map.Entry<String,String> delegation : delegationIds.entrySet()) {
+			try {
+				delegateProxy(delegation.getKey(), delegation.getValue(), true);
+				logger.debug("Delegated renewed proxy to " + delegation.getKey());
+			} catch (GridAPIException e) {
+				logger.warn("Could not delegate renewed proxy to " + delegation.getKey() + ": " + e.getMessage());
+				if (error == null) {
+					error = e;
+				}
+			}
 		}
+		if (error != null) {
+			throw error;
+		}
+		return proxy;
+	}
+	
+	/**
+	 * Replaces the session proxy.<br>
+	 * WMProxy clients are created again with the new proxy, while the 
+	 * clients used by operations in progress keep the previous proxy. 
+	 * GridFTP connections are replaced by the transfer engine 
+	 * on the next transfer. The proxy file is replaced too, 
+	 * so that LB queries and other processes use the new proxy.
+	 */
+	private void replaceProxy(GlobusCredential proxy) throws GridAPIException {
+		VOMSProxyInfo proxyInfo = new VOMSProxyInfo(proxy);
+		if (config.getProxy() != null) {
+			config.setProxy(proxy);
+		} else if (config.getProxyPath() != null) {
+			saveProxy(proxy, new File(config.getProxyPath()));
+		}
+		vomsProxyInfo = proxyInfo;
+		vomsProxy = proxy;
+		wmProxyClients.clear();
+		logger.info("Renewed proxy, time left: " + proxyInfo.getTimeLeft() + " s");
+	}
+	
+	/**
+	 * Writes the proxy file at once, readable by the owner only.
+	 */
+	private static void saveProxy(GlobusCredential proxy, File file) throws GridAPIException {
+		try {
+			File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+			try {
+				tmpFile.setReadable(false, false);
+				tmpFile.setReadable(true, true);
+				OutputStream out = new FileOutputStream(tmpFile);
+				try {
+					proxy.save(out);
+				} finally {
+					out.close();
+				}
+				if (!tmpFile.renameTo(file)) {
+					file.delete();
+					if (!tmpFile.renameTo(file)) {
+						throw new GridAPIException("Could not write proxy file: " + file);
+					}
+				}
+			} finally {
+				tmpFile.delete();
+			}
+		} catch (IOException e) {
+			throw new GridAPIException(e);
+		}
+	}
+	
+	/**
+	 * Schedules renewal of the session proxy.<br>
+	 * Failed renewals are retried with increasing delays.
+	 */
+	private synchronized void scheduleProxyRenewal(long delay) {
+		if (closed) {
+			return;
+		}
+		getRenewalTimer().schedule(new TimerTask() {
+			public void run() {
+				long nextDelay;
+				try {
+					renewProxy();
+					proxyRenewalFailures = 0;
+					nextDelay = getProxyRenewalDelay();
+				} catch (Throwable e) {
+					proxyRenewalFailures++;
+					logger.warn("Proxy renewal failed (attempt " + proxyRenewalFailures + "): " + e.getMessage());
+					nextDelay = Math.min(MIN_RENEWAL_DELAY << Math.min(proxyRenewalFailures - 1, 10), 
+							MAX_RENEWAL_RETRY_DELAY);
+				}
+				scheduleProxyRenewal(nextDelay);
+			}
+		}, delay);
+	}
+	
+	private synchronized Timer getRenewalTimer() {
+		if (renewalTimer == null) {
+			renewalTimer = new Timer("jlite-renewal", true);
+		}
+		return renewalTimer;
+	}
+	
+	/**
+	 * Returns the time until the session proxy is to be renewed.
+	 */
+	private long getProxyRenewalDelay() {
+		GlobusCredential proxy = vomsProxy;
+		if (proxy == null) {
+			return 0;
+		}
+		long delay = proxy.getTimeLeft() * 1000 - config.getProxyRenewalMargin() * 1000L;
+		return Math.max(delay, MIN_RENEWAL_DELAY);
+	}
+	
+	public List<String> listJobOutput(String jobId) throws GridAPIException {
+		return listJobOutput(getWMProxy(jobId), jobId);
 	}
 
 	public List<String> listJobOutput(String wmProxyURL, String jobId)
 			throws GridAPIException {
 		try {
 			List<String> files = new ArrayList<String>();
-            JobStatus status = getJobStatus(jobId);
+            JobStatus status = getJobStatus(jobId, CHILDREN_FLAGS);
             StatName currState = status.getState();
             if (currState.equals(StatName.DONE)) {
             
@@ -394,19 +772,12 @@ public class GridSessionImpl implements GridSession {
 	            
 	            if (children == null || children.length == 0) { // no children
 	            	
-	    	        StringAndLongType[] fileInfo = client.getOutputFileList(jobId, "gsiftp").getFile();
-	    	        for (StringAndLongType file : fileInfo) {
-	    	        	files.add(file.getName());    
-	    	        }
+	    	        files.addAll(listOutputFiles(wmProxyURL, client, jobId));
 	            	
 	            } else { // children outputs
 	            	
-	            	for (int i=0; i<children.length; i++) {
-	            		String child = children[i];
-	        	        StringAndLongType[] fileInfo = client.getOutputFileList(child, "gsiftp").getFile();
-	        	        for (StringAndLongType file : fileInfo) {
-	        	        	files.add(file.getName());		            
-	        	        }
+	            	for (List<String> childFiles : listOutputFiles(wmProxyURL, client, children)) {
+	            		files.addAll(childFiles);
 	            	}
 	            	
 	            }
@@ -424,30 +795,36 @@ public class GridSessionImpl implements GridSession {
 		}		
 	}
 
-	public List<MatchedCE> listMatchedCE(String jdl) throws GridAPIException {
-		String vo = readVOFromVOMSProxy();
-		if (config.getWMProxies().containsKey(vo)) {
-			String wmProxyURL = config.getWMProxies().get(vo);
-			return listMatchedCE(wmProxyURL, jdl);
-		} else {
-			throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
-		}
+	public List<MatchedCE> listMatchedCE(final String jdl) throws GridAPIException {
+		return callWMProxy(new WMProxyCall<List<MatchedCE>>() {
+			List<MatchedCE> call(String wmProxyURL) throws GridAPIException {
+				return listMatchedCE(wmProxyURL, jdl);
+			}
+		});
 	}
 	
-	public List<MatchedCE> listMatchedCE(String wmProxyURL, String jdl) throws GridAPIException {
-		if (delegationIds.containsKey(wmProxyURL) || config.getDelegationId() != null) {
+	public List<MatchedCE> listMatchedCE(String wmProxyURL, final String jdl) throws GridAPIException {
+		final String delegationId = getDelegationId(wmProxyURL);
+		if (delegationId != null) {
 			try {
 				List<MatchedCE> ces = new ArrayList<MatchedCE>();
-				WMProxyAPI client = getWMProxyClient(wmProxyURL);
-				String delegationId = delegationIds.containsKey(wmProxyURL)?
-						delegationIds.get(wmProxyURL):config.getDelegationId();
-		        StringAndLongType[] matchedCEs = client.jobListMatch(jdl, delegationId).getFile();
+				final WMProxyAPI client = getWMProxyClient(wmProxyURL);
+		        StringAndLongType[] matchedCEs = callDelegated("wmproxy.jobListMatch", wmProxyURL, delegationId, true,
+		        		new Callable<StringAndLongType[]>() {
+		        	public StringAndLongType[] call() throws Exception {
+		        		return client.jobListMatch(jdl, delegationId).getFile();
+		        	}
+		        });
 		        for (StringAndLongType ce : matchedCEs) {		        	
 		            ces.add(new MatchedCE(ce.getName(), ce.getSize()));
 		        }
 		        return ces;
 			} catch (Exception e) {
-				throw new GridAPIException(e);
+				if (e instanceof GridAPIException) {
+					throw (GridAPIException)e;
+				} else {
+					throw new GridAPIException(e);
+				}
 			}
 		} else {
 			throw new GridAPIException("Could not find delegationId for WMProxy server: " + wmProxyURL);
@@ -458,192 +835,195 @@ public class GridSessionImpl implements GridSession {
 		return submitJob(jdl, null);
 	}	
 
-	public String submitJob(String jdl, String inputDir) throws GridAPIException {
-		String vo = readVOFromVOMSProxy();
-		if (config.getWMProxies().containsKey(vo)) {
-			String wmProxyURL = config.getWMProxies().get(vo);
-			return submitJob(wmProxyURL, jdl, inputDir);
-		} else {
-			throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
-		}	
+	public String submitJob(final String jdl, final String inputDir) throws GridAPIException {
+		return callWMProxy(new WMProxyCall<String>() {
+			private Submission submission;
+			
+			String call(String wmProxyURL) throws GridAPIException {
+				submission = new Submission(jdl);
+				return submitJob(wmProxyURL, submission, inputDir);
+			}
+			
+			// the job registered before the failure is not submitted again
+			boolean isRepeatable(GridAPIException e) {
+				return submission.jobId == null && super.isRepeatable(e);
+			}
+		});
 	}
 	
 	public String submitJob(String wmProxyURL, String jdl, String inputDir) throws GridAPIException {
-		if (delegationIds.containsKey(wmProxyURL) || config.getDelegationId() != null) {
+		return submitJob(wmProxyURL, new Submission(jdl), inputDir);
+	}
+	
+	private String submitJob(String wmProxyURL, Submission submission, String inputDir) throws GridAPIException {
+		String delegationId = getDelegationId(wmProxyURL);
+		if (delegationId != null) {
 			try {
 				WMProxyAPI client = getWMProxyClient(wmProxyURL);				
-				String delegationId = delegationIds.containsKey(wmProxyURL)?
-						delegationIds.get(wmProxyURL):config.getDelegationId();
-				JobIdStructType job = null;
-				String jobId = null;
-				
-				JobAd jobAd = new JobAd(jdl);
-				logger.debug("Sumbitting JDL: " + jdl);
-				
-				// determine request type (default is "Job")
-				String requestType = Jdl.TYPE_JOB;
-				if (jobAd.hasAttribute(Jdl.TYPE)) {
-					requestType = jobAd.getString(Jdl.TYPE);
+				try {
+					prepareSubmission(submission, inputDir);
+					registerJob(wmProxyURL, client, submission, delegationId);
+					setWMProxy(submission, wmProxyURL);
+					if (!submission.started) {
+						uploadInputFiles(submission);
+						startJob(wmProxyURL, client, submission);
+					}
+				} finally {
+					submission.cleanup();
+				}
+		        return submission.jobId;
+			} catch (Exception e) {
+				if (e instanceof GridAPIException) {
+					throw (GridAPIException)e;
+				} else {
+					throw new GridAPIException(e);
 				}
-				logger.debug("Request type: " + requestType);
+			}
+		} else {
+			throw new GridAPIException("Could not find delegationId for WMProxy server: " + wmProxyURL);
+		}
+	}
+	
+	public List<SubmittedJob> submitJobs(List<String> jdls, String inputDir) throws GridAPIException {
+		SubmittedJob[] jobs = new SubmittedJob[jdls.size()];
+		// positions of jobs to submit to the next server
+		List<Integer> pending = new ArrayList<Integer>();
+		for (int i=0; i<jdls.size(); i++) {
+			pending.add(i);
+		}
+		GridAPIException error = null;
+		boolean submitted = false;
+		for (String wmProxyURL : selectWMProxies()) {
+			List<String> pendingJdls = new ArrayList<String>();
+			for (int index : pending) {
+				pendingJdls.add(jdls.get(index));
+			}
+			long start = System.currentTimeMillis();
+			List<SubmittedJob> results;
+			try {
+				prepareDelegation(wmProxyURL);
+				results = submitJobs(wmProxyURL, pendingJdls, inputDir);
+			} catch (GridAPIException e) {
+				boolean unavailable = isUnavailable(e);
+				wmsSelector.record(wmProxyURL, System.currentTimeMillis() - start, unavailable);
+				if (!unavailable) {
+					throw e;
+				}
+				logger.warn("WMProxy server " + wmProxyURL + " is unavailable: " + e.getMessage());
+				error = e;
+				continue;
+			}
+			submitted = true;
+			
+			// jobs which were not registered due to connection errors are submitted to the next server
+			List<Integer> failed = new ArrayList<Integer>();
+			for (int i=0; i<results.size(); i++) {
+				SubmittedJob job = results.get(i);
+				jobs[pending.get(i)] = job;
+				if (job.getJobId() == null && job.getError() != null && isUnavailable(job.getError())) {
+					failed.add(pending.get(i));
+				}
+			}
+			wmsSelector.record(wmProxyURL, (System.currentTimeMillis() - start) / Math.max(1, pending.size()), 
+					!failed.isEmpty());
+			if (failed.isEmpty()) {
+				break;
+			}
+			logger.warn("WMProxy server " + wmProxyURL + " failed to accept " + failed.size() + " job(s)");
+			pending = failed;
+		}
+		if (!submitted) {
+			throw error;
+		}
+		return Arrays.asList(jobs);
+	}
+	
+	public List<SubmittedJob> submitJobs(final String wmProxyURL, List<String> jdls, final String inputDir) 
+			throws GridAPIException {
+		final String delegationId = getDelegationId(wmProxyURL);
+		if (delegationId != null) {
+			try {
+				final WMProxyAPI client = getWMProxyClient(wmProxyURL);
+				String wmProxyHost = new URL(wmProxyURL).getHost();
 				
-				if (requestType.equalsIgnoreCase(Jdl.TYPE_JOB)) { // JOB
-
-					// determine job type (default is "Normal")
-					String jobType = Jdl.JOBTYPE_NORMAL;
-					if (jobAd.hasAttribute(Jdl.JOBTYPE)) {
-						jobType = (String)jobAd.getStringValue(Jdl.JOBTYPE).get(0);
-					}
-					logger.debug("Job type: " + jobType);
-					
-					List<File> filesToUpload = new ArrayList<File>();
+				// limits the number of jobs which are registered but not started yet
+				final Semaphore pipeline = new Semaphore(Math.max(1, config.getSubmitPipelineDepth()));
+				
+				List<Submission> submissions = bundleJobs(jdls, config.getSubmitBundleSize());
+				List<CompletableFuture<Void>> completions = new ArrayList<CompletableFuture<Void>>();
+				for (final Submission submission : submissions) {
+					pipeline.acquire();
+					final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+					completions.add(completion);
 					
-					if (jobType.equalsIgnoreCase(Jdl.JOBTYPE_NORMAL)) { // Normal
-						
-						filesToUpload = Util.getLocalInputSandboxFiles(jobAd, inputDir);
-						
-					} else if (jobType.equalsIgnoreCase(Jdl.JOBTYPE_INTERACTIVE)) { // Interactive
-						
-						throw new GridAPIException("Unsupported JDL job type: " + jobType);
-						
-					} else if (jobType.equalsIgnoreCase(Jdl.JOBTYPE_MPICH)) { // MPICH
-						
-						throw new GridAPIException("Unsupported JDL job type: " + jobType);
-						
-					} else if (jobType.equalsIgnoreCase(Jdl.JOBTYPE_PARAMETRIC)) { // Parametric
-						
-						if (jobAd.hasAttribute(Jdl.PARAMETRIC_PARAMS)) {
-							
-							// Create parameters list
-							List<String> params = new ArrayList<String>();							
-							Expr paramsExpr = jobAd.lookup(Jdl.PARAMETRIC_PARAMS);							
-							if (paramsExpr instanceof Constant) { // single integer value
-								int paramsAtt = ((Constant)paramsExpr).intValue();
-								int paramsStartAtt = 0; // default value
-								if (jobAd.hasAttribute(Jdl.PARAMETRIC_PARAMS_START)) {
-									paramsStartAtt = jobAd.getInt(Jdl.PARAMETRIC_PARAMS_START);
-								}
-								int paramsStepAtt = 1; // default value
-								if (jobAd.hasAttribute(Jdl.PARAMETRIC_PARAMS_STEP)) {
-									paramsStepAtt = jobAd.getInt(Jdl.PARAMETRIC_PARAMS_STEP);
-								}
-								for (int i=paramsStartAtt; i<paramsAtt; i+=paramsStepAtt) {
-									params.add(String.valueOf(i));
-								}
-							} else if (paramsExpr instanceof ListExpr) { // parameters list
-								System.out.println(jobAd.lookup(Jdl.PARAMETRIC_PARAMS).getClass().getName());
-								Iterator<Expr> iParams = ((ListExpr)jobAd.lookup(Jdl.PARAMETRIC_PARAMS)).iterator();
-								while (iParams.hasNext()) {
-									params.add(iParams.next().toString());
+					// register the job, then upload its files and start it, 
+					// while the next jobs are being registered
+					getSubmitExecutor().submit(wmProxyHost, new Callable<Void>() {
+						public Void call() throws Exception {
+							try {
+								if (submission.error != null) {
+									throw submission.error;
 								}
+								prepareSubmission(submission, inputDir);
+								registerJob(wmProxyURL, client, submission, delegationId);
+							} catch (Exception e) {
+								submission.error = e;
 							}
-
-							// Create local input files list
-							List<File> isbFiles = Util.getLocalInputSandboxFiles(jobAd, inputDir);
-							for (File file : isbFiles) {
-								if (file.getAbsolutePath().indexOf("_PARAM_") >= 0) {
-									for (String param : params) {
-										File paramFile = new File(
-												file.getAbsolutePath().replaceAll("_PARAM_", param));
-										filesToUpload.add(paramFile);
+							if (submission.started || submission.error != null) {
+								submission.cleanup();
+								pipeline.release();
+								completion.complete(null);
+								return null;
+							}
+							getUploadExecutor().submit(UPLOAD_QUEUE, new Callable<Void>() {
+								public Void call() throws Exception {
+									try {
+										uploadInputFiles(submission);
+										startJob(wmProxyURL, client, submission);
+									} catch (Exception e) {
+										submission.error = e;
+									} finally {
+										submission.cleanup();
+										pipeline.release();
+										completion.complete(null);
 									}
-								} else {
-									filesToUpload.add(file);
+									return null;
 								}
-							}
-							
-						} else {
-							throw new GridAPIException("Parametric job description must contain Parameters attribute");
-						}												
-					} else {
-						throw new GridAPIException("Unknown JDL job type: " + jobType);
+							}).exceptionally(rejectSubmission(submission, pipeline, completion));
+							return null;
+						}
+					}).exceptionally(rejectSubmission(submission, pipeline, completion));
+				}
+				CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[completions.size()])).get();
+				
+				// map results of the submissions (and children of bundles) to the original jobs
+				SubmittedJob[] jobs = new SubmittedJob[jdls.size()];
+				for (Submission submission : submissions) {
+					GridAPIException error = null;
+					if (submission.error instanceof GridAPIException) {
+						error = (GridAPIException)submission.error;
+					} else if (submission.error != null) {
+						error = new GridAPIException(submission.error);
 					}
-					
-					if (filesToUpload.size() == 0) { // no files to upload, just submit job
-						
-						job = client.jobSubmit(jdl, delegationId);
-						jobId = job.getId();
-						logger.debug("Submitted job: " + jobId);
-						
-					} else { // register job, upload files to input sandbox, start job
-						
-						job = client.jobRegister(jdl, delegationId);
-						jobId = job.getId();
-						logger.debug("Registered job: " + jobId);
-						
-						String[] destURIs = client.getSandboxDestURI(jobId, "gsiftp").getItem();
-						String gridFTPDir = Util.sandboxDestURIToGridFTPDir(destURIs[0]);
-						uploadFilesToGridFTP(filesToUpload, gridFTPDir);
-						logger.debug("Uploaded " + filesToUpload.size() + " job input file(s)");
-						
-				        client.jobStart(jobId);
-				        logger.debug("Started job: " + jobId);
+					if (submission.jobId != null) {
+						setWMProxy(submission, wmProxyURL);
 					}
-
-				} else if (requestType.equalsIgnoreCase(Jdl.TYPE_COLLECTION)) { // COLLECTION
-
-					List<List<File>> filesToUpload = new ArrayList<List<File>>();
-					int filesToUploadCount = 0;
-					
-					// root input sandbox
-					filesToUpload.add(Util.getLocalInputSandboxFiles(jobAd, inputDir));
-					
-					// children input sandboxes
-					Vector<Ad> nodes = jobAd.getAdValue("Nodes");
-					for (Ad node : nodes) {
-						filesToUpload.add(Util.getLocalInputSandboxFiles(node, inputDir));
+					if (submission.bundle == null) {
+						jobs[submission.index] = new SubmittedJob(submission.jdl, submission.jobId, error);
+						continue;
 					}
-					logger.debug("Collection has " + (filesToUpload.size()-1)  + " children");
-					
-					if (filesToUploadCount == 0) { // no files to upload, just submit job
-						
-						job = client.jobSubmit(jdl, delegationId);
-						jobId = job.getId();
-						logger.debug("Submitted job: " + jobId);
-						
-					} else { // register job, upload files to input sandboxes, start job
-						
-						job = client.jobRegister(jdl, delegationId);
-						jobId = job.getId();
-						logger.debug("Registered job: " + jobId);
-						
-						DestURIStructType[] sboxes = client.getSandboxBulkDestURI(jobId, "gsiftp").getItem();
-						// root input sandbox
-						if (filesToUpload.get(0).size() > 0) {
-							String rootSbox = sboxes[0].getItem()[0];
-							uploadFilesToGridFTP(filesToUpload.get(0), 
-									Util.sandboxDestURIToGridFTPDir(rootSbox));
-							logger.debug("Uploaded " + filesToUpload.get(0).size() 
-									+ " input file(s) for root job");
-						} else {
-							logger.debug("No input files to upload for root job");
-						}
-						// children input sandboxes
-						for (int i=1; i<sboxes.length; i++) {
-							if (filesToUpload.get(i).size() > 0) {
-								String sbox = sboxes[i].getItem()[0];
-								uploadFilesToGridFTP(filesToUpload.get(i), 
-										Util.sandboxDestURIToGridFTPDir(sbox));
-								logger.debug("Uploaded " + filesToUpload.get(i).size() + 
-										" input file(s) for child job: " + sboxes[i].getId());
-							} else {
-								logger.debug("No input files to upload for child job: " + sboxes[i].getId());
-							}
+					for (int i=0; i<submission.bundle.size(); i++) {
+						String jobId = submission.children.get(BUNDLE_NODE_PREFIX + i);
+						GridAPIException jobError = error;
+						if (jobError == null && jobId == null) {
+							jobError = new GridAPIException("Could not find node " + BUNDLE_NODE_PREFIX + i 
+									+ " in collection: " + submission.jobId);
 						}
-						
-				        client.jobStart(jobId);
-				        logger.debug("Started job: " + jobId);
-					}	
-					
-				} else if (requestType.equalsIgnoreCase(Jdl.TYPE_DAG)) { // DAG
-				
-					throw new GridAPIException("Unsupported JDL request type: " + requestType);
-					
-				} else {
-					throw new GridAPIException("Unknown JDL request type: " + requestType);
+						int index = submission.bundle.get(i);
+						jobs[index] = new SubmittedJob(jdls.get(index), jobId, jobError);
+					}
 				}
-								
-		        return jobId;
+				return Arrays.asList(jobs);
 			} catch (Exception e) {
 				if (e instanceof GridAPIException) {
 					throw (GridAPIException)e;
@@ -658,16 +1038,548 @@ public class GridSessionImpl implements GridSession {
 
 
 	
-	private String readVOFromVOMSProxy() throws GridAPIException {
-		if (vomsProxy != null) {
-			String vo = null;
-			Vector<VOMSAttribute> atts = VOMSValidator.parse(vomsProxy.getCertificateChain());
-			for (VOMSAttribute att : atts) {
-				vo = att.getVO();
-				if (vo != null) {
-					break;
+	/**
+	 * Groups normal jobs into collections of up to bundleSize nodes, 
+	 * other jobs are submitted one by one.<br>
+	 * Nodes of a bundle are named by their position in the bundle.
+	 */
+	private List<Submission> bundleJobs(List<String> jdls, int bundleSize) {
+		List<Submission> submissions = new ArrayList<Submission>();
+		List<Integer> bundle = new ArrayList<Integer>();
+		for (int i=0; i<jdls.size(); i++) {
+			if (bundleSize > 1 && isBundleable(jdls.get(i))) {
+				bundle.add(i);
+				if (bundle.size() == bundleSize) {
+					submissions.addAll(createBundle(jdls, bundle));
+					bundle = new ArrayList<Integer>();
+				}
+			} else {
+				submissions.add(new Submission(jdls.get(i), i));
+			}
+		}
+		if (!bundle.isEmpty()) {
+			submissions.addAll(createBundle(jdls, bundle));
+		}
+		return submissions;
+	}
+	
+	/**
+	 * Creates the submission of a collection of the jobs, 
+	 * or submissions of the jobs one by one if the collection could not be created.
+	 */
+	private List<Submission> createBundle(List<String> jdls, List<Integer> bundle) {
+		if (bundle.size() > 1) {
+			try {
+				Ad collectionAd = new Ad();
+				collectionAd.setAttribute(Jdl.TYPE, Jdl.TYPE_COLLECTION);
+				for (int i=0; i<bundle.size(); i++) {
+					JobAd nodeAd = new JobAd(jdls.get(bundle.get(i)));
+					if (nodeAd.hasAttribute(NODE_NAME)) {
+						nodeAd.delAttribute(NODE_NAME);
+					}
+					nodeAd.setAttribute(NODE_NAME, BUNDLE_NODE_PREFIX + i);
+					collectionAd.addAttribute("Nodes", nodeAd);
+				}
+				Submission submission = new Submission(collectionAd.toString(), -1);
+				submission.bundle = bundle;
+				logger.debug("Bundled " + bundle.size() + " jobs into a collection");
+				return Collections.singletonList(submission);
+			} catch (Exception e) {
+				// should not happen for jobs accepted by isBundleable
+				logger.warn("Could not bundle " + bundle.size() + " jobs, submitting them one by one: " 
+						+ e.getMessage());
+			}
+		}
+		List<Submission> submissions = new ArrayList<Submission>();
+		for (int index : bundle) {
+			submissions.add(new Submission(jdls.get(index), index));
+		}
+		return submissions;
+	}
+	
+	/**
+	 * Checks whether the job can be submitted as a node of a collection.
+	 */
+	private static boolean isBundleable(String jdl) {
+		try {
+			JobAd jobAd = new JobAd(jdl);
+			if (jobAd.hasAttribute(Jdl.TYPE) && !jobAd.getString(Jdl.TYPE).equalsIgnoreCase(Jdl.TYPE_JOB)) {
+				return false;
+			}
+			if (jobAd.hasAttribute(Jdl.JOBTYPE) 
+					&& !((String)jobAd.getStringValue(Jdl.JOBTYPE).get(0)).equalsIgnoreCase(Jdl.JOBTYPE_NORMAL)) {
+				return false;
+			}
+			return true;
+		} catch (Exception e) {
+			// invalid descriptions are submitted alone to report their errors
+			return false;
+		}
+	}
+	
+	/**
+	 * Parses the job description and collects local input files of the job 
+	 * (and of its children for collections).
+	 */
+	private void prepareSubmission(Submission submission, String inputDir) throws Exception {
+		String jdl = submission.jdl;
+		JobAd jobAd = new JobAd(jdl);
+		logger.debug("Sumbitting JDL: " + jdl);
+		
+		// determine request type (default is "Job")
+		String requestType = Jdl.TYPE_JOB;
+		if (jobAd.hasAttribute(Jdl.TYPE)) {
+			requestType = jobAd.getString(Jdl.TYPE);
+		}
+		logger.debug("Request type: " + requestType);
+		
+		if (getStagingArea() != null) {
+			if (requestType.equalsIgnoreCase(Jdl.TYPE_JOB)) {
+				stageInputSandbox(jobAd, inputDir);
+			} else if (requestType.equalsIgnoreCase(Jdl.TYPE_COLLECTION)) {
+				stageInputSandbox(jobAd, inputDir);
+				// nodes are copies, so the list of nodes is replaced by the staged nodes
+				Vector<?> nodes = jobAd.getAdValue("Nodes");
+				List<Expr> stagedNodes = new ArrayList<Expr>();
+				for (Object nodeValue : nodes) {
+					Ad node = (Ad)nodeValue;
+					stageInputSandbox(node, inputDir);
+					stagedNodes.add(new ClassAdParser(node.toString()).parse());
+				}
+				jobAd.delAttribute("Nodes");
+				jobAd.setAttribute("Nodes", new ListExpr(stagedNodes));
+			}
+			submission.jdl = jobAd.toString();
+		}
+		
+		if (requestType.equalsIgnoreCase(Jdl.TYPE_JOB)) { // JOB
+
+			// determine job type (default is "Normal")
+			String jobType = Jdl.JOBTYPE_NORMAL;
+			if (jobAd.hasAttribute(Jdl.JOBTYPE)) {
+				jobType = (String)jobAd.getStringValue(Jdl.JOBTYPE).get(0);
+			}
+			logger.debug("Job type: " + jobType);
+			
+			List<File> filesToUpload = new ArrayList<File>();
+			
+			if (jobType.equalsIgnoreCase(Jdl.JOBTYPE_NORMAL)) { // Normal
+				
+				filesToUpload = Util.getLocalInputSandboxFiles(jobAd, inputDir);
+				if (config.getSandboxPackThreshold() > 0) {
+					submission.tempDir = SandboxPacking.createTempDir();
+					filesToUpload = SandboxPacking.pack(jobAd, filesToUpload, 
+							submission.tempDir, config.getSandboxPackThreshold());
+					submission.jdl = jobAd.toString();
+				}
+				
+			} else if (jobType.equalsIgnoreCase(Jdl.JOBTYPE_INTERACTIVE)) { // Interactive
+				
+				throw new GridAPIException("Unsupported JDL job type: " + jobType);
+				
+			} else if (jobType.equalsIgnoreCase(Jdl.JOBTYPE_MPICH)) { // MPICH
+				
+				throw new GridAPIException("Unsupported JDL job type: " + jobType);
+				
+			} else if (jobType.equalsIgnoreCase(Jdl.JOBTYPE_PARAMETRIC)) { // Parametric
+				
+				if (jobAd.hasAttribute(Jdl.PARAMETRIC_PARAMS)) {
+					
+					// Create parameters list
+					List<String> params = new ArrayList<String>();							
+					Expr paramsExpr = jobAd.lookup(Jdl.PARAMETRIC_PARAMS);							
+					if (paramsExpr instanceof Constant) { // single integer value
+						int paramsAtt = ((Constant)paramsExpr).intValue();
+						int paramsStartAtt = 0; // default value
+						if (jobAd.hasAttribute(Jdl.PARAMETRIC_PARAMS_START)) {
+							paramsStartAtt = jobAd.getInt(Jdl.PARAMETRIC_PARAMS_START);
+						}
+						int paramsStepAtt = 1; // default value
+						if (jobAd.hasAttribute(Jdl.PARAMETRIC_PARAMS_STEP)) {
+							paramsStepAtt = jobAd.getInt(Jdl.PARAMETRIC_PARAMS_STEP);
+						}
+						for (int i=paramsStartAtt; i<paramsAtt; i+=paramsStepAtt) {
+							params.add(String.valueOf(i));
+						}
+					} else if (paramsExpr instanceof ListExpr) { // parameters list
+						System.out.println(jobAd.lookup(Jdl.PARAMETRIC_PARAMS).getClass().getName());
+						Iterator<Expr> iParams = ((ListExpr)jobAd.lookup(Jdl.PARAMETRIC_PARAMS)).iterator();
+						while (iParams.hasNext()) {
+							params.add(iParams.next().toString());
+						}
+					}
+
+					// Create local input files list
+					List<File> isbFiles = Util.getLocalInputSandboxFiles(jobAd, inputDir);
+					for (File file : isbFiles) {
+						if (file.getAbsolutePath().indexOf("_PARAM_") >= 0) {
+							for (String param : params) {
+								File paramFile = new File(
+										file.getAbsolutePath().replaceAll("_PARAM_", param));
+								filesToUpload.add(paramFile);
+							}
+						} else {
+							filesToUpload.add(file);
+						}
+					}
+					
+				} else {
+					throw new GridAPIException("Parametric job description must contain Parameters attribute");
+				}												
+			} else {
+				throw new GridAPIException("Unknown JDL job type: " + jobType);
+			}
+			
+			submission.inputFiles.add(filesToUpload);
+			submission.fileCount = filesToUpload.size();
+
+		} else if (requestType.equalsIgnoreCase(Jdl.TYPE_COLLECTION)) { // COLLECTION
+
+			submission.collection = true;
+			
+			// root input sandbox
+			submission.inputFiles.add(Util.getLocalInputSandboxFiles(jobAd, inputDir));
+			submission.fileCount += submission.inputFiles.get(0).size();
+			
+			// children input sandboxes
+			Vector<Ad> nodes = jobAd.getAdValue("Nodes");
+			for (Ad node : nodes) {
+				List<File> nodeFiles = Util.getLocalInputSandboxFiles(node, inputDir);
+				submission.inputFiles.add(nodeFiles);
+				submission.fileCount += nodeFiles.size();
+			}
+			logger.debug("Collection has " + (submission.inputFiles.size()-1)  + " children");
+			
+		} else if (requestType.equalsIgnoreCase(Jdl.TYPE_DAG)) { // DAG
+		
+			throw new GridAPIException("Unsupported JDL request type: " + requestType);
+			
+		} else {
+			throw new GridAPIException("Unknown JDL request type: " + requestType);
+		}
+	}
+	
+	/**
+	 * Stages local input files of the job and replaces them 
+	 * in the input sandbox by the staged copies.<br>
+	 * Files of parametric jobs which depend on the parameter are left unchanged.
+	 */
+	private void stageInputSandbox(Ad ad, String inputDir) throws Exception {
+		if (!ad.hasAttribute(Jdl.INPUTSB) || ad.hasAttribute(Jdl.ISBBASEURI)) {
+			return;
+		}
+		List<Expr> isb = new ArrayList<Expr>();
+		Expr isbExpr = ad.lookup(Jdl.INPUTSB);
+		if (isbExpr instanceof ListExpr) {
+			Iterator<?> iFiles = ((ListExpr)isbExpr).iterator();
+			while (iFiles.hasNext()) {
+				isb.add((Expr)iFiles.next());
+			}
+		} else {
+			isb.add(isbExpr);
+		}
+		
+		// local files referenced by the input sandbox entries
+		List<File> files = new ArrayList<File>();
+		for (Expr entry : isb) {
+			String name = entry.toString().replaceAll("\"", "");
+			File file = null;
+			if (entry instanceof Constant && name.indexOf("_PARAM_") < 0) {
+				file = Util.getLocalInputSandboxFile(name, inputDir);
+			}
+			files.add(file);
+		}
+		List<File> localFiles = new ArrayList<File>(files);
+		localFiles.removeAll(Collections.singleton(null));
+		if (localFiles.isEmpty()) {
+			return;
+		}
+		
+		// other entries (remote files, references to the root sandbox) are left as is
+		Map<File,String> stagedFiles = getStagingArea().stage(localFiles, vomsProxy);
+		List<Expr> stagedISB = new ArrayList<Expr>();
+		for (int i=0; i<isb.size(); i++) {
+			File file = files.get(i);
+			stagedISB.add(file != null ? Constant.getInstance(stagedFiles.get(file)) : isb.get(i));
+		}
+		ad.delAttribute(Jdl.INPUTSB);
+		ad.setAttribute(Jdl.INPUTSB, new ListExpr(stagedISB));
+	}
+	
+	/**
+	 * Submits the job if it has no input files to upload, 
+	 * otherwise registers the job and determines its input sandboxes.
+	 */
+	private void registerJob(String wmProxyURL, final WMProxyAPI client, final Submission submission, 
+			final String delegationId) throws Exception {
+		if (submission.fileCount == 0) { // no files to upload, just submit job
+			
+			setJobIds(submission, callDelegated("wmproxy.jobSubmit", wmProxyURL, delegationId, false,
+					new Callable<JobIdStructType>() {
+				public JobIdStructType call() throws Exception {
+					return client.jobSubmit(submission.jdl, delegationId);
+				}
+			}));
+			submission.started = true;
+			logger.debug("Submitted job: " + submission.jobId);
+			
+		} else { // register job, files are uploaded to input sandboxes before the job is started
+			
+			setJobIds(submission, callDelegated("wmproxy.jobRegister", wmProxyURL, delegationId, false,
+					new Callable<JobIdStructType>() {
+				public JobIdStructType call() throws Exception {
+					return client.jobRegister(submission.jdl, delegationId);
+				}
+			}));
+			logger.debug("Registered job: " + submission.jobId);
+			
+			if (!submission.collection) {
+				String[] destURIs = callService("wmproxy.getSandboxDestURI", wmProxyURL, submission.jobId, true,
+						new Callable<String[]>() {
+					public String[] call() throws Exception {
+						return client.getSandboxDestURI(submission.jobId, "gsiftp").getItem();
+					}
+				});
+				submission.sandboxes.put(Util.sandboxDestURIToGridFTPDir(destURIs[0]), 
+						submission.inputFiles.get(0));
+			} else {
+				DestURIStructType[] sboxes = callService("wmproxy.getSandboxBulkDestURI", wmProxyURL, submission.jobId, true,
+						new Callable<DestURIStructType[]>() {
+					public DestURIStructType[] call() throws Exception {
+						return client.getSandboxBulkDestURI(submission.jobId, "gsiftp").getItem();
+					}
+				});
+				for (int i=0; i<sboxes.length; i++) {
+					if (submission.inputFiles.get(i).size() > 0) {
+						String sbox = sboxes[i].getItem()[0];
+						submission.sandboxes.put(Util.sandboxDestURIToGridFTPDir(sbox), 
+								submission.inputFiles.get(i));
+					} else {
+						logger.debug("No input files to upload for job: " + sboxes[i].getId());
+					}
 				}
 			}
+		}
+	}
+	
+	private void setJobIds(Submission submission, JobIdStructType jobIdStruct) {
+		submission.jobId = jobIdStruct.getId();
+		if (jobIdStruct.getChildrenJob() != null) {
+			for (JobIdStructType child : jobIdStruct.getChildrenJob()) {
+				submission.children.put(child.getName(), child.getId());
+			}
+		}
+	}
+	
+	private void uploadInputFiles(Submission submission) throws Exception {
+		// root and children input sandboxes are uploaded together
+		getTransferEngine().upload(submission.sandboxes, vomsProxy);
+		logger.debug("Uploaded " + submission.fileCount + " input file(s) for " 
+				+ submission.sandboxes.size() + " job(s)");
+	}
+	
+	private void startJob(String wmProxyURL, final WMProxyAPI client, final Submission submission) throws Exception {
+		callService("wmproxy.jobStart", wmProxyURL, submission.jobId, false, new Callable<Void>() {
+			public Void call() throws Exception {
+				client.jobStart(submission.jobId);
+				return null;
+			}
+		});
+        submission.started = true;
+        logger.debug("Started job: " + submission.jobId);
+	}
+	
+	/**
+	 * Retrieves statuses of jobs kept by the same LB server 
+	 * with a multi-job LB query.<br>
+	 * Returns an empty map if the server does not support such queries.
+	 */
+	private Map<String,JobStatus> queryJobStatuses(final LBClientRegistry.LBClient lbClient, final List<String> jobIds, 
+			boolean stateOnly) throws Exception {
+		final JobFlags flags;
+		if (stateOnly) {
+			flags = new JobFlags();
+			flags.setFlag(STATE_FLAGS);
+		} else {
+			flags = getStatusFlags();
+		}
+		Map<String,JobStatus> statuses = new HashMap<String,JobStatus>();
+		if (lbClient.isBulkQuerySupported()) {
+			Map<String,JobStatus> batchStatuses = callService("lb.queryJobs", lbClient.getServiceURL().toString(), null, true, 
+					new Callable<Map<String,JobStatus>>() {
+				public Map<String,JobStatus> call() throws Exception {
+					return lbClient.queryJobStatuses(jobIds, flags);
+				}
+			});
+			if (batchStatuses != null) {
+				for (String jobId : jobIds) {
+					JobStatus status = batchStatuses.get(jobId);
+					if (status != null) {
+						statuses.put(jobId, fixJobStatus(lbClient, status));
+					}
+				}
+			}
+		}
+		return statuses;
+	}
+	
+	private List<String> listOutputFiles(String wmProxyURL, final WMProxyAPI client, final String jobId) 
+			throws Exception {
+		List<String> files = new ArrayList<String>();
+        StringAndLongType[] fileInfo = callService("wmproxy.getOutputFileList", wmProxyURL, jobId, true,
+        		new Callable<StringAndLongType[]>() {
+        	public StringAndLongType[] call() throws Exception {
+        		return client.getOutputFileList(jobId, "gsiftp").getFile();
+        	}
+        });
+        if (fileInfo != null) {
+	        for (StringAndLongType file : fileInfo) {
+	        	files.add(file.getName());    
+	        }
+        }
+        return files;
+	}
+	
+	/**
+	 * Lists output files of several jobs concurrently.
+	 */
+	private List<List<String>> listOutputFiles(final String wmProxyURL, final WMProxyAPI client, String[] jobIds) 
+			throws Exception {
+		String wmProxyHost = new URL(wmProxyURL).getHost();
+		List<Future<List<String>>> listings = new ArrayList<Future<List<String>>>();
+		for (final String jobId : jobIds) {
+			listings.add(getTransferExecutor().submit(wmProxyHost, new Callable<List<String>>() {
+				public List<String> call() throws Exception {
+					return listOutputFiles(wmProxyURL, client, jobId);
+				}
+			}));
+		}
+		return waitForAll(listings);
+	}
+	
+	/**
+	 * Returns the handler of a submission stage which has not run, 
+	 * e.g. rejected by the executor of the closed session, 
+	 * which completes the submission with the error.
+	 */
+	private Function<Throwable,Void> rejectSubmission(final Submission submission, final Semaphore pipeline, 
+			final CompletableFuture<Void> completion) {
+		return new Function<Throwable,Void>() {
+			public Void apply(Throwable e) {
+				submission.cleanup();
+				pipeline.release();
+				completion.completeExceptionally(e);
+				return null;
+			}
+		};
+	}
+	
+	/**
+	 * Waits for the completion of all tasks and returns their results.<br>
+	 * If a task fails, cancels the remaining tasks and throws its exception.
+	 */
+	private <T> List<T> waitForAll(List<Future<T>> futures) throws Exception {
+		List<T> results = new ArrayList<T>();
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			for (Future<T> future : futures) {
+				future.cancel(false);
+			}
+			if (e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			} else {
+				throw e;
+			}
+		} catch (InterruptedException e) {
+			for (Future<T> future : futures) {
+				future.cancel(false);
+			}
+			Thread.currentThread().interrupt();
+			throw e;
+		}
+		return results;
+	}
+	
+	/**
+	 * Checks that the session is not closed before its workers are created.
+	 */
+	private synchronized void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Grid session is closed");
+		}
+	}
+	
+	private synchronized ThrottledExecutor getStatusExecutor() {
+		checkOpen();
+		if (statusExecutor == null) {
+			statusExecutor = new ThrottledExecutor("jlite-status", 
+					config.getMaxStatusRequests(), config.getMaxStatusRequestsPerHost());
+		}
+		return statusExecutor;
+	}
+	
+	/**
+	 * Returns the job status with the specified parts only.<br>
+	 * A cached status is used if available. 
+	 * Partial statuses retrieved from LB are not cached.
+	 */
+	private JobStatus getJobStatus(final String jobId, JobFlagsValue[] flagValues) throws Exception {
+		if (statusCache != null) {
+			JobStatus status = statusCache.get(jobId);
+			if (status != null) {
+				return status;
+			}
+		}
+		final LBClientRegistry.LBClient lbClient = lbClients.getClient(jobId);
+		final JobFlags flags = new JobFlags();
+		flags.setFlag(flagValues);
+		return callService("lb.jobStatus", lbClient.getServiceURL().toString(), jobId, true,
+				new Callable<JobStatus>() {
+			public JobStatus call() throws Exception {
+				return fixJobStatus(lbClient, lbClient.getService().jobStatus(jobId, flags));
+			}
+		});
+	}
+	
+	private JobFlags getStatusFlags() {
+		JobFlags flags = new JobFlags();    
+        flags.setFlag( new JobFlagsValue[] { JobFlagsValue.CLASSADS, JobFlagsValue.CHILDREN, JobFlagsValue.CHILDSTAT } );
+        return flags;
+	}
+	
+	private JobStatus fixJobStatus(LBClientRegistry.LBClient lbClient, JobStatus status) throws RemoteException {
+		// if LB version < 1.7.1 fix the status names
+		if (lbClient.isStatusFixRequired()) {
+			logger.debug("Using fix for LB job status history");
+			status = LBServiceFix.fixJobStatus(status); 
+		}
+		
+		if (status.getStateEnterTimes() == null) {
+			return status;
+		}
+		
+		// remove state enter times with wrong chronology (a bug in LB WS?)
+		List<StateEnterTimesItem> newItems = new ArrayList<StateEnterTimesItem>();
+		long prevTime = 0;
+		for (StateEnterTimesItem item : status.getStateEnterTimes()) {
+			long currTime = item.getTime().getTimeInMillis();
+			if (prevTime == 0 || currTime > prevTime) {
+				newItems.add(item);
+				prevTime = currTime;
+			}
+		}
+		status.setStateEnterTimes(newItems.toArray(new StateEnterTimesItem[]{}));
+		
+		return status;
+	}
+	
+	private String readVOFromVOMSProxy() throws GridAPIException {
+		VOMSProxyInfo proxyInfo = getVOMSProxyInfo();
+		if (proxyInfo != null) {
+			String vo = proxyInfo.getVO();
 			if (vo != null) {
 				return vo;
 			} else {
@@ -678,70 +1590,445 @@ public class GridSessionImpl implements GridSession {
 		}
 	}
 	
-	private WMProxyAPI getWMProxyClient(String wmProxyURL) throws Exception {
-		if (wmProxyClients.containsKey(wmProxyURL)) {
-			return wmProxyClients.get(wmProxyURL);
-		} else {
-			WMProxyAPI client;
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			vomsProxy.save(out);
-			out.close();
-			InputStream in = new ByteArrayInputStream(out.toByteArray());
-			if (config.getCertDir() == null) {
-				client = new WMProxyAPI(wmProxyURL, in);
-				//client = new WMProxyAPI(wmProxyURL, config.getProxyPath());
+	/**
+	 * Returns VOMS information of the session proxy,
+	 * parsing the proxy again only if it is replaced.
+	 */
+	private VOMSProxyInfo getVOMSProxyInfo() {
+		GlobusCredential proxy = vomsProxy;
+		if (proxy == null) {
+			return null;
+		}
+		VOMSProxyInfo proxyInfo = vomsProxyInfo;
+		if (proxyInfo == null || proxyInfo.getProxy() != proxy) {
+			proxyInfo = new VOMSProxyInfo(proxy);
+			vomsProxyInfo = proxyInfo;
+		}
+		return proxyInfo;
+	}
+	
+	/**
+	 * Checks whether the proxy must be delegated: if the delegated proxy 
+	 * has expired, or expires within the renewal margin and the session 
+	 * proxy lives longer.
+	 */
+	private boolean isDelegationRequired(long delegationExpiry, long proxyExpiry) {
+		long now = System.currentTimeMillis();
+		long margin = config.getDelegationRenewalMargin() * 1000L;
+		return delegationExpiry <= now 
+				|| (delegationExpiry - now < margin && proxyExpiry > delegationExpiry);
+	}
+	
+	/**
+	 * Schedules the check of the delegation ahead of its expiry,
+	 * the proxy is delegated again by this check if the session proxy 
+	 * has been renewed meanwhile.
+	 */
+	private void scheduleDelegationRenewal(final String wmProxyURL, final String delegationId, long expiry) {
+		long now = System.currentTimeMillis();
+		if (expiry <= now) {
+			return;
+		}
+		long margin = config.getDelegationRenewalMargin() * 1000L;
+		long delay = expiry - margin - now;
+		if (delay <= 0) {
+			// already within the margin, check again until the delegation expires
+			delay = Math.min(Math.max(margin / 6, 1000), expiry - now);
+		}
+		String key = wmProxyURL + "|" + delegationId;
+		TimerTask renewal = new TimerTask() {
+			public void run() {
+				try {
+					delegateProxy(wmProxyURL, delegationId);
+				} catch (GridAPIException e) {
+					logger.warn("Could not renew delegation " + delegationId + " to " + wmProxyURL + ": " 
+							+ e.getMessage());
+				}
+			}
+		};
+		synchronized (delegationRenewals) {
+			if (closed) {
+				return;
+			}
+			TimerTask previous = delegationRenewals.put(key, renewal);
+			if (previous != null) {
+				previous.cancel();
+			}
+			getRenewalTimer().schedule(renewal, delay);
+		}
+	}
+	
+	/**
+	 * Returns the identity of delegated proxies: the user identity and VOMS attributes.
+	 */
+	private static String getProxyIdentity(VOMSProxyInfo proxyInfo) {
+		StringBuilder identity = new StringBuilder(proxyInfo.getProxy().getIdentity());
+		for (String fqan : proxyInfo.getFQANs()) {
+			identity.append(',').append(fqan);
+		}
+		return identity.toString();
+	}
+	
+	private synchronized DelegationRegistry getDelegationRegistry() {
+		if (delegationRegistry == null && config.getDelegationRegistryPath() != null) {
+			delegationRegistry = DelegationRegistry.open(new File(config.getDelegationRegistryPath()));
+		}
+		return delegationRegistry;
+	}
+	
+	/**
+	 * Returns the WMProxy server managing the job: the server the job was 
+	 * submitted to in this session, the server which registered the job 
+	 * according to the LB server, or else the preferred server of the VO.
+	 */
+	public String getWMProxy(String jobId) throws GridAPIException {
+		String wmProxyURL = jobWMProxies.get(jobId);
+		if (wmProxyURL == null) {
+			wmProxyURL = getRegisteredWMProxy(jobId);
+			if (wmProxyURL == null) {
+				wmProxyURL = getNetworkServer(jobId);
+			}
+			if (wmProxyURL != null) {
+				jobWMProxies.put(jobId, wmProxyURL);
+			}
+		}
+		return wmProxyURL != null ? wmProxyURL : selectWMProxies().get(0);
+	}
+	
+	/**
+	 * Returns the WMProxy server the job was submitted to according to the local job registry, 
+	 * or null if the job is not registered.
+	 */
+	private String getRegisteredWMProxy(String jobId) {
+		try {
+			JobRegistry.Entry entry = JobRegistry.open().getJob(jobId);
+			return entry != null ? entry.getWMProxyURL() : null;
+		} catch (IOException e) {
+			logger.debug("Could not read job registry: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the configured WMProxy server which registered the job according to its LB status, 
+	 * or null if the server could not be determined.<br>
+	 * The server is looked up by its host among the endpoints of the VO, 
+	 * since the status names only the host of the server.
+	 */
+	private String getNetworkServer(String jobId) {
+		try {
+			String server = getJobStatus(jobId, STATE_FLAGS).getNetworkServer();
+			if (server == null || server.length() == 0) {
+				return null;
+			}
+			String host = server.startsWith("https://") ? new URL(server).getHost() 
+					: server.indexOf(':') > 0 ? server.substring(0, server.indexOf(':')) : server;
+			for (String wmProxyURL : selectWMProxies()) {
+				if (new URL(wmProxyURL).getHost().equalsIgnoreCase(host)) {
+					return wmProxyURL;
+				}
+			}
+			return null;
+		} catch (Exception e) {
+			logger.debug("Could not determine WMProxy server of job " + jobId + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	public List<OperationMetrics> getMetricsSnapshot() {
+		return Metrics.snapshot();
+	}
+	
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (transferEngine != null) {
+				transferEngine.close();
+			}
+			for (ThrottledExecutor executor : new ThrottledExecutor[] {
+					statusExecutor, transferExecutor, submitExecutor, uploadExecutor}) {
+				if (executor != null) {
+					executor.shutdown();
+				}
+			}
+		}
+		synchronized (delegationRenewals) {
+			delegationRenewals.clear();
+			if (renewalTimer != null) {
+				renewalTimer.cancel();
+			}
+		}
+		logger.debug("Closed grid session");
+	}
+	
+	/**
+	 * Remembers the WMProxy server of the submitted job and its children.
+	 */
+	private void setWMProxy(Submission submission, String wmProxyURL) {
+		jobWMProxies.put(submission.jobId, wmProxyURL);
+		for (String childId : submission.children.values()) {
+			jobWMProxies.put(childId, wmProxyURL);
+		}
+	}
+	
+	/**
+	 * Returns WMProxy servers of the VO in the order they should be tried.
+	 */
+	private List<String> selectWMProxies() throws GridAPIException {
+		String vo = readVOFromVOMSProxy();
+		List<String> endpoints = config.getWMProxyEndpoints().get(vo);
+		if (endpoints == null || endpoints.isEmpty()) {
+			if (config.getWMProxies().containsKey(vo)) {
+				endpoints = Collections.singletonList(config.getWMProxies().get(vo));
 			} else {
-				client = new WMProxyAPI(wmProxyURL, in, config.getCertDir());
-				//client = new WMProxyAPI(wmProxyURL, config.getProxyPath(), config.getCertDir());
+				throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
 			}
-			in.close();
-			wmProxyClients.put(wmProxyURL, client);
-			return client;
 		}
+		return wmsSelector.order(endpoints);
 	}
 	
-	private void uploadFilesToGridFTP(List<File> files, String destDir) throws MalformedURLException, UrlCopyException, GSSException {
-		for (File file : files) {
-            String sourceURI = "file:///" + file.getAbsolutePath();                
-            String destURI = destDir + "/" + file.getName();	            
-            
-            GlobusURL from = new GlobusURL(sourceURI);
-            GlobusURL to = new GlobusURL(destURI);
-                    
-            UrlCopy uCopy = new UrlCopy();
-            uCopy.setCredentials(new GlobusGSSCredentialImpl(vomsProxy, GSSCredential.DEFAULT_LIFETIME));
-            uCopy.setDestinationUrl(to);
-            uCopy.setSourceUrl(from);
-            
-            logger.debug("Start uploading file: " + sourceURI + " >> " + destURI);
-            uCopy.copy();            
-            logger.debug("Uploaded file: " + sourceURI + " >> " + destURI);
+	/**
+	 * Calls the WMProxy servers of the VO in the order of their selection 
+	 * until a server is available.
+	 */
+	private <T> T callWMProxy(WMProxyCall<T> call) throws GridAPIException {
+		GridAPIException error = null;
+		for (String wmProxyURL : selectWMProxies()) {
+			long start = System.currentTimeMillis();
+			try {
+				prepareDelegation(wmProxyURL);
+				T result = call.call(wmProxyURL);
+				wmsSelector.record(wmProxyURL, System.currentTimeMillis() - start, false);
+				return result;
+			} catch (GridAPIException e) {
+				boolean repeatable = call.isRepeatable(e);
+				wmsSelector.record(wmProxyURL, System.currentTimeMillis() - start, repeatable);
+				if (!repeatable) {
+					throw e;
+				}
+				logger.warn("WMProxy server " + wmProxyURL + " is unavailable: " + e.getMessage());
+				error = e;
+			}
 		}
+		throw error;
 	}
 	
-	private void downloadFilesFromGridFTP(List<String> files, String destDir) throws MalformedURLException, UrlCopyException, GSSException {
-		for (String file : files) {
-            int pos = file.indexOf("2811");
-            int length = file.length();                        
-            String front = file.substring(0 , pos);
-            String rear = file.substring(pos + 4 , length);                        	            
-            String sourceURI = front + "2811/" + rear;
-			
-            String destURI = "file:///" + destDir + "/" + file.substring(file.lastIndexOf("/")+1);
-                            
-            GlobusURL from = new GlobusURL(sourceURI);
-            GlobusURL to = new GlobusURL(destURI);
-                    
-            UrlCopy uCopy = new UrlCopy();
-            uCopy.setCredentials(new GlobusGSSCredentialImpl(vomsProxy, GSSCredential.DEFAULT_LIFETIME));
-            uCopy.setDestinationUrl(to);
-            uCopy.setSourceUrl(from);
-            uCopy.setUseThirdPartyCopy(true);
-            
-            logger.debug("Start downloading file: " + sourceURI + " >> " + destURI);
-            uCopy.copy();            
-            logger.debug("Downloaded file: " + sourceURI + " >> " + destURI);
+	/**
+	 * Delegates the proxy to the WMProxy server used instead of another server, 
+	 * with the delegation identifier used in this session.
+	 */
+	private void prepareDelegation(String wmProxyURL) throws GridAPIException {
+		if (!delegationIds.isEmpty() && !delegationIds.containsKey(wmProxyURL)) {
+			delegateProxy(wmProxyURL, delegationIds.values().iterator().next());
 		}
 	}
 	
+	/**
+	 * Checks whether the call failed since the WMProxy server could not be 
+	 * reached, is overloaded or its circuit is open, so the call can be made 
+	 * to another server.
+	 */
+	private static boolean isUnavailable(Throwable e) {
+		for (Throwable cause = e; cause != null && cause.getCause() != cause; cause = cause.getCause()) {
+			if (cause instanceof ServiceUnavailableException) {
+				return true;
+			}
+		}
+		return ServiceGuard.isConnectFailure(e);
+	}
+	
+	/**
+	 * Calls the WMProxy or LB service with retries of transient errors, 
+	 * recording metrics and events of each attempt.
+	 */
+	private <T> T callService(String operation, String endpoint, String jobId, boolean idempotent, 
+			Callable<T> call) throws Exception {
+		return serviceGuard.call(operation, endpoint, jobId, idempotent, call);
+	}
+	
+	/**
+	 * Calls the WMProxy operation which uses the delegated proxy.<br>
+	 * If the server has lost or rejects the delegation, e.g. after its restart, 
+	 * the delegation is removed from the delegation registry, the proxy is 
+	 * delegated again and the operation is repeated once.
+	 */
+	private <T> T callDelegated(String operation, String wmProxyURL, String delegationId, boolean idempotent, 
+			Callable<T> call) throws Exception {
+		try {
+			return callService(operation, wmProxyURL, null, idempotent, call);
+		} catch (Exception e) {
+			if (!ServiceGuard.isDelegationFault(e)) {
+				throw e;
+			}
+			logger.warn("Delegation " + delegationId + " is not accepted by " + wmProxyURL 
+					+ ", delegating proxy again: " + e.getMessage());
+			DelegationRegistry registry = getDelegationRegistry();
+			VOMSProxyInfo proxyInfo = getVOMSProxyInfo();
+			if (registry != null && proxyInfo != null) {
+				registry.remove(wmProxyURL, delegationId, getProxyIdentity(proxyInfo));
+			}
+			delegateProxy(wmProxyURL, delegationId, true);
+			return callService(operation, wmProxyURL, null, idempotent, call);
+		}
+	}
+	
+	/**
+	 * Returns the delegation identifier used with the WMProxy server: 
+	 * the one of the last delegation in this session or the configured one.
+	 */
+	private String getDelegationId(String wmProxyURL) {
+		String delegationId = delegationIds.get(wmProxyURL);
+		return delegationId != null ? delegationId : config.getDelegationId();
+	}
+	
+	/**
+	 * Returns the client of the WMProxy server.<br>
+	 * The client is created once per server, concurrent callers 
+	 * wait for its creation instead of creating their own clients.
+	 */
+	private WMProxyAPI getWMProxyClient(final String wmProxyURL) throws Exception {
+		Future<WMProxyAPI> client = wmProxyClients.get(wmProxyURL);
+		if (client == null) {
+			FutureTask<WMProxyAPI> newClient = new FutureTask<WMProxyAPI>(new Callable<WMProxyAPI>() {
+				public WMProxyAPI call() throws Exception {
+					return createWMProxyClient(wmProxyURL);
+				}
+			});
+			client = wmProxyClients.putIfAbsent(wmProxyURL, newClient);
+			if (client == null) {
+				client = newClient;
+				newClient.run();
+			}
+		}
+		try {
+			return client.get();
+		} catch (ExecutionException e) {
+			// allow the next call to try again
+			wmProxyClients.remove(wmProxyURL, client);
+			if (e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			} else {
+				throw e;
+			}
+		}
+	}
+	
+	private WMProxyAPI createWMProxyClient(String wmProxyURL) throws Exception {
+		WMProxyAPI client;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		vomsProxy.save(out);
+		out.close();
+		InputStream in = new ByteArrayInputStream(out.toByteArray());
+		if (config.getCertDir() == null) {
+			client = new WMProxyAPI(wmProxyURL, in);
+			//client = new WMProxyAPI(wmProxyURL, config.getProxyPath());
+		} else {
+			client = new WMProxyAPI(wmProxyURL, in, config.getCertDir());
+			//client = new WMProxyAPI(wmProxyURL, config.getProxyPath(), config.getCertDir());
+		}
+		in.close();
+		logger.debug("Created WMProxy client for: " + wmProxyURL);
+		return client;
+	}
+	
+	private synchronized ThrottledExecutor getTransferExecutor() {
+		checkOpen();
+		if (transferExecutor == null) {
+			transferExecutor = new ThrottledExecutor("jlite-transfer", 
+					config.getMaxTransfers(), config.getMaxTransfersPerHost());
+		}
+		return transferExecutor;
+	}
+	
+	private synchronized ThrottledExecutor getSubmitExecutor() {
+		checkOpen();
+		if (submitExecutor == null) {
+			submitExecutor = new ThrottledExecutor("jlite-submit", 
+					config.getSubmitConcurrency(), config.getSubmitConcurrency());
+		}
+		return submitExecutor;
+	}
+	
+	private synchronized ThrottledExecutor getUploadExecutor() {
+		checkOpen();
+		if (uploadExecutor == null) {
+			uploadExecutor = new ThrottledExecutor("jlite-submit-upload", 
+					config.getSubmitPipelineDepth(), config.getSubmitPipelineDepth());
+		}
+		return uploadExecutor;
+	}
+	
+	private synchronized StagingArea getStagingArea() {
+		if (stagingArea == null && config.getStagingURI() != null) {
+			stagingArea = new StagingArea(config.getStagingURI(), config.getStagingTTL(), 
+					new File(config.getStagingIndexPath()), getTransferEngine());
+		}
+		return stagingArea;
+	}
+	
+	private synchronized TransferEngine getTransferEngine() {
+		if (transferEngine == null) {
+			transferEngine = new TransferEngine(getTransferExecutor(), 
+					new GridFTPClientPool(config.getGridFTPIdleTimeout()));
+		}
+		return transferEngine;
+	}
+	
+	/**
+	 * Call to a WMProxy server which can be repeated with another server.
+	 */
+	private static abstract class WMProxyCall<T> {
+		
+		abstract T call(String wmProxyURL) throws GridAPIException;
+		
+		boolean isRepeatable(GridAPIException e) {
+			return isUnavailable(e);
+		}
+		
+	}
+	
+	/**
+	 * State of a job submission passed between the submission stages.
+	 */
+	private static class Submission {
+		
+		private String jdl;
+		// position of the job in the submitted list, or positions of the bundled jobs
+		private int index;
+		private List<Integer> bundle;
+		private boolean collection = false;
+		// local input files of the job, or of the collection and its children
+		private List<List<File>> inputFiles = new ArrayList<List<File>>();
+		private int fileCount = 0;
+		private String jobId;
+		// map <node-name, job-identifier> of collection children
+		private Map<String,String> children = new HashMap<String,String>();
+		// map <GridFTP-directory, local-files>
+		private Map<String,List<File>> sandboxes = new LinkedHashMap<String,List<File>>();
+		private boolean started = false;
+		private Exception error;
+		// directory of packed sandbox files
+		private File tempDir;
+		
+		private Submission(String jdl) {
+			this(jdl, 0);
+		}
+		
+		private Submission(String jdl, int index) {
+			this.jdl = jdl;
+			this.index = index;
+		}
+		
+		private void cleanup() {
+			if (tempDir != null) {
+				SandboxPacking.deleteTempDir(tempDir);
+				tempDir = null;
+			}
+		}
+		
+	}
+	
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.rpc.ServiceException;
+
+import org.apache.log4j.Logger;
+import org.glite.wsdl.services.lb.LoggingAndBookkeepingLocator;
+import org.glite.wsdl.services.lb.LoggingAndBookkeepingPortType;
+import org.glite.wsdl.types.lb.JobFlags;
+import org.glite.wsdl.types.lb.JobStatus;
+import org.glite.wsdl.types.lb.QueryAttr;
+import org.glite.wsdl.types.lb.QueryConditions;
+import org.glite.wsdl.types.lb.QueryOp;
+import org.glite.wsdl.types.lb.QueryRecValue;
+import org.glite.wsdl.types.lb.QueryRecord;
+import org.glite.wsdl.types.lb.holders.JobStatusArrayHolder;
+import org.w3.www._2001.XMLSchema.holders.StringArrayHolder;
+
+/**
+ * Registry of LB service clients used by a grid session.<br>
+ * Keeps one service stub per LB server (host:9003) together with
+ * the negotiated service version, so that repeated status queries
+ * do not create a new locator and port and do not call getVersion()
+ * before every request. The cached version expires after a configurable
+ * time and is then requested again on the next query.
+ *
+ * @author Oleg Sukhoroslov
+ */
+class LBClientRegistry {
+
+	private static final Logger logger = Logger.getLogger(LBClientRegistry.class);
+
+	private static final int LB_SERVICE_PORT = 9003;
+
+	private long versionCacheTime;
+	private Map<String,LBClient> clients;
+
+	/**
+	 * @param versionCacheTime time in seconds to keep the negotiated LB version
+	 */
+	LBClientRegistry(int versionCacheTime) {
+		this.versionCacheTime = versionCacheTime * 1000L;
+		this.clients = new HashMap<String,LBClient>();
+	}
+
+	/**
+	 * Returns the client of the LB server which keeps the specified job.
+	 *
+	 * @param jobId job identifier
+	 * @return LB client
+	 */
+	LBClient getClient(String jobId) throws MalformedURLException, ServiceException {
+		URL jobUrl = new URL(jobId);
+		URL lbServiceURL = new URL(jobUrl.getProtocol(), jobUrl.getHost(), LB_SERVICE_PORT, "");
+		String key = lbServiceURL.getHost() + ":" + LB_SERVICE_PORT;
+		synchronized (clients) {
+			LBClient client = clients.get(key);
+			if (client == null) {
+				client = new LBClient(lbServiceURL);
+				clients.put(key, client);
+				logger.debug("Created LB client for: " + lbServiceURL);
+			}
+			return client;
+		}
+	}
+
+	/**
+	 * Client of a single LB server.
+	 */
+	class LBClient {
+
+		private URL serviceURL;
+		private LoggingAndBookkeepingPortType service;
+		private String version;
+		private boolean statusFixRequired;
+		private boolean bulkQuerySupported;
+		private long versionTime;
+
+		private LBClient(URL serviceURL) throws ServiceException {
+			this(serviceURL, new LoggingAndBookkeepingLocator().getLoggingAndBookkeeping(serviceURL));
+		}
+
+		LBClient(URL serviceURL, LoggingAndBookkeepingPortType service) {
+			this.serviceURL = serviceURL;
+			this.service = service;
+		}
+
+		/**
+		 * Returns the LB service endpoint.
+		 *
+		 * @return LB service URL
+		 */
+		URL getServiceURL() {
+			return serviceURL;
+		}
+
+		/**
+		 * Returns the LB service stub.
+		 *
+		 * @return LB service port
+		 */
+		LoggingAndBookkeepingPortType getService() {
+			return service;
+		}
+
+		/**
+		 * Returns the LB service version, requesting it from the server
+		 * if it is not known yet or the cached value has expired.
+		 *
+		 * @return LB service version
+		 */
+		synchronized String getVersion() throws RemoteException {
+			long now = System.currentTimeMillis();
+			if (version == null || now - versionTime > versionCacheTime) {
+				long start = System.currentTimeMillis();
+				boolean received = false;
+				try {
+					version = service.getVersion(null);
+					received = true;
+				} finally {
+					Metrics.record("lb.getVersion", serviceURL.toString(), 
+							System.currentTimeMillis() - start, 0, !received);
+				}
+				versionTime = now;
+				bulkQuerySupported = true;
+
+				// LB versions < 1.7.1 return wrong status names in job history
+				String[] versionParts = version.split("\\.");
+				statusFixRequired = Integer.parseInt(versionParts[0]) == 1 &&
+						(Integer.parseInt(versionParts[1]) < 7 ||
+						(Integer.parseInt(versionParts[1]) == 7 && Integer.parseInt(versionParts[2]) < 1));
+
+				if (logger.isDebugEnabled()) {
+					logger.debug("LB Service URL: " + serviceURL);
+					logger.debug("LB Service Version: " + version);
+				}
+			}
+			return version;
+		}
+
+		/**
+		 * Checks whether job statuses returned by this LB server
+		 * should be corrected with {@link jlite.util.LBServiceFix}.
+		 *
+		 * @return true if the status fix is required
+		 */
+		synchronized boolean isStatusFixRequired() throws RemoteException {
+			getVersion();
+			return statusFixRequired;
+		}
+
+		/**
+		 * Checks whether statuses of several jobs can be requested 
+		 * from this LB server with a single query.<br>
+		 * The result is reset each time the LB version is refreshed.
+		 * 
+		 * @return true if multi-job queries are supported
+		 */
+		synchronized boolean isBulkQuerySupported() throws RemoteException {
+			getVersion();
+			return bulkQuerySupported;
+		}
+
+		/**
+		 * Disables multi-job queries to this LB server 
+		 * until the LB version is refreshed.
+		 */
+		synchronized void setBulkQueryUnsupported() {
+			bulkQuerySupported = false;
+		}
+
+		/**
+		 * Requests statuses of several jobs with a single LB query.<br>
+		 * Jobs unknown to the LB server are missing in the returned map.<br>
+		 * If the server rejects the query as an unsupported operation, 
+		 * multi-job queries are disabled until the LB version is refreshed. 
+		 * Other errors, e.g. about invalid job identifiers, are thrown 
+		 * and do not disable multi-job queries.
+		 * 
+		 * @param jobIds job identifiers
+		 * @param flags job status flags
+		 * @return map <job-identifier, job-status>, or null if multi-job queries are not supported
+		 */
+		Map<String,JobStatus> queryJobStatuses(List<String> jobIds, JobFlags flags) throws RemoteException {
+			// records of a single condition are joined with OR
+			QueryRecord[] records = new QueryRecord[jobIds.size()];
+			for (int i=0; i<records.length; i++) {
+				QueryRecValue value = new QueryRecValue();
+				value.setC(jobIds.get(i));
+				records[i] = new QueryRecord(QueryOp.EQUAL, value, null);
+			}
+			QueryConditions condition = new QueryConditions(QueryAttr.JOBID, null, null, records);
+			
+			StringArrayHolder jobs = new StringArrayHolder();
+			JobStatusArrayHolder states = new JobStatusArrayHolder();
+			try {
+				service.queryJobs(new QueryConditions[] { condition }, flags, jobs, states);
+			} catch (RemoteException e) {
+				if (!ServiceGuard.isUnsupportedOperation(e)) {
+					throw e;
+				}
+				logger.debug("Multi-job queries are not supported by " + serviceURL + ": " + e.getMessage());
+				setBulkQueryUnsupported();
+				return null;
+			}
+			
+			Map<String,JobStatus> statuses = new HashMap<String,JobStatus>();
+			if (jobs.value != null && states.value != null) {
+				for (int i=0; i<jobs.value.length && i<states.value.length; i++) {
+					statuses.put(jobs.value[i], states.value[i]);
+				}
+			}
+			logger.debug("Received " + statuses.size() + " of " + jobIds.size() 
+					+ " job statuses from " + serviceURL);
+			return statuses;
+		}
+
+	}
+
+}
@@ -0,0 +1,194 @@
+/*   
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counters and latency histograms of remote operations of all sessions 
+ * of the process, keyed by operation and service endpoint.<br>
+ * Metrics of each operation and endpoint are published as an MBean 
+ * on the platform MBean server when the operation is first recorded.
+ * 
+ * @author Oleg Sukhoroslov
+ * @see OperationMetrics
+ */
+class Metrics {
+
+	private static final Logger logger = Logger.getLogger(Metrics.class);
+
+	static final String DOMAIN = "jlite";
+
+	// map <operation|endpoint, statistics>
+	private static final ConcurrentMap<String,OperationStats> operations = 
+		new ConcurrentHashMap<String,OperationStats>();
+
+	/**
+	 * Records a call of the remote operation.
+	 * 
+	 * @param operation operation name
+	 * @param endpoint service endpoint
+	 * @param latency duration of the call in milliseconds
+	 * @param bytes number of transferred bytes
+	 * @param error whether the call has failed
+	 */
+	static void record(String operation, String endpoint, long latency, long bytes, boolean error) {
+		getStats(operation, endpoint).record(latency, bytes, error);
+	}
+
+	/**
+	 * Returns snapshots of metrics of all recorded operations.
+	 * 
+	 * @return operation metrics
+	 */
+	static List<OperationMetrics> snapshot() {
+		List<OperationMetrics> snapshot = new ArrayList<OperationMetrics>();
+		for (OperationStats stats : operations.values()) {
+			snapshot.add(stats.snapshot());
+		}
+		return snapshot;
+	}
+
+	private static OperationStats getStats(String operation, String endpoint) {
+		String key = operation + "|" + endpoint;
+		OperationStats stats = operations.get(key);
+		if (stats == null) {
+			OperationStats newStats = new OperationStats(operation, endpoint);
+			stats = operations.putIfAbsent(key, newStats);
+			if (stats == null) {
+				stats = newStats;
+				register(stats);
+			}
+		}
+		return stats;
+	}
+
+	private static void register(OperationStats stats) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":type=Operation,operation=" 
+					+ ObjectName.quote(stats.operation) + ",endpoint=" + ObjectName.quote(stats.endpoint));
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new StandardMBean(stats, OperationMetricsMBean.class), name);
+			}
+		} catch (Exception e) {
+			logger.debug("Could not register MBean of operation " + stats.operation, e);
+		}
+	}
+
+	/**
+	 * Live statistics of an operation with an endpoint.
+	 */
+	private static class OperationStats implements OperationMetricsMBean {
+
+		private String operation;
+		private String endpoint;
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong errors = new AtomicLong();
+		private AtomicLong totalLatency = new AtomicLong();
+		private AtomicLong maxLatency = new AtomicLong();
+		private AtomicLong bytes = new AtomicLong();
+		private AtomicLongArray latencyCounts = new AtomicLongArray(OperationMetrics.getBucketCount());
+
+		private OperationStats(String operation, String endpoint) {
+			this.operation = operation;
+			this.endpoint = endpoint;
+		}
+
+		private void record(long latency, long transferred, boolean error) {
+			count.incrementAndGet();
+			if (error) {
+				errors.incrementAndGet();
+			} else {
+				bytes.addAndGet(transferred);
+			}
+			totalLatency.addAndGet(latency);
+			long max = maxLatency.get();
+			while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+				max = maxLatency.get();
+			}
+			latencyCounts.incrementAndGet(OperationMetrics.getBucket(latency));
+		}
+
+		private OperationMetrics snapshot() {
+			long[] counts = new long[latencyCounts.length()];
+			for (int i=0; i<counts.length; i++) {
+				counts[i] = latencyCounts.get(i);
+			}
+			return new OperationMetrics(operation, endpoint, count.get(), errors.get(), 
+					totalLatency.get(), maxLatency.get(), bytes.get(), counts);
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		public String getEndpoint() {
+			return endpoint;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		public double getMeanLatency() {
+			return snapshot().getMeanLatency();
+		}
+
+		public long getMaxLatency() {
+			return maxLatency.get();
+		}
+
+		public long getLatency50thPercentile() {
+			return snapshot().getLatencyPercentile(50);
+		}
+
+		public long getLatency95thPercentile() {
+			return snapshot().getLatencyPercentile(95);
+		}
+
+		public long getLatency99thPercentile() {
+			return snapshot().getLatencyPercentile(99);
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		public double getThroughput() {
+			return snapshot().getThroughput();
+		}
+
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import org.glite.voms.contact.VOMSProxyBuilder;
+import org.globus.gsi.GlobusCredential;
+import org.globus.gsi.gssapi.GlobusGSSCredentialImpl;
+import org.globus.myproxy.MyProxy;
+import org.ietf.jgss.GSSCredential;
+
+/**
+ * Obtains new proxies from a MyProxy server.<br>
+ * If the MyProxy server stores a plain Globus proxy, VOMS commands 
+ * must be specified: the retrieved proxy is then used as user credentials 
+ * to create a VOMS proxy. Otherwise the retrieved proxy is used as is 
+ * and must have VOMS extensions.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class MyProxySource implements ProxySource {
+
+	private String host;
+	private int port;
+	private String user;
+	private String password;
+	private int lifetime;
+	private String[] vomsArgs;
+	
+	/**
+	 * @param host MyProxy server host
+	 * @param port MyProxy server port (7512 by default)
+	 * @param user MyProxy user name
+	 * @param password MyProxy password
+	 * @param lifetime proxy validity time in seconds
+	 * @param vomsArgs VOMS commands in the form <voms>[:<command>] 
+	 * (null if the stored proxy has VOMS extensions)
+	 */
+	public MyProxySource(String host, int port, String user, String password, int lifetime, String[] vomsArgs) {
+		this.host = host;
+		this.port = port;
+		this.user = user;
+		this.password = password;
+		this.lifetime = lifetime;
+		this.vomsArgs = vomsArgs;
+	}
+	
+	public GlobusCredential getProxy(GridSession session, GridSessionConfig config) throws GridAPIException {
+		try {
+			GSSCredential credential = new MyProxy(host, port).get(user, password, lifetime);
+			GlobusCredential proxy = ((GlobusGSSCredentialImpl)credential).getGlobusCredential();
+			if (vomsArgs == null) {
+				return proxy;
+			}
+			// the retrieved proxy replaces the user credentials for this request only
+			return ((GridSessionImpl)session).createProxy(proxy, vomsArgs, lifetime, 
+					VOMSProxyBuilder.DEFAULT_PROXY_TYPE, false);
+		} catch (Exception e) {
+			if (e instanceof GridAPIException) {
+				throw (GridAPIException)e;
+			} else {
+				throw new GridAPIException(e);
+			}
+		}
+	}
+	
+}
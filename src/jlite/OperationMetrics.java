@@ -0,0 +1,204 @@
+/*   
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+/**
+ * Snapshot of metrics of a remote operation with a service endpoint: 
+ * number of calls and errors, latency histogram and transferred bytes.<br>
+ * Latencies are counted in buckets with the upper bounds returned by 
+ * {@link #getLatencyBounds()}, the last bucket counts longer calls.
+ * 
+ * @author Oleg Sukhoroslov
+ * @see GridSession#getMetricsSnapshot()
+ */
+public class OperationMetrics {
+
+	// upper bounds of latency buckets in milliseconds
+	private static final long[] LATENCY_BOUNDS = {
+		1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+	};
+
+	private String operation;
+	private String endpoint;
+	private long count;
+	private long errors;
+	private long totalLatency;
+	private long maxLatency;
+	private long bytes;
+	private long[] latencyCounts;
+
+	OperationMetrics(String operation, String endpoint, long count, long errors, 
+			long totalLatency, long maxLatency, long bytes, long[] latencyCounts) {
+		this.operation = operation;
+		this.endpoint = endpoint;
+		this.count = count;
+		this.errors = errors;
+		this.totalLatency = totalLatency;
+		this.maxLatency = maxLatency;
+		this.bytes = bytes;
+		this.latencyCounts = latencyCounts;
+	}
+
+	/**
+	 * Returns the operation name, e.g. wmproxy.jobRegister or gridftp.put.
+	 * 
+	 * @return operation name
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * Returns the service endpoint (URL or host:port).
+	 * 
+	 * @return service endpoint
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Returns the number of calls, including failed calls.
+	 * 
+	 * @return number of calls
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of failed calls.
+	 * 
+	 * @return number of errors
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Returns the total latency of all calls in milliseconds.
+	 * 
+	 * @return total latency in milliseconds
+	 */
+	public long getTotalLatency() {
+		return totalLatency;
+	}
+
+	/**
+	 * Returns the mean latency of calls in milliseconds.
+	 * 
+	 * @return mean latency in milliseconds (0 if there are no calls)
+	 */
+	public double getMeanLatency() {
+		return count > 0 ? (double)totalLatency / count : 0;
+	}
+
+	/**
+	 * Returns the maximum latency of calls in milliseconds.
+	 * 
+	 * @return maximum latency in milliseconds
+	 */
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * Returns the estimated latency percentile: the upper bound of the 
+	 * histogram bucket containing the percentile, at most the maximum latency.
+	 * 
+	 * @param percentile percentile (0-100)
+	 * @return latency in milliseconds (0 if there are no calls)
+	 */
+	public long getLatencyPercentile(double percentile) {
+		long total = 0;
+		for (long bucketCount : latencyCounts) {
+			total += bucketCount;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(total * percentile / 100);
+		long cumulative = 0;
+		for (int i=0; i<LATENCY_BOUNDS.length; i++) {
+			cumulative += latencyCounts[i];
+			if (cumulative >= rank) {
+				return Math.min(LATENCY_BOUNDS[i], maxLatency);
+			}
+		}
+		return maxLatency;
+	}
+
+	/**
+	 * Returns the number of bytes transferred by successful calls.
+	 * 
+	 * @return number of bytes
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the transfer rate of the operation: bytes per second of call latency.
+	 * 
+	 * @return throughput in bytes per second (0 if nothing is transferred)
+	 */
+	public double getThroughput() {
+		return totalLatency > 0 ? bytes * 1000.0 / totalLatency : 0;
+	}
+
+	/**
+	 * Returns the upper bounds of latency histogram buckets in milliseconds.
+	 * 
+	 * @return bucket bounds
+	 */
+	public static long[] getLatencyBounds() {
+		return LATENCY_BOUNDS.clone();
+	}
+
+	/**
+	 * Returns the latency histogram: numbers of calls in each bucket, 
+	 * with an extra bucket for calls longer than the last bound.
+	 * 
+	 * @return bucket counts
+	 */
+	public long[] getLatencyCounts() {
+		return latencyCounts.clone();
+	}
+
+	/**
+	 * Returns the bucket of the latency histogram.
+	 */
+	static int getBucket(long latency) {
+		for (int i=0; i<LATENCY_BOUNDS.length; i++) {
+			if (latency <= LATENCY_BOUNDS[i]) {
+				return i;
+			}
+		}
+		return LATENCY_BOUNDS.length;
+	}
+
+	static int getBucketCount() {
+		return LATENCY_BOUNDS.length + 1;
+	}
+
+	public String toString() {
+		return operation + " " + endpoint + ": count=" + count + ", errors=" + errors 
+				+ ", mean=" + Math.round(getMeanLatency()) + " ms, p95=" + getLatencyPercentile(95) 
+				+ " ms, max=" + maxLatency + " ms" + (bytes > 0 ? ", bytes=" + bytes : "");
+	}
+
+}
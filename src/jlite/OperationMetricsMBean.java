@@ -0,0 +1,50 @@
+/*   
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *     
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+/**
+ * Management interface of metrics of a remote operation with a service 
+ * endpoint, published as jlite:type=Operation,operation=&lt;name&gt;,endpoint=&lt;endpoint&gt;.
+ * 
+ * @author Oleg Sukhoroslov
+ * @see OperationMetrics
+ */
+public interface OperationMetricsMBean {
+
+	public String getOperation();
+
+	public String getEndpoint();
+
+	public long getCount();
+
+	public long getErrors();
+
+	public double getMeanLatency();
+
+	public long getMaxLatency();
+
+	public long getLatency50thPercentile();
+
+	public long getLatency95thPercentile();
+
+	public long getLatency99thPercentile();
+
+	public long getBytes();
+
+	public double getThroughput();
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import org.globus.gsi.GlobusCredential;
+
+/**
+ * Source of fresh VOMS proxies used to renew the session proxy 
+ * before it expires (see {@link GridSessionConfig#setProxySource}).<br>
+ * Implementations are provided for VOMS servers ({@link VOMSProxySource}) 
+ * and MyProxy servers ({@link MyProxySource}), other sources 
+ * (e.g. local stand-ins for testing) can be plugged in as well.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public interface ProxySource {
+
+	/**
+	 * Obtains a new VOMS proxy.<br>
+	 * The proxy replaces the session proxy, it is not required 
+	 * to be saved to the proxy file by the source.
+	 * 
+	 * @param session grid session whose proxy is renewed
+	 * @param config configuration of the session
+	 * @return new VOMS proxy certificate
+	 * @throws GridAPIException if the proxy could not be obtained
+	 */
+	public GlobusCredential getProxy(GridSession session, GridSessionConfig config) throws GridAPIException;
+	
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import jlite.util.TarArchive;
+import jlite.util.Util;
+
+import org.apache.log4j.Logger;
+import org.glite.jdl.Jdl;
+import org.glite.jdl.JobAd;
+
+import condor.classad.Constant;
+import condor.classad.Expr;
+import condor.classad.ListExpr;
+
+/**
+ * Packing of many small sandbox files into single archives.<br>
+ * Local input files of a job are packed into one tar.gz archive, which is
+ * uploaded instead of the files. The job executable is replaced by a small
+ * wrapper script, which unpacks the archive on the worker node, runs the
+ * original executable and, if the output sandbox is packed too, packs the
+ * output files into one archive. The output archive is unpacked after the
+ * job output is retrieved.
+ *
+ * @author Oleg Sukhoroslov
+ */
+class SandboxPacking {
+
+	private static final Logger logger = Logger.getLogger(SandboxPacking.class);
+
+	static final String INPUT_ARCHIVE = "jlite-isb.tar.gz";
+	static final String OUTPUT_ARCHIVE = "jlite-osb.tar.gz";
+	static final String OUTPUT_LIST = "jlite-osb.list";
+	static final String WRAPPER = "jlite-wrapper.sh";
+
+	// arguments: <input-archive|-> <output-archive|-> <executable> [<arguments>]
+	private static final String WRAPPER_SCRIPT =
+		"#!/bin/sh\n" +
+		"# unpacks input files, runs the job and packs output files\n" +
+		"isb=$1; osb=$2; exe=$3; shift 3\n" +
+		"if [ \"$isb\" != \"-\" ]; then\n" +
+		"  tar xzf \"$isb\" || exit 1\n" +
+		"  rm -f \"$isb\"\n" +
+		"fi\n" +
+		"if [ -f \"$exe\" ]; then\n" +
+		"  chmod +x \"$exe\"\n" +
+		"  case \"$exe\" in /*) ;; *) exe=\"./$exe\" ;; esac\n" +
+		"fi\n" +
+		"\"$exe\" \"$@\"\n" +
+		"status=$?\n" +
+		"if [ \"$osb\" != \"-\" ]; then\n" +
+		"  # names are read one per line, only names with wildcards are expanded\n" +
+		"  IFS='\n'\n" +
+		"  set --\n" +
+		"  while read -r f; do\n" +
+		"    case \"$f\" in\n" +
+		"      *[*?[]*) for g in $f; do [ -e \"$g\" ] && set -- \"$@\" \"$g\"; done ;;\n" +
+		"      *) [ -e \"$f\" ] && set -- \"$@\" \"$f\" ;;\n" +
+		"    esac\n" +
+		"  done < " + OUTPUT_LIST + "\n" +
+		"  tar czf \"$osb\" -- \"$@\" 2>/dev/null\n" +
+		"fi\n" +
+		"exit $status\n";
+
+	/**
+	 * Packs the sandboxes of a normal job if the number of local input files or
+	 * output files reaches the threshold, and rewrites the job description.<br>
+	 * The standard input file is not packed, since it is opened before the job starts,
+	 * the standard output and error files are not packed.
+	 *
+	 * @param jobAd job description, modified if the sandboxes are packed
+	 * @param inputFiles local input files of the job
+	 * @param tempDir directory for the archive and the wrapper
+	 * @param threshold minimum number of files to pack
+	 * @return local files to upload
+	 * @throws Exception if the archive could not be created or the description could not be modified
+	 */
+	static List<File> pack(JobAd jobAd, List<File> inputFiles, File tempDir, int threshold) throws Exception {
+		String stdInput = getString(jobAd, Jdl.STDINPUT);
+		String stdOutput = getString(jobAd, Jdl.STDOUTPUT);
+		String stdError = getString(jobAd, Jdl.STDERROR);
+
+		// output files are packed only if they are returned to the user
+		List<String> outputFiles = new ArrayList<String>();
+		List<String> unpackedOutputFiles = new ArrayList<String>();
+		if (jobAd.hasAttribute(Jdl.OUTPUTSB) && !jobAd.hasAttribute(Jdl.OSBURI)
+				&& !jobAd.hasAttribute(Jdl.OSBBASEURI)) {
+			for (Expr entry : getList(jobAd.lookup(Jdl.OUTPUTSB))) {
+				String name = entry.toString().replaceAll("\"", "");
+				if (name.equals(stdOutput) || name.equals(stdError)) {
+					unpackedOutputFiles.add(name);
+				} else {
+					outputFiles.add(name);
+				}
+			}
+		}
+		boolean packInput = inputFiles.size() >= threshold;
+		boolean packOutput = outputFiles.size() >= threshold;
+		if (!packInput && !packOutput) {
+			return inputFiles;
+		}
+
+		List<File> uploadFiles = new ArrayList<File>();
+		String inputArchive = "-";
+		if (packInput) {
+			List<File> packedFiles = new ArrayList<File>();
+			for (File file : inputFiles) {
+				if (stdInput != null && file.getName().equals(new File(stdInput).getName())) {
+					uploadFiles.add(file);
+				} else {
+					packedFiles.add(file);
+				}
+			}
+			File archive = new File(tempDir, INPUT_ARCHIVE);
+			TarArchive.pack(packedFiles, archive);
+			uploadFiles.add(archive);
+			inputArchive = INPUT_ARCHIVE;
+			logger.debug("Packed " + packedFiles.size() + " input files into " + archive.length() + " bytes");
+		} else {
+			uploadFiles.addAll(inputFiles);
+		}
+
+		String outputArchive = "-";
+		if (packOutput) {
+			StringBuilder list = new StringBuilder();
+			for (String name : outputFiles) {
+				list.append(name).append('\n');
+			}
+			File listFile = new File(tempDir, OUTPUT_LIST);
+			write(listFile, list.toString());
+			uploadFiles.add(listFile);
+			outputArchive = OUTPUT_ARCHIVE;
+
+			List<Expr> osb = new ArrayList<Expr>();
+			for (String name : unpackedOutputFiles) {
+				osb.add(Constant.getInstance(name));
+			}
+			osb.add(Constant.getInstance(OUTPUT_ARCHIVE));
+			jobAd.delAttribute(Jdl.OUTPUTSB);
+			jobAd.setAttribute(Jdl.OUTPUTSB, new ListExpr(osb));
+		}
+
+		File wrapper = new File(tempDir, WRAPPER);
+		write(wrapper, WRAPPER_SCRIPT);
+		uploadFiles.add(wrapper);
+
+		// the input sandbox keeps remote files and lists the local files to upload
+		List<Expr> isb = new ArrayList<Expr>();
+		if (jobAd.hasAttribute(Jdl.INPUTSB)) {
+			for (Expr entry : getList(jobAd.lookup(Jdl.INPUTSB))) {
+				if (!(entry instanceof Constant)
+						|| Util.getLocalInputSandboxFile(entry.toString().replaceAll("\"", ""), null) == null) {
+					isb.add(entry);
+				}
+			}
+			jobAd.delAttribute(Jdl.INPUTSB);
+		}
+		for (File file : uploadFiles) {
+			isb.add(Constant.getInstance("file://" + file.getAbsolutePath()));
+		}
+		jobAd.setAttribute(Jdl.INPUTSB, new ListExpr(isb));
+
+		// the original arguments are passed on as they are, to be split by the shell as before
+		String arguments = inputArchive + " " + outputArchive + " " + quote(jobAd.getString(Jdl.EXECUTABLE));
+		if (jobAd.hasAttribute(Jdl.ARGUMENTS)) {
+			arguments += " " + jobAd.getString(Jdl.ARGUMENTS);
+			jobAd.delAttribute(Jdl.ARGUMENTS);
+		}
+		jobAd.setAttribute(Jdl.ARGUMENTS, arguments);
+		jobAd.delAttribute(Jdl.EXECUTABLE);
+		jobAd.setAttribute(Jdl.EXECUTABLE, WRAPPER);
+		return uploadFiles;
+	}
+
+	/**
+	 * Unpacks the output archive retrieved to the directory, if any.
+	 *
+	 * @param dir local directory of job output
+	 * @throws IOException if the archive could not be unpacked
+	 */
+	static void unpackOutput(File dir) throws IOException {
+		File archive = new File(dir, OUTPUT_ARCHIVE);
+		if (archive.exists()) {
+			List<File> files = TarArchive.unpack(archive, dir);
+			archive.delete();
+			logger.debug("Unpacked " + files.size() + " output files in " + dir);
+		}
+	}
+
+	/**
+	 * Creates a temporary directory for the archives of a job.
+	 */
+	static File createTempDir() throws IOException {
+		File dir = File.createTempFile("jlite-sandbox", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create temporary directory: " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Deletes the temporary directory with its files.
+	 */
+	static void deleteTempDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Quotes the word for the shell.
+	 */
+	private static String quote(String word) {
+		return "'" + word.replace("'", "'\\''") + "'";
+	}
+
+	private static String getString(JobAd jobAd, String attribute) throws Exception {
+		return jobAd.hasAttribute(attribute) ? jobAd.getString(attribute) : null;
+	}
+
+	private static List<Expr> getList(Expr expr) {
+		List<Expr> list = new ArrayList<Expr>();
+		if (expr instanceof ListExpr) {
+			Iterator<?> iEntries = ((ListExpr)expr).iterator();
+			while (iEntries.hasNext()) {
+				list.add((Expr)iEntries.next());
+			}
+		} else if (expr != null) {
+			list.add(expr);
+		}
+		return list;
+	}
+
+	private static void write(File file, String data) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.io.EOFException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+import org.glite.wms.wmproxy.BaseException;
+import org.glite.wms.wmproxy.ServerOverloadedFaultException;
+import org.glite.wms.wmproxy.ServiceException;
+
+/**
+ * Retries of WMProxy and LB calls failed with transient errors, 
+ * and circuit breakers of these services.<br>
+ * Errors are classified as connection failures (the request has not reached 
+ * the service or was rejected as overloaded), other transient errors 
+ * (timeouts and broken connections) and permanent errors. Calls failed with 
+ * transient errors are repeated with jittered exponential backoff until 
+ * the attempts or the deadline are exhausted. Calls which are not idempotent 
+ * are repeated only after connection failures, since the service may have 
+ * processed the request before the timeout.<br>
+ * A circuit breaker of each service endpoint opens after a number of 
+ * consecutive transient errors: calls fail at once with 
+ * {@link ServiceUnavailableException} until the open time is over, 
+ * then a single trial call decides whether the circuit is closed again.
+ * 
+ * @author Oleg Sukhoroslov
+ */
+class ServiceGuard {
+
+	private static final Logger logger = Logger.getLogger(ServiceGuard.class);
+
+	// errors reported by WMProxy and Axis clients only in messages
+	private static final String[] CONNECT_ERRORS = {
+		ConnectException.class.getName(), 
+		UnknownHostException.class.getName(), 
+		NoRouteToHostException.class.getName(), 
+		"connect timed out"
+	};
+	private static final String[] TRANSIENT_ERRORS = {
+		SocketTimeoutException.class.getName(), 
+		SocketException.class.getName(), 
+		"Read timed out", 
+		"Connection reset"
+	};
+
+	// messages of WMProxy faults about missing or invalid delegations (in lower case)
+	private static final String[] DELEGATION_ERRORS = {
+		"not found", 
+		"unable to find", 
+		"does not exist", 
+		"unknown", 
+		"expired", 
+		"invalid"
+	};
+
+	// messages of Axis faults about operations not implemented by the service (in lower case)
+	private static final String[] UNSUPPORTED_ERRORS = {
+		"not supported", 
+		"not implemented", 
+		"no such operation", 
+		"unknown operation"
+	};
+
+	private static final Random random = new Random();
+
+	private GridSessionConfig config;
+
+	// map <endpoint, circuit-breaker>
+	private Map<String,CircuitBreaker> breakers = new HashMap<String,CircuitBreaker>();
+
+	ServiceGuard(GridSessionConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * Calls the service, repeating the call after transient errors.<br>
+	 * Each attempt is recorded in operation metrics and as a flight recorder event.
+	 * 
+	 * @param operation operation name
+	 * @param endpoint service endpoint, the key of the circuit breaker
+	 * @param jobId identifier of the job the call refers to (null if none)
+	 * @param idempotent whether the call can be repeated after it has reached the service
+	 * @param call call to the service
+	 * @return result of the call
+	 * @throws ServiceUnavailableException if the circuit of the service is open
+	 * @throws Exception error of the last attempt
+	 */
+	<T> T call(String operation, String endpoint, String jobId, boolean idempotent, Callable<T> call) 
+			throws Exception {
+		CircuitBreaker breaker = getBreaker(endpoint);
+		long deadline = System.currentTimeMillis() + config.getRetryDeadline() * 1000L;
+		long delay = Math.max(1, config.getRetryInitialDelay());
+		for (int attempt=1; ; attempt++) {
+			if (!breaker.allowRequest()) {
+				throw new ServiceUnavailableException("Service " + endpoint 
+						+ " is temporarily unavailable after repeated failures");
+			}
+			GridEvents.RemoteCall event = new GridEvents.RemoteCall();
+			event.begin();
+			long start = System.currentTimeMillis();
+			try {
+				T result = call.call();
+				Metrics.record(operation, endpoint, System.currentTimeMillis() - start, 0, false);
+				commit(event, operation, endpoint, jobId, attempt, null);
+				breaker.recordSuccess();
+				return result;
+			} catch (Exception e) {
+				Metrics.record(operation, endpoint, System.currentTimeMillis() - start, 0, true);
+				commit(event, operation, endpoint, jobId, attempt, e);
+				if (!isTransient(e)) {
+					// the service has answered
+					breaker.recordSuccess();
+					throw e;
+				}
+				breaker.recordFailure();
+				
+				long sleep = delay / 2 + (long)(random.nextDouble() * (delay / 2 + 1));
+				if ((!idempotent && !isConnectFailure(e)) || attempt >= config.getRetryMaxAttempts() 
+						|| System.currentTimeMillis() + sleep > deadline) {
+					throw e;
+				}
+				logger.debug("Attempt " + attempt + " to call " + endpoint + " failed, retrying in " 
+						+ sleep + " ms: " + e.getMessage());
+				Thread.sleep(sleep);
+				delay = Math.min(2 * delay, Math.max(delay, config.getRetryMaxDelay()));
+			} finally {
+				// the trial call is over even if it has failed with an Error
+				breaker.endTrial();
+			}
+		}
+	}
+
+	private static void commit(GridEvents.RemoteCall event, String operation, String endpoint, 
+			String jobId, int attempt, Exception error) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.operation = operation;
+			event.endpoint = endpoint;
+			event.jobId = jobId;
+			event.attempt = attempt;
+			event.success = error == null;
+			event.error = GridEvents.getError(error);
+			event.commit();
+		}
+	}
+
+	/**
+	 * Checks whether the request has not reached the service 
+	 * or was rejected by the overloaded service.
+	 */
+	static boolean isConnectFailure(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConnectException || cause instanceof UnknownHostException 
+					|| cause instanceof NoRouteToHostException || cause instanceof ServerOverloadedFaultException) {
+				return true;
+			}
+			if (cause instanceof SocketTimeoutException && containsAny(cause.getMessage(), CONNECT_ERRORS)) {
+				return true;
+			}
+			if (isClientFault(cause) && containsAny(cause.getMessage(), CONNECT_ERRORS)) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the call may succeed if repeated later.
+	 */
+	static boolean isTransient(Throwable e) {
+		if (isConnectFailure(e)) {
+			return true;
+		}
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SocketTimeoutException || cause instanceof SocketException 
+					|| cause instanceof EOFException) {
+				return true;
+			}
+			if (isClientFault(cause) && containsAny(cause.getMessage(), TRANSIENT_ERRORS)) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the WMProxy server has not found or rejected the delegated proxy 
+	 * used by the call, e.g. after a restart of the server or a purge of delegations.<br>
+	 * Only faults about the delegation match, faults about the user proxy itself 
+	 * (e.g. an expired local proxy) can not be fixed by delegating it again.
+	 */
+	static boolean isDelegationFault(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if ((cause instanceof BaseException || isClientFault(cause)) && cause.getMessage() != null) {
+				String message = cause.getMessage().toLowerCase();
+				if (message.contains("delegat") && containsAny(message, DELEGATION_ERRORS)) {
+					return true;
+				}
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the service has rejected the call as an operation it does not support, 
+	 * e.g. a multi-job query sent to an older LB server.
+	 */
+	static boolean isUnsupportedOperation(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (isClientFault(cause) && cause.getMessage() != null 
+					&& containsAny(cause.getMessage().toLowerCase(), UNSUPPORTED_ERRORS)) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Faults of WMProxy and Axis clients, which keep only the message of the underlying error.
+	 */
+	private static boolean isClientFault(Throwable e) {
+		return e instanceof ServiceException || e instanceof RemoteException;
+	}
+
+	private static boolean containsAny(String message, String[] patterns) {
+		if (message != null) {
+			for (String pattern : patterns) {
+				if (message.contains(pattern)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private synchronized CircuitBreaker getBreaker(String endpoint) {
+		CircuitBreaker breaker = breakers.get(endpoint);
+		if (breaker == null) {
+			breaker = new CircuitBreaker(endpoint);
+			breakers.put(endpoint, breaker);
+		}
+		return breaker;
+	}
+
+	/**
+	 * Circuit breaker of a service endpoint.
+	 */
+	private class CircuitBreaker {
+
+		private String endpoint;
+		private int failures = 0;
+		// end of the open state (0 if the circuit is closed)
+		private long openUntil = 0;
+		private boolean trial = false;
+
+		private CircuitBreaker(String endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		synchronized boolean allowRequest() {
+			if (openUntil == 0) {
+				return true;
+			}
+			if (System.currentTimeMillis() < openUntil || trial) {
+				return false;
+			}
+			// half-open, a single trial call
+			trial = true;
+			return true;
+		}
+
+		synchronized void recordSuccess() {
+			if (openUntil != 0) {
+				logger.info("Circuit of service " + endpoint + " is closed again");
+			}
+			failures = 0;
+			openUntil = 0;
+			trial = false;
+		}
+
+		synchronized void recordFailure() {
+			failures++;
+			int threshold = config.getCircuitBreakerThreshold();
+			if (threshold > 0 && (openUntil != 0 || failures >= threshold)) {
+				openUntil = System.currentTimeMillis() + config.getCircuitBreakerOpenTime() * 1000L;
+				logger.warn("Circuit of service " + endpoint + " is open for " 
+						+ config.getCircuitBreakerOpenTime() + " s after " + failures + " failure(s)");
+			}
+			trial = false;
+		}
+
+		synchronized void endTrial() {
+			trial = false;
+		}
+
+	}
+
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.log4j.Logger;
+import org.globus.gsi.GlobusCredential;
+
+/**
+ * Content-addressed staging area for input sandbox files.<br>
+ * A local file is staged as &lt;staging-URI&gt;/&lt;SHA-256-of-content&gt;/&lt;file-name&gt;,
+ * so each unique content is uploaded once and then referenced by all jobs.
+ * Staged files are recorded in an append-only index file with their
+ * expiration time. The index is shared by concurrent processes: it is
+ * read once and then tailed on every access, writers are serialized by
+ * the lock file, and the index is compacted when it is dominated by
+ * expired and replaced records. Concurrent staging of the same content
+ * within the process is performed once.
+ *
+ * @author Oleg Sukhoroslov
+ */
+class StagingArea {
+
+	private static final Logger logger = Logger.getLogger(StagingArea.class);
+
+	// minimum number of stale records which triggers compaction of the index
+	private static final int MIN_COMPACT_RECORDS = 1000;
+
+	private static final String HEADER = "# jlite staging index ";
+
+	private String stagingURI;
+	private long ttl;
+	private TransferEngine transferEngine;
+
+	private File file;
+	private File lockFile;
+
+	// generation of the index, changes when the index is compacted
+	private String generation;
+	// length of the index part already read
+	private long offset;
+	private int staleRecords;
+	// map <content-key, staged-file>
+	private Map<String,StagedFile> entries;
+
+	// hashes of local files, map <path, hashed-file>
+	private Map<String,HashedFile> hashes = new HashMap<String,HashedFile>();
+	// uploads in progress, map <content-key, upload-completion>
+	private Map<String,CompletableFuture<Void>> uploads = new HashMap<String,CompletableFuture<Void>>();
+
+	/**
+	 * @param stagingURI GridFTP directory of the staging area
+	 * @param ttl time in seconds staged files are reused
+	 * @param indexFile index of staged files
+	 * @param transferEngine engine which uploads files
+	 */
+	StagingArea(String stagingURI, long ttl, File indexFile, TransferEngine transferEngine) {
+		this.stagingURI = stagingURI.endsWith("/") ? stagingURI.substring(0, stagingURI.length() - 1) : stagingURI;
+		this.ttl = ttl * 1000;
+		this.transferEngine = transferEngine;
+		this.file = indexFile.getAbsoluteFile();
+		this.lockFile = new File(file.getPath() + ".lock");
+		reset();
+	}
+
+	/**
+	 * Stages local files, uploading only the contents which are not staged yet.
+	 *
+	 * @param files local files
+	 * @param vomsProxy proxy used for transfers
+	 * @return map <local-file, staged-file-URI>
+	 * @throws GridAPIException if any of files could not be read or uploaded
+	 */
+	Map<File,String> stage(List<File> files, GlobusCredential vomsProxy) throws GridAPIException {
+		Map<File,String> stagedURIs = new LinkedHashMap<File,String>();
+		Map<String,File> ownUploads = new LinkedHashMap<String,File>();
+		Map<String,CompletableFuture<Void>> ownCompletions = new HashMap<String,CompletableFuture<Void>>();
+		List<CompletableFuture<Void>> otherCompletions = new ArrayList<CompletableFuture<Void>>();
+
+		List<String> keys = new ArrayList<String>(files.size());
+		for (File localFile : files) {
+			keys.add(hash(localFile) + "/" + localFile.getName());
+		}
+
+		synchronized (this) {
+			try {
+				refresh();
+			} catch (IOException e) {
+				logger.warn("Could not read staging index " + file + ": " + e.getMessage());
+			}
+			long now = System.currentTimeMillis();
+			for (int i=0; i<files.size(); i++) {
+				File localFile = files.get(i);
+				String key = keys.get(i);
+				String uri = stagingURI + "/" + key;
+				stagedURIs.put(localFile, uri);
+				StagedFile staged = entries.get(key);
+				if (staged != null && staged.uri.equals(uri) && staged.expiry > now) {
+					continue;
+				}
+				CompletableFuture<Void> upload = uploads.get(key);
+				if (upload != null) {
+					otherCompletions.add(upload);
+				} else if (!ownUploads.containsKey(uri)) {
+					upload = new CompletableFuture<Void>();
+					uploads.put(key, upload);
+					ownCompletions.put(key, upload);
+					ownUploads.put(uri, localFile);
+				}
+			}
+		}
+
+		if (ownUploads.size() > 0) {
+			Exception error = null;
+			try {
+				transferEngine.stage(ownUploads, vomsProxy);
+				logger.debug("Staged " + ownUploads.size() + " file(s) to " + stagingURI);
+				record(ownCompletions.keySet());
+			} catch (GridAPIException e) {
+				error = e;
+				throw e;
+			} finally {
+				synchronized (this) {
+					for (Map.Entry<String,CompletableFuture<Void>> upload : ownCompletions.entrySet()) {
+						uploads.remove(upload.getKey());
+						if (error == null) {
+							upload.getValue().complete(null);
+						} else {
+							upload.getValue().completeExceptionally(error);
+						}
+					}
+				}
+			}
+		}
+
+		// wait for the files staged by concurrent submissions
+		for (CompletableFuture<Void> upload : otherCompletions) {
+			try {
+				upload.get();
+			} catch (ExecutionException e) {
+				throw new GridAPIException("Failed to stage input file: " + e.getCause().getMessage(), e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new GridAPIException(e);
+			}
+		}
+		return stagedURIs;
+	}
+
+	/**
+	 * Records staged contents in the index.<br>
+	 * Failure to write the index is not fatal, the contents are
+	 * staged again by the next submission.
+	 */
+	private void record(Iterable<String> keys) {
+		long expiry = System.currentTimeMillis() + ttl;
+		StringBuilder records = new StringBuilder();
+		for (String key : keys) {
+			records.append(key).append('\t').append(stagingURI).append('/').append(key)
+					.append('\t').append(expiry).append('\n');
+		}
+		try {
+			append(records.toString());
+		} catch (IOException e) {
+			logger.warn("Could not write staging index " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns SHA-256 hash of the file content,
+	 * the file is hashed again only when it is modified.
+	 */
+	private String hash(File localFile) throws GridAPIException {
+		String path = localFile.getAbsolutePath();
+		HashedFile hashed;
+		synchronized (hashes) {
+			hashed = hashes.get(path);
+		}
+		if (hashed != null && hashed.length == localFile.length()
+				&& hashed.lastModified == localFile.lastModified()) {
+			return hashed.hash;
+		}
+		if (!localFile.isFile()) {
+			throw new GridAPIException("Input file not found: " + path);
+		}
+		hashed = new HashedFile();
+		hashed.length = localFile.length();
+		hashed.lastModified = localFile.lastModified();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			InputStream in = new FileInputStream(localFile);
+			try {
+				byte[] buffer = new byte[65536];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hash.append(String.format("%02x", b));
+			}
+			hashed.hash = hash.toString();
+		} catch (Exception e) {
+			throw new GridAPIException("Could not read input file: " + path, e);
+		}
+		synchronized (hashes) {
+			hashes.put(path, hashed);
+		}
+		return hashed.hash;
+	}
+
+	/**
+	 * Reads records appended to the index since the last access.<br>
+	 * If the index was compacted by another process, it is read again from the start.
+	 */
+	private void refresh() throws IOException {
+		if (!file.exists()) {
+			if (offset > 0) {
+				reset();
+			}
+			return;
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long length = in.length();
+			if (offset > 0 && (length < offset || !readHeader(in).equals(generation))) {
+				reset();
+			}
+			if (length == offset) {
+				return;
+			}
+			in.seek(offset);
+			byte[] data = new byte[(int)(length - offset)];
+			in.readFully(data);
+
+			// skip the incomplete last record which is being written
+			int end = data.length;
+			while (end > 0 && data[end - 1] != '\n') {
+				end--;
+			}
+			int start = 0;
+			for (int i=0; i<end; i++) {
+				if (data[i] == '\n') {
+					apply(new String(data, start, i - start, "UTF-8"));
+					start = i + 1;
+				}
+			}
+			offset += end;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void apply(String record) {
+		if (record.startsWith(HEADER)) {
+			generation = record;
+			return;
+		}
+		String[] fields = record.split("\t");
+		if (fields.length < 3) {
+			return;
+		}
+		try {
+			StagedFile staged = new StagedFile();
+			staged.uri = fields[1];
+			staged.expiry = Long.parseLong(fields[2]);
+			if (entries.put(fields[0], staged) != null) {
+				staleRecords++;
+			}
+		} catch (NumberFormatException e) {
+			logger.debug("Malformed staging index record: " + record);
+		}
+	}
+
+	/**
+	 * Appends records to the index, compacting the index if necessary.<br>
+	 * Writers of all processes are serialized by the lock file.
+	 */
+	private void append(String records) throws IOException {
+		File dir = file.getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+		try {
+			FileLock fileLock = lock.getChannel().lock();
+			try {
+				synchronized (this) {
+					if (!file.exists() || file.length() == 0) {
+						write(file, newHeader(), false);
+					}
+					write(file, records, true);
+					refresh();
+					if (staleRecords > Math.max(entries.size(), MIN_COMPACT_RECORDS)) {
+						compact();
+					}
+				}
+			} finally {
+				fileLock.release();
+			}
+		} finally {
+			lock.close();
+		}
+	}
+
+	/**
+	 * Rewrites the index leaving only the last unexpired record of each content.
+	 */
+	private void compact() throws IOException {
+		long now = System.currentTimeMillis();
+		StringBuilder index = new StringBuilder(newHeader());
+		for (Map.Entry<String,StagedFile> entry : entries.entrySet()) {
+			if (entry.getValue().expiry > now) {
+				index.append(entry.getKey()).append('\t').append(entry.getValue().uri)
+						.append('\t').append(entry.getValue().expiry).append('\n');
+			}
+		}
+
+		// replace the index at once, so concurrent readers do not see a partial file
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			write(tmpFile, index.toString(), false);
+			if (!tmpFile.renameTo(file)) {
+				file.delete();
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Could not rename " + tmpFile + " to " + file);
+				}
+			}
+		} finally {
+			tmpFile.delete();
+		}
+		logger.debug("Compacted staging index " + file);
+		reset();
+		refresh();
+	}
+
+	private void reset() {
+		generation = null;
+		offset = 0;
+		staleRecords = 0;
+		entries = new HashMap<String,StagedFile>();
+	}
+
+	private static String readHeader(RandomAccessFile in) throws IOException {
+		in.seek(0);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			header.write(b);
+		}
+		return header.toString("UTF-8");
+	}
+
+	private static String newHeader() {
+		return HEADER + Long.toHexString(new Random().nextLong()) + "\n";
+	}
+
+	private static void write(File file, String data, boolean append) throws IOException {
+		OutputStream out = new FileOutputStream(file, append);
+		try {
+			out.write(data.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static class StagedFile {
+		private String uri;
+		private long expiry;
+	}
+
+	private static class HashedFile {
+		private long length;
+		private long lastModified;
+		private String hash;
+	}
+
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.glite.wsdl.types.lb.DoneCode;
+import org.glite.wsdl.types.lb.JobStatus;
+import org.glite.wsdl.types.lb.Jobtype;
+import org.glite.wsdl.types.lb.StatName;
+import org.glite.wsdl.types.lb.StateEnterTimesItem;
+
+/**
+ * Disk cache of job statuses shared by concurrent processes.<br>
+ * Statuses of jobs which can not change any more (Done(Ok), Aborted, Cancelled,
+ * Cleared) are kept permanently, statuses of other jobs expire after a TTL.<br>
+ * The cache is a binary append-only file of records
+ * (job identifier, expiry time, compressed status). Only the status fields 
+ * used by jLite are stored, in an explicit binary encoding rather than 
+ * Java serialization, so the file can not inject objects into the process.
+ * Only an index of record positions is kept in memory, statuses are
+ * read from the file on demand. Writers are serialized by a lock file,
+ * the file is compacted when it is dominated by superseded or expired records.<br>
+ * The cache never fails a call: I/O errors are logged and
+ * the cache behaves as if the status was not cached.
+ *
+ * @author Oleg Sukhoroslov
+ */
+class StatusCache {
+
+	private static final Logger logger = Logger.getLogger(StatusCache.class);
+
+	private static final int MAGIC = 0x4a4c5343;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+
+	// maximum length of a string in a status record, in bytes
+	private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+	// minimum size of dead records in bytes which triggers compaction of the file
+	private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+	// opened caches, map <cache-file, cache>
+	private static final Map<File,StatusCache> caches = new HashMap<File,StatusCache>();
+
+	private File file;
+	private File lockFile;
+
+	// generation of the file, changes when the file is compacted
+	private long generation;
+	// length of the file part already indexed
+	private long offset;
+	private long deadSize;
+	private Map<String,Slot> index;
+
+	private StatusCache(File file) {
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+		reset();
+	}
+
+	/**
+	 * Opens the status cache stored in the file.<br>
+	 * Caches are shared within the process.
+	 */
+	static StatusCache open(File file) {
+		file = file.getAbsoluteFile();
+		synchronized (caches) {
+			StatusCache cache = caches.get(file);
+			if (cache == null) {
+				cache = new StatusCache(file);
+				caches.put(file, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Checks whether the job status will not change any more.<br>
+	 * Jobs which are done with a failure can be resubmitted, so their status is not final.
+	 */
+	static boolean isFinal(JobStatus status) {
+		StatName state = status.getState();
+		return (state.equals(StatName.DONE) && DoneCode.OK.equals(status.getDoneCode())) 
+				|| state.equals(StatName.ABORTED) || state.equals(StatName.CANCELLED) 
+				|| state.equals(StatName.CLEARED);
+	}
+
+	/**
+	 * Returns the cached job status.
+	 *
+	 * @return job status (null if the status is not cached or expired)
+	 */
+	JobStatus get(String jobId) {
+		return getAll(Collections.singleton(jobId)).get(jobId);
+	}
+
+	/**
+	 * Returns the cached statuses of jobs.
+	 *
+	 * @return map <job-identifier, job-status> of cached jobs
+	 */
+	synchronized Map<String,JobStatus> getAll(Collection<String> jobIds) {
+		Map<String,JobStatus> statuses = new HashMap<String,JobStatus>();
+		RandomAccessFile in = null;
+		try {
+			refresh();
+			long now = System.currentTimeMillis();
+			for (String jobId : jobIds) {
+				Slot slot = index.get(jobId);
+				if (slot == null || slot.expiryTime <= now) {
+					continue;
+				}
+				if (in == null) {
+					in = openIndexed();
+					if (in == null) {
+						break;
+					}
+					slot = index.get(jobId);
+					if (slot == null || slot.expiryTime <= now) {
+						continue;
+					}
+				}
+				byte[] data = new byte[slot.length];
+				in.seek(slot.position);
+				in.readFully(data);
+				statuses.put(jobId, deserialize(data));
+			}
+		} catch (Exception e) {
+			logger.debug("Failed to read status cache: " + file, e);
+		} finally {
+			close(in);
+		}
+		return statuses;
+	}
+
+	/**
+	 * Caches statuses of jobs.<br>
+	 * Statuses of unfinished jobs are not cached if the TTL is not positive.
+	 *
+	 * @param statuses map <job-identifier, job-status>
+	 * @param ttl time in seconds to keep statuses of unfinished jobs
+	 */
+	void put(Map<String,JobStatus> statuses, int ttl) {
+		try {
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(records);
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String,JobStatus> entry : statuses.entrySet()) {
+				long expiryTime;
+				if (isFinal(entry.getValue())) {
+					expiryTime = Long.MAX_VALUE;
+				} else if (ttl > 0) {
+					expiryTime = now + ttl * 1000L;
+				} else {
+					continue;
+				}
+				writeRecord(out, entry.getKey(), expiryTime, serialize(entry.getValue()));
+			}
+			if (records.size() > 0) {
+				append(records.toByteArray());
+			}
+		} catch (IOException e) {
+			logger.debug("Failed to write status cache: " + file, e);
+		}
+	}
+
+	/**
+	 * Removes the cached job status.
+	 */
+	void remove(String jobId) {
+		try {
+			synchronized (this) {
+				refresh();
+				if (!index.containsKey(jobId)) {
+					return;
+				}
+			}
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			writeRecord(new DataOutputStream(record), jobId, 0, new byte[0]);
+			append(record.toByteArray());
+		} catch (IOException e) {
+			logger.debug("Failed to write status cache: " + file, e);
+		}
+	}
+
+	/**
+	 * Opens the file which matches the index.<br>
+	 * The file could be compacted by another process after it was indexed, 
+	 * in this case it is indexed again. The opened file remains valid 
+	 * even if it is replaced later.
+	 * 
+	 * @return opened file (null if the file does not exist)
+	 */
+	private RandomAccessFile openIndexed() throws IOException {
+		for (int i=0; i<2; i++) {
+			RandomAccessFile in;
+			try {
+				in = new RandomAccessFile(file, "r");
+			} catch (FileNotFoundException e) {
+				reset();
+				return null;
+			}
+			in.seek(8);
+			if (in.length() >= HEADER_SIZE && in.readLong() == generation) {
+				return in;
+			}
+			in.close();
+			reset();
+			refresh();
+		}
+		return null;
+	}
+
+	/**
+	 * Indexes records appended to the file since the last access.<br>
+	 * If the file was compacted by another process, it is indexed again from the start.
+	 */
+	private void refresh() throws IOException {
+		if (!file.exists()) {
+			if (offset > 0) {
+				reset();
+			}
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			long length = file.length();
+			if (length < HEADER_SIZE) {
+				return;
+			}
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a status cache file");
+			}
+			long fileGeneration = in.readLong();
+			if (offset > 0 && (fileGeneration != generation || length < offset)) {
+				reset();
+			}
+			generation = fileGeneration;
+			if (offset == 0) {
+				offset = HEADER_SIZE;
+			}
+			skipFully(in, offset - HEADER_SIZE);
+
+			long position = offset;
+			while (position < length) {
+				String jobId;
+				long expiryTime;
+				int dataLength;
+				int idLength;
+				try {
+					idLength = in.readUnsignedShort();
+					byte[] id = new byte[idLength];
+					in.readFully(id);
+					jobId = new String(id, "UTF-8");
+					expiryTime = in.readLong();
+					dataLength = in.readInt();
+				} catch (EOFException e) {
+					break; // incomplete record which is being written
+				}
+				long recordSize = 2 + idLength + 12 + dataLength;
+				if (position + recordSize > length) {
+					break;
+				}
+				skipFully(in, dataLength);
+
+				Slot previous = index.remove(jobId);
+				if (previous != null) {
+					deadSize += previous.recordSize;
+				}
+				if (dataLength > 0) {
+					Slot slot = new Slot();
+					slot.position = position + recordSize - dataLength;
+					slot.length = dataLength;
+					slot.recordSize = recordSize;
+					slot.expiryTime = expiryTime;
+					index.put(jobId, slot);
+				} else {
+					deadSize += recordSize;
+				}
+				position += recordSize;
+			}
+			offset = position;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Appends records to the file, compacting the file if necessary.
+	 */
+	private void append(byte[] records) throws IOException {
+		File dir = file.getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+		try {
+			FileLock fileLock = lock.getChannel().lock();
+			try {
+				synchronized (this) {
+					try {
+						refresh();
+					} catch (IOException e) {
+						// the file is corrupted, start from scratch
+						logger.debug("Discarding status cache: " + file, e);
+						file.delete();
+						reset();
+					}
+					if (!file.exists() || file.length() < HEADER_SIZE) {
+						write(file, newHeader(), false);
+					}
+					write(file, records, true);
+					refresh();
+					if (deadSize > MIN_COMPACT_SIZE && deadSize > file.length() / 2) {
+						compact();
+					}
+				}
+			} finally {
+				fileLock.release();
+			}
+		} finally {
+			lock.close();
+		}
+	}
+
+	/**
+	 * Rewrites the file leaving only the last unexpired record of each job.
+	 */
+	private void compact() throws IOException {
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				out.write(newHeader());
+				long now = System.currentTimeMillis();
+				for (Map.Entry<String,Slot> entry : index.entrySet()) {
+					Slot slot = entry.getValue();
+					if (slot.expiryTime > now) {
+						byte[] data = new byte[slot.length];
+						in.seek(slot.position);
+						in.readFully(data);
+						writeRecord(out, entry.getKey(), slot.expiryTime, data);
+					}
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+
+			// replace the file at once, so concurrent readers do not see a partial file
+			if (!tmpFile.renameTo(file)) {
+				file.delete();
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Could not rename " + tmpFile + " to " + file);
+				}
+			}
+		} finally {
+			tmpFile.delete();
+		}
+		logger.debug("Compacted status cache " + file + ": " + deadSize + " bytes removed");
+		reset();
+		refresh();
+	}
+
+	private void reset() {
+		generation = 0;
+		offset = 0;
+		deadSize = 0;
+		index = new HashMap<String,Slot>();
+	}
+
+	private static void writeRecord(DataOutputStream out, String jobId, long expiryTime, byte[] data)
+			throws IOException {
+		byte[] id = jobId.getBytes("UTF-8");
+		out.writeShort(id.length);
+		out.write(id);
+		out.writeLong(expiryTime);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static byte[] newHeader() throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(new Random().nextLong() | 1);
+		out.close();
+		return header.toByteArray();
+	}
+
+	private static byte[] serialize(JobStatus status) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(data));
+		writeStatus(out, status);
+		out.close();
+		return data.toByteArray();
+	}
+
+	private static JobStatus deserialize(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
+		try {
+			return readStatus(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the status fields used by jLite, with statuses of children.
+	 */
+	private static void writeStatus(DataOutputStream out, JobStatus status) throws IOException {
+		writeString(out, status.getJobId());
+		writeString(out, status.getState() != null ? status.getState().getValue() : null);
+		writeString(out, status.getDoneCode() != null ? status.getDoneCode().getValue() : null);
+		writeString(out, status.getJobtype() != null ? status.getJobtype().getValue() : null);
+		writeString(out, status.getReason());
+		writeString(out, status.getDestination());
+		writeString(out, status.getNetworkServer());
+		writeString(out, status.getJdl());
+		out.writeInt(status.getExitCode());
+		out.writeInt(status.getCpuTime());
+		out.writeInt(status.getChildrenNum());
+
+		StateEnterTimesItem[] times = status.getStateEnterTimes();
+		out.writeInt(times != null ? times.length : -1);
+		for (int i=0; times != null && i<times.length; i++) {
+			writeString(out, times[i].getState() != null ? times[i].getState().getValue() : null);
+			out.writeLong(times[i].getTime() != null ? times[i].getTime().getTimeInMillis() : Long.MIN_VALUE);
+		}
+		String[] children = status.getChildren();
+		out.writeInt(children != null ? children.length : -1);
+		for (int i=0; children != null && i<children.length; i++) {
+			writeString(out, children[i]);
+		}
+		JobStatus[] childrenStates = status.getChildrenStates();
+		out.writeInt(childrenStates != null ? childrenStates.length : -1);
+		for (int i=0; childrenStates != null && i<childrenStates.length; i++) {
+			writeStatus(out, childrenStates[i]);
+		}
+	}
+
+	private static JobStatus readStatus(DataInputStream in) throws IOException {
+		JobStatus status = new JobStatus();
+		status.setJobId(readString(in));
+		try {
+			String value = readString(in);
+			status.setState(value != null ? StatName.fromValue(value) : null);
+			value = readString(in);
+			status.setDoneCode(value != null ? DoneCode.fromValue(value) : null);
+			value = readString(in);
+			status.setJobtype(value != null ? Jobtype.fromValue(value) : null);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid status record: " + e.getMessage());
+		}
+		status.setReason(readString(in));
+		status.setDestination(readString(in));
+		status.setNetworkServer(readString(in));
+		status.setJdl(readString(in));
+		status.setExitCode(in.readInt());
+		status.setCpuTime(in.readInt());
+		status.setChildrenNum(in.readInt());
+
+		int count = readCount(in);
+		if (count >= 0) {
+			StateEnterTimesItem[] times = new StateEnterTimesItem[count];
+			for (int i=0; i<count; i++) {
+				times[i] = new StateEnterTimesItem();
+				String state = readString(in);
+				try {
+					times[i].setState(state != null ? StatName.fromValue(state) : null);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Invalid status record: " + e.getMessage());
+				}
+				long time = in.readLong();
+				if (time != Long.MIN_VALUE) {
+					Calendar calendar = Calendar.getInstance();
+					calendar.setTimeInMillis(time);
+					times[i].setTime(calendar);
+				}
+			}
+			status.setStateEnterTimes(times);
+		}
+		count = readCount(in);
+		if (count >= 0) {
+			String[] children = new String[count];
+			for (int i=0; i<count; i++) {
+				children[i] = readString(in);
+			}
+			status.setChildren(children);
+		}
+		count = readCount(in);
+		if (count >= 0) {
+			JobStatus[] childrenStates = new JobStatus[count];
+			for (int i=0; i<count; i++) {
+				childrenStates[i] = readStatus(in);
+			}
+			status.setChildrenStates(childrenStates);
+		}
+		return status;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = value.getBytes("UTF-8");
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > MAX_STRING_LENGTH) {
+			throw new IOException("Invalid string length in status record: " + length);
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return new String(data, "UTF-8");
+	}
+
+	/**
+	 * Reads the number of array elements, -1 for a null array.
+	 */
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < -1 || count > MAX_STRING_LENGTH / 4) {
+			throw new IOException("Invalid array length in status record: " + count);
+		}
+		return count;
+	}
+
+	private static void write(File file, byte[] data, boolean append) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, append);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void skipFully(DataInputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			n -= skipped;
+		}
+	}
+
+	private static void close(RandomAccessFile file) {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Position of the cached status in the file.
+	 */
+	private static class Slot {
+		private long position;
+		private int length;
+		private long recordSize;
+		private long expiryTime;
+	}
+
+}
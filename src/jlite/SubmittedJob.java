@@ -0,0 +1,67 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+/**
+ * Result of a job submission within a bulk submission.<br>
+ * A job which failed after its registration has an identifier,
+ * but is not started.
+ *
+ * @author Oleg Sukhoroslov
+ * @see GridSession#submitJobs(String, java.util.List, String)
+ */
+public class SubmittedJob {
+
+	private String jdl;
+	private String jobId;
+	private GridAPIException error;
+
+	public SubmittedJob(String jdl, String jobId, GridAPIException error) {
+		this.jdl = jdl;
+		this.jobId = jobId;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the submitted job description.
+	 */
+	public String getJdl() {
+		return jdl;
+	}
+
+	/**
+	 * Returns the job identifier (null if the job was not registered).
+	 */
+	public String getJobId() {
+		return jobId;
+	}
+
+	/**
+	 * Returns the submission error (null if the job was submitted).
+	 */
+	public GridAPIException getError() {
+		return error;
+	}
+
+	/**
+	 * Checks whether the job was submitted and started.
+	 */
+	public boolean isSubmitted() {
+		return error == null;
+	}
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import jlite.util.ThrottledExecutor;
+import jlite.util.Util;
+
+import org.apache.log4j.Logger;
+import org.globus.ftp.GridFTPClient;
+import org.globus.ftp.exception.ServerException;
+import org.globus.gsi.GlobusCredential;
+import org.globus.gsi.gssapi.GlobusGSSCredentialImpl;
+import org.globus.util.GlobusURL;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Transfers job sandbox files between the local file system and
+ * GridFTP servers.<br>
+ * Files of sandboxes are transferred concurrently, with limits on the
+ * total number of transfers and the number of transfers per GridFTP server.
+ * The GSS credential is created once per proxy and shared by all transfers,
+ * which reuse authenticated connections from a GridFTP connection pool.
+ * A sandbox transfer succeeds only if all its files are transferred,
+ * otherwise the failures of all files are reported together.
+ *
+ * @author Oleg Sukhoroslov
+ */
+class TransferEngine {
+
+	private static final Logger logger = Logger.getLogger(TransferEngine.class);
+
+	private ThrottledExecutor executor;
+	private GridFTPClientPool clientPool;
+	private GlobusCredential proxy;
+	private GSSCredential credential;
+	private Random random = new Random();
+
+	/**
+	 * @param executor executor of transfers, limited per GridFTP server
+	 * @param clientPool pool of GridFTP connections
+	 */
+	TransferEngine(ThrottledExecutor executor, GridFTPClientPool clientPool) {
+		this.executor = executor;
+		this.clientPool = clientPool;
+	}
+
+	/**
+	 * Uploads local files to the GridFTP directory.
+	 *
+	 * @param files local files
+	 * @param destDir destination GridFTP directory
+	 * @param vomsProxy proxy used for transfers
+	 * @throws GridAPIException if any of files could not be uploaded
+	 */
+	void upload(List<File> files, String destDir, GlobusCredential vomsProxy) throws GridAPIException {
+		Map<String,List<File>> sandboxes = new LinkedHashMap<String,List<File>>();
+		sandboxes.put(destDir, files);
+		upload(sandboxes, vomsProxy);
+	}
+
+	/**
+	 * Uploads local files to several GridFTP directories at once.
+	 *
+	 * @param sandboxes map <destination-GridFTP-directory, local-files>
+	 * @param vomsProxy proxy used for transfers
+	 * @throws GridAPIException if any of files could not be uploaded
+	 */
+	void upload(Map<String,List<File>> sandboxes, GlobusCredential vomsProxy) throws GridAPIException {
+		final GSSCredential cred = getCredential(vomsProxy);
+		List<String> names = new ArrayList<String>();
+		List<Future<Object>> transfers = new ArrayList<Future<Object>>();
+		for (Map.Entry<String,List<File>> sandbox : sandboxes.entrySet()) {
+			final String destDir = sandbox.getKey();
+			String host = getHost(destDir);
+			for (final File file : sandbox.getValue()) {
+				names.add(file.getAbsolutePath());
+				transfers.add(executor.submit(host, new Callable<Object>() {
+					public Object call() throws Exception {
+						String destURI = destDir + "/" + file.getName();
+						transfer(new GlobusURL(destURI), file, true, cred);
+						return null;
+					}
+				}));
+			}
+		}
+		waitForTransfers("upload", names, transfers);
+	}
+
+	/**
+	 * Uploads local files to the GridFTP URIs, creating missing parent directories.<br>
+	 * Each file is uploaded under a temporary name and then renamed,
+	 * so a partially uploaded file is never visible under its URI.
+	 *
+	 * @param files map <destination-GridFTP-URI, local-file>
+	 * @param vomsProxy proxy used for transfers
+	 * @throws GridAPIException if any of files could not be uploaded
+	 */
+	void stage(Map<String,File> files, GlobusCredential vomsProxy) throws GridAPIException {
+		final GSSCredential cred = getCredential(vomsProxy);
+		List<String> names = new ArrayList<String>();
+		List<Future<Object>> transfers = new ArrayList<Future<Object>>();
+		for (Map.Entry<String,File> entry : files.entrySet()) {
+			final String destURI = entry.getKey();
+			final File file = entry.getValue();
+			names.add(file.getAbsolutePath());
+			transfers.add(executor.submit(getHost(destURI), new Callable<Object>() {
+				public Object call() throws Exception {
+					GlobusURL dest = new GlobusURL(destURI);
+					GlobusURL partDest = new GlobusURL(destURI + ".part-" + Long.toHexString(random.nextLong()));
+					String path = dest.getPath();
+					makeDir(dest, path.substring(0, path.lastIndexOf('/')), cred);
+					transfer(partDest, file, true, cred);
+					rename(dest, partDest.getPath(), path, cred);
+					return null;
+				}
+			}));
+		}
+		waitForTransfers("stage", names, transfers);
+	}
+
+	/**
+	 * Downloads files from GridFTP servers to several local directories at once.
+	 *
+	 * @param outputs map <local-directory, GridFTP-file-URIs>
+	 * @param vomsProxy proxy used for transfers
+	 * @throws GridAPIException if any of files could not be downloaded
+	 */
+	void download(Map<String,List<String>> outputs, GlobusCredential vomsProxy) throws GridAPIException {
+		final GSSCredential cred = getCredential(vomsProxy);
+		List<String> names = new ArrayList<String>();
+		List<Future<Object>> transfers = new ArrayList<Future<Object>>();
+		for (Map.Entry<String,List<String>> output : outputs.entrySet()) {
+			final String destDir = output.getKey();
+			for (final String file : output.getValue()) {
+				names.add(file);
+				transfers.add(executor.submit(getHost(file), new Callable<Object>() {
+					public Object call() throws Exception {
+						String sourceURI = Util.sandboxDestURIToGridFTPDir(file);
+						File destFile = new File(destDir, file.substring(file.lastIndexOf("/")+1));
+						transfer(new GlobusURL(sourceURI), destFile, false, cred);
+						return null;
+					}
+				}));
+			}
+		}
+		waitForTransfers("download", names, transfers);
+	}
+
+	/**
+	 * Closes pooled GridFTP connections, the executor is shut down by its owner.
+	 */
+	void close() {
+		clientPool.close();
+	}
+
+	/**
+	 * Returns the GSS credential for the proxy,
+	 * creating it only when the proxy changes.
+	 * Connections authenticated with the previous proxy are closed.
+	 */
+	private synchronized GSSCredential getCredential(GlobusCredential vomsProxy) throws GridAPIException {
+		if (credential == null || proxy != vomsProxy) {
+			try {
+				credential = new GlobusGSSCredentialImpl(vomsProxy, GSSCredential.DEFAULT_LIFETIME);
+				if (proxy != null) {
+					clientPool.invalidate();
+				}
+				proxy = vomsProxy;
+			} catch (GSSException e) {
+				throw new GridAPIException(e);
+			}
+		}
+		return credential;
+	}
+
+	/**
+	 * Transfers a file over a pooled GridFTP connection.<br>
+	 * A reused connection may have been closed by the server, 
+	 * so a failed transfer is retried once over a new connection.
+	 */
+	private void transfer(GlobusURL remote, File local, boolean upload, GSSCredential cred) throws Exception {
+		String direction = upload ? local + " >> " + remote.getURL() : remote.getURL() + " >> " + local;
+		logger.debug("Start copying file: " + direction);
+		GridEvents.Transfer event = new GridEvents.Transfer();
+		event.begin();
+		long start = System.currentTimeMillis();
+		Exception error = null;
+		try {
+			for (int attempt = 1; ; attempt++) {
+				GridFTPClient client = clientPool.acquire(remote.getHost(), remote.getPort(), cred);
+				boolean completed = false;
+				try {
+					client.setPassive();
+					client.setLocalActive();
+					if (upload) {
+						client.put(local, remote.getPath(), false);
+					} else {
+						client.get(remote.getPath(), local);
+					}
+					completed = true;
+				} catch (Exception e) {
+					if (attempt > 1) {
+						throw e;
+					}
+					logger.debug("Retrying transfer over a new connection: " + direction, e);
+				} finally {
+					clientPool.release(client, completed);
+				}
+				if (completed) {
+					break;
+				}
+			}
+		} catch (Exception e) {
+			error = e;
+			throw e;
+		} finally {
+			String operation = upload ? "gridftp.put" : "gridftp.get";
+			long bytes = error == null ? local.length() : 0;
+			Metrics.record(operation, getEndpoint(remote), System.currentTimeMillis() - start, bytes, error != null);
+			commit(event, operation, remote, remote.getPath(), bytes, error);
+		}
+		logger.debug("Copied file: " + direction);
+	}
+
+	private void makeDir(GlobusURL remote, String dir, GSSCredential cred) throws Exception {
+		GridEvents.Transfer event = new GridEvents.Transfer();
+		event.begin();
+		long start = System.currentTimeMillis();
+		Exception error = null;
+		GridFTPClient client = clientPool.acquire(remote.getHost(), remote.getPort(), cred);
+		try {
+			if (!client.exists(dir)) {
+				try {
+					client.makeDir(dir);
+				} catch (ServerException e) {
+					// the directory may have been created by a concurrent transfer
+					if (!client.exists(dir)) {
+						throw e;
+					}
+				}
+			}
+		} catch (Exception e) {
+			error = e;
+			throw e;
+		} finally {
+			clientPool.release(client, error == null);
+			Metrics.record("gridftp.makeDir", getEndpoint(remote), System.currentTimeMillis() - start, 0, error != null);
+			commit(event, "gridftp.makeDir", remote, dir, 0, error);
+		}
+	}
+
+	private void rename(GlobusURL remote, String fromPath, String toPath, GSSCredential cred) throws Exception {
+		GridEvents.Transfer event = new GridEvents.Transfer();
+		event.begin();
+		long start = System.currentTimeMillis();
+		Exception error = null;
+		GridFTPClient client = clientPool.acquire(remote.getHost(), remote.getPort(), cred);
+		try {
+			client.rename(fromPath, toPath);
+		} catch (Exception e) {
+			error = e;
+			throw e;
+		} finally {
+			clientPool.release(client, error == null);
+			Metrics.record("gridftp.rename", getEndpoint(remote), System.currentTimeMillis() - start, 0, error != null);
+			commit(event, "gridftp.rename", remote, toPath, 0, error);
+		}
+	}
+
+	private static String getEndpoint(GlobusURL remote) {
+		return remote.getHost() + ":" + remote.getPort();
+	}
+
+	private static void commit(GridEvents.Transfer event, String operation, GlobusURL remote, 
+			String path, long bytes, Exception error) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.operation = operation;
+			event.endpoint = getEndpoint(remote);
+			event.path = path;
+			event.bytes = bytes;
+			event.success = error == null;
+			event.error = GridEvents.getError(error);
+			event.commit();
+		}
+	}
+
+	/**
+	 * Waits for all transfers and reports failed files in a single exception.
+	 */
+	private void waitForTransfers(String operation, List<String> names, List<Future<Object>> transfers)
+			throws GridAPIException {
+		List<String> failures = new ArrayList<String>();
+		Throwable firstCause = null;
+		for (int i=0; i<transfers.size(); i++) {
+			try {
+				transfers.get(i).get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				logger.debug("Failed to " + operation + " file: " + names.get(i), cause);
+				failures.add(names.get(i) + " (" + cause.getMessage() + ")");
+				if (firstCause == null) {
+					firstCause = cause;
+				}
+			} catch (InterruptedException e) {
+				for (Future<Object> transfer : transfers) {
+					transfer.cancel(false);
+				}
+				Thread.currentThread().interrupt();
+				throw new GridAPIException(e);
+			}
+		}
+		if (failures.size() > 0) {
+			StringBuilder message = new StringBuilder("Failed to " + operation + " " + failures.size()
+					+ " of " + transfers.size() + " file(s): ");
+			for (int i=0; i<failures.size(); i++) {
+				message.append(i > 0 ? "; " : "").append(failures.get(i));
+			}
+			throw new GridAPIException(message.toString(), firstCause);
+		}
+	}
+
+	private static String getHost(String uri) throws GridAPIException {
+		try {
+			return new GlobusURL(uri).getHost();
+		} catch (Exception e) {
+			throw new GridAPIException(e);
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import org.glite.voms.contact.VOMSProxyBuilder;
+import org.globus.gsi.GlobusCredential;
+
+/**
+ * Obtains new proxies from VOMS servers using the user credentials 
+ * of the session configuration (user key and certificate, or 
+ * credentials set via {@link GridSessionConfig#setUserCredentials}).
+ *
+ * @author Oleg Sukhoroslov
+ * @see GridSession#createProxy(String[], int, int, boolean)
+ */
+public class VOMSProxySource implements ProxySource {
+
+	private String[] vomsArgs;
+	private int lifetime;
+	
+	/**
+	 * @param vomsArgs a list of VOMS commands in the form <voms>[:<command>]
+	 * @param lifetime proxy validity time in seconds
+	 */
+	public VOMSProxySource(String[] vomsArgs, int lifetime) {
+		this.vomsArgs = vomsArgs;
+		this.lifetime = lifetime;
+	}
+	
+	public GlobusCredential getProxy(GridSession session, GridSessionConfig config) throws GridAPIException {
+		return session.createProxy(vomsArgs, lifetime, VOMSProxyBuilder.DEFAULT_PROXY_TYPE, false);
+	}
+	
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Selection of WMProxy endpoints by observed latency and error rate.<br>
+ * For each endpoint, the selector keeps moving averages of call latency and
+ * error rate. Endpoints are ordered by latency weighted by error rate, so
+ * that calls are routed to the fastest healthy endpoint, while endpoints
+ * without observations are tried first to learn their latency. An endpoint
+ * which failed with a connection error is avoided for a retry delay, which
+ * doubles on each subsequent failure.
+ *
+ * @author Oleg Sukhoroslov
+ */
+class WMSSelector {
+
+	private static final Logger logger = Logger.getLogger(WMSSelector.class);
+
+	// weight of the last observation in moving averages
+	private static final double LATENCY_WEIGHT = 0.3;
+	private static final double ERROR_WEIGHT = 0.2;
+	// penalty for error rate, latency is multiplied by 1 + ERROR_PENALTY * error-rate
+	private static final double ERROR_PENALTY = 10;
+	private static final long MIN_RETRY_DELAY = 30 * 1000;
+	private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+
+	// map <endpoint, statistics>
+	private Map<String,Stats> stats = new HashMap<String,Stats>();
+
+	/**
+	 * Orders the endpoints for the next call, the preferred endpoint first.<br>
+	 * Unavailable endpoints are placed last, but not removed, so that they
+	 * are still tried when all endpoints are unavailable.
+	 *
+	 * @param endpoints WMProxy endpoints in the configured order
+	 * @return ordered endpoints
+	 */
+	synchronized List<String> order(List<String> endpoints) {
+		final long now = System.currentTimeMillis();
+		final Map<String,Double> scores = new HashMap<String,Double>();
+		for (String endpoint : endpoints) {
+			Stats s = stats.get(endpoint);
+			double score = 0;
+			if (s != null) {
+				score = s.latency * (1 + ERROR_PENALTY * s.errorRate);
+				if (s.retryTime > now) {
+					score += Double.MAX_VALUE / 2;
+				}
+			}
+			scores.put(endpoint, score);
+		}
+		List<String> ordered = new ArrayList<String>(endpoints);
+		// stable sort keeps the configured order of equal endpoints
+		Collections.sort(ordered, new Comparator<String>() {
+			public int compare(String e1, String e2) {
+				return Double.compare(scores.get(e1), scores.get(e2));
+			}
+		});
+		return ordered;
+	}
+
+	/**
+	 * Records the outcome of a call to the endpoint.
+	 *
+	 * @param endpoint WMProxy endpoint
+	 * @param latency duration of the call in milliseconds
+	 * @param unavailable whether the call failed since the endpoint is unavailable
+	 */
+	synchronized void record(String endpoint, long latency, boolean unavailable) {
+		Stats s = stats.get(endpoint);
+		if (s == null) {
+			s = new Stats();
+			s.latency = latency;
+			stats.put(endpoint, s);
+		} else if (!unavailable) {
+			s.latency += LATENCY_WEIGHT * (latency - s.latency);
+		}
+		s.errorRate += ERROR_WEIGHT * ((unavailable ? 1 : 0) - s.errorRate);
+		if (unavailable) {
+			s.retryDelay = Math.min(Math.max(2 * s.retryDelay, MIN_RETRY_DELAY), MAX_RETRY_DELAY);
+			s.retryTime = System.currentTimeMillis() + s.retryDelay;
+			logger.debug("WMProxy server " + endpoint + " is avoided for " + s.retryDelay / 1000 + " s");
+		} else {
+			s.retryDelay = 0;
+			s.retryTime = 0;
+		}
+	}
+
+	/**
+	 * Observed statistics of an endpoint.
+	 */
+	private static class Stats {
+
+		private double latency;
+		private double errorRate;
+		private long retryDelay;
+		private long retryTime;
+
+	}
+
+}
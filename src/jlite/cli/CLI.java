@@ -16,9 +16,233 @@
 
 package jlite.cli;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import jlite.GridAPIException;
+import jlite.GridSession;
+import jlite.GridSessionConfig;
+import jlite.GridSessionFactory;
+import jlite.util.JobRegistry;
+
+import org.apache.commons.cli.CommandLine;
+
 public class CLI {
 
 	public static final String VERSION = "ALPHA";
 	public static final String FOOTER = "You are using jLite CLI Plus " + CLI.VERSION;
-	
+
+	// working directory of the command executed by the current thread (daemon only)
+	private static ThreadLocal<File> workingDir = new ThreadLocal<File>();
+
+	// warm grid sessions, map <proxy-path|delegation-id|status-cache, session> (daemon only)
+	private static Map<String,CachedSession> sessions = null;
+
+	// cached sessions used by the command executed by the current thread (daemon only)
+	private static ThreadLocal<List<CachedSession>> usedSessions = new ThreadLocal<List<CachedSession>>();
+
+	/**
+	 * Returns the working directory of the command.
+	 */
+	static File getWorkingDir() {
+		File dir = workingDir.get();
+		return dir != null ? dir : new File(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Sets the working directory of commands executed by the current thread.
+	 */
+	static void setWorkingDir(File dir) {
+		workingDir.set(dir);
+	}
+
+	/**
+	 * Resolves the path relative to the working directory of the command.
+	 */
+	static File getFile(String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(getWorkingDir(), path);
+	}
+
+	/**
+	 * Returns the integer value of the option, or the default value if the option is not given.
+	 *
+	 * @param line command line
+	 * @param option option name
+	 * @param defaultValue value used if the option is not given
+	 * @param minValue minimum allowed value
+	 * @return option value
+	 * @throws org.apache.commons.cli.ParseException if the value is not an integer or is below the minimum
+	 */
+	static int getIntOption(CommandLine line, String option, int defaultValue, int minValue) 
+			throws org.apache.commons.cli.ParseException {
+		if (!line.hasOption(option)) {
+			return defaultValue;
+		}
+		String value = line.getOptionValue(option);
+		try {
+			int intValue = Integer.parseInt(value.trim());
+			if (intValue >= minValue) {
+				return intValue;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new org.apache.commons.cli.ParseException("Invalid value of option -" + option + ": " + value 
+				+ " (an integer of at least " + minValue + " is expected)");
+	}
+
+	/**
+	 * Checks whether the command can interact with the user.
+	 */
+	static boolean isInteractive() {
+		return workingDir.get() == null;
+	}
+
+	/**
+	 * Returns the default path to the job status cache of commands.
+	 */
+	static String getStatusCachePath() {
+		return System.getProperty("user.home") + File.separator
+				+ ".jlite" + File.separator + "status.cache";
+	}
+
+	/**
+	 * Returns the WMProxy server of the job: the server recorded 
+	 * in the job registry, or the server determined by the session.
+	 */
+	static String getWMProxy(GridSession grid, String jobId) throws GridAPIException {
+		try {
+			JobRegistry.Entry entry = JobRegistry.open().getJob(jobId);
+			if (entry != null && entry.getWMProxyURL() != null) {
+				return entry.getWMProxyURL();
+			}
+		} catch (IOException e) {
+			// the job is looked up by the session
+		}
+		return grid.getWMProxy(jobId);
+	}
+
+	/**
+	 * Starts a flight recording of the command if the -jfr option is given.
+	 *
+	 * @return started recording, or null if the option is not given
+	 */
+	static Recording startRecording(CommandLine line) throws IOException, ParseException {
+		if (!line.hasOption("jfr")) {
+			return null;
+		}
+		Recording recording = new Recording(Configuration.getConfiguration("default"));
+		recording.setName("jlite");
+		recording.start();
+		return recording;
+	}
+
+	/**
+	 * Stops the flight recording of the command and dumps it to the file given by the -jfr option.
+	 */
+	static void stopRecording(Recording recording, CommandLine line) {
+		if (recording == null) {
+			return;
+		}
+		try {
+			recording.stop();
+			recording.dump(getFile(line.getOptionValue("jfr")).toPath());
+		} catch (IOException e) {
+			System.err.println("Could not write flight recording: " + e.getMessage());
+		} finally {
+			recording.close();
+		}
+	}
+
+	/**
+	 * Enables reuse of grid sessions by the commands of this process.
+	 */
+	static synchronized void enableSessionCache() {
+		if (sessions == null) {
+			sessions = new HashMap<String,CachedSession>();
+		}
+	}
+
+	/**
+	 * Returns a grid session for the configuration.<br>
+	 * If the session cache is enabled, a session with the same proxy file,
+	 * delegation identifier and status cache is reused until the proxy file is modified.
+	 * The replaced session is closed once the commands using it release their sessions.
+	 */
+	static GridSession createSession(GridSessionConfig conf) {
+		synchronized (CLI.class) {
+			if (sessions == null) {
+				return GridSessionFactory.create(conf);
+			}
+		}
+		File proxyFile = new File(conf.getProxyPath());
+		String key = conf.getProxyPath() + "|" + conf.getDelegationId()
+				+ "|" + conf.getStatusCachePath() + "|" + conf.getStatusCacheTTL();
+		synchronized (sessions) {
+			CachedSession cached = sessions.get(key);
+			if (cached == null || cached.proxyModified != proxyFile.lastModified()
+					|| cached.proxyLength != proxyFile.length()) {
+				if (cached != null) {
+					cached.evicted = true;
+					closeUnused(cached);
+				}
+				cached = new CachedSession();
+				cached.proxyModified = proxyFile.lastModified();
+				cached.proxyLength = proxyFile.length();
+				cached.session = GridSessionFactory.create(conf);
+				sessions.put(key, cached);
+			}
+			List<CachedSession> used = usedSessions.get();
+			if (used == null) {
+				used = new ArrayList<CachedSession>();
+				usedSessions.set(used);
+			}
+			cached.users++;
+			used.add(cached);
+			return cached.session;
+		}
+	}
+
+	/**
+	 * Releases the cached sessions used by the command executed by the current thread, 
+	 * replaced sessions which are no longer used are closed.
+	 */
+	static void releaseSessions() {
+		List<CachedSession> used = usedSessions.get();
+		usedSessions.remove();
+		if (used == null) {
+			return;
+		}
+		synchronized (sessions) {
+			for (CachedSession cached : used) {
+				cached.users--;
+				closeUnused(cached);
+			}
+		}
+	}
+
+	private static void closeUnused(CachedSession cached) {
+		if (cached.evicted && cached.users == 0) {
+			cached.session.close();
+		}
+	}
+
+	private static class CachedSession {
+		private GridSession session;
+		private long proxyModified;
+		private long proxyLength;
+		// number of commands using the session
+		private int users;
+		private boolean evicted;
+	}
+
 }
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jlite.util.ConfigCache;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+/**
+ * Long-running jLite daemon which executes CLI commands sent by
+ * {@link DaemonClient} in a warm JVM.<br>
+ * Grid sessions (with their WMProxy clients, delegations, LB stubs
+ * and GridFTP connections) are reused by subsequent commands with
+ * the same proxy. The daemon listens on the loopback interface only
+ * and accepts requests with the access token stored in the daemon file,
+ * which is readable only by the user who started the daemon.<br>
+ * Supported commands: job-status, job-submit, job-output, job-cancel, job-match.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class Daemon {
+
+	private static final String COMMAND = "jlite-daemon [options]";
+
+	private static final Logger logger = Logger.getLogger(Daemon.class);
+
+	private ServerSocket serverSocket;
+	private String token;
+	private ExecutorService executor;
+	private int idleTimeout;
+	private long lastRequestTime;
+
+	// requests with different proxies are not executed concurrently,
+	// since the proxy location is also stored in the system properties
+	private String activeProxyPath;
+	private int activeRequests = 0;
+
+	// streams of the commands executed by the current thread
+	private static ThreadStream stdout;
+	private static ThreadStream stderr;
+
+	public static void main(String[] args) {
+		System.out.println(); // extra line
+	    CommandLineParser parser = new GnuParser();
+	    Options options = setupOptions();
+	    HelpFormatter helpFormatter = new HelpFormatter();
+	    helpFormatter.setSyntaxPrefix("Usage: ");
+	    CommandLine line = null;
+		try {
+			line = parser.parse(options, args);
+            if (line.hasOption("help")) {
+            	helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
+            	System.out.println(); // extra line
+                System.exit(0);
+            } else if (line.hasOption("stop")) {
+            	if (DaemonClient.stop()) {
+            		System.out.println("jLite daemon is stopped");
+            	} else {
+            		System.out.println("jLite daemon is not running");
+            	}
+            } else {
+            	int port = Integer.parseInt(line.getOptionValue("port", "0"));
+            	int idleTimeout = Integer.parseInt(line.getOptionValue("idle", "0"));
+            	new Daemon().run(port, idleTimeout);
+            	System.exit(0);
+            }
+		} catch (ParseException e) {
+			System.err.println(e.getMessage() + "\n");
+            helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
+            System.out.println(); // extra line
+            System.exit(-1);
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+		System.out.println(); // extra line
+	}
+
+	private static Options setupOptions() {
+        Options options = new Options();
+
+        options.addOption(OptionBuilder
+                .withDescription("displays usage")
+                .create("help"));
+
+        options.addOption(OptionBuilder
+        		.withArgName("port")
+                .withDescription("local port to listen on (default is any free port)")
+                .hasArg()
+                .create("port"));
+
+        options.addOption(OptionBuilder
+        		.withArgName("seconds")
+                .withDescription("stop the daemon after the specified idle time (default is never)")
+                .hasArg()
+                .create("idle"));
+
+        options.addOption(OptionBuilder
+                .withDescription("stop the running daemon")
+                .create("stop"));
+
+        return options;
+	}
+
+	private void run(int port, int idleTimeout) throws Exception {
+		if (DaemonClient.isRunning()) {
+			throw new Exception("jLite daemon is already running");
+		}
+
+		// parsed configuration files are shared by all sessions of the daemon
+		if (System.getProperty(ConfigCache.CONFIG_CACHE_PROPERTY) == null
+				&& System.getenv(ConfigCache.CONFIG_CACHE_PROPERTY) == null) {
+			System.setProperty(ConfigCache.CONFIG_CACHE_PROPERTY,
+					DaemonClient.getDaemonFile().getParent() + File.separator + "config.cache");
+		}
+		CLI.enableSessionCache();
+
+		stdout = new ThreadStream(System.out);
+		stderr = new ThreadStream(System.err);
+		System.setOut(new PrintStream(stdout, true));
+		System.setErr(new PrintStream(stderr, true));
+
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		token = createToken();
+		writeDaemonFile();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jlite-daemon-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.idleTimeout = idleTimeout;
+		this.lastRequestTime = System.currentTimeMillis();
+		if (idleTimeout > 0) {
+			new Timer("jlite-daemon-idle", true).schedule(new TimerTask() {
+				public void run() {
+					checkIdle();
+				}
+			}, 1000, 1000);
+		}
+
+		stdout.getTarget().println("jLite daemon is listening on 127.0.0.1:" + serverSocket.getLocalPort());
+		while (true) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (SocketException e) {
+				break; // the daemon is stopped
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					handle(socket);
+				}
+			});
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if (!MessageDigest.isEqual(in.readUTF().getBytes("UTF-8"), token.getBytes("UTF-8"))) {
+				logger.warn("Rejected request with invalid token from " + socket.getInetAddress());
+				return;
+			}
+			String command = in.readUTF();
+			if (command.equals(DaemonClient.STOP)) {
+				out.writeByte(DaemonClient.FRAME_EXIT);
+				out.writeInt(0);
+				out.flush();
+				stop();
+				return;
+			}
+			File workingDir = new File(in.readUTF());
+			String proxyPath = in.readUTF();
+			List<String> args = new ArrayList<String>();
+			int argsCount = in.readInt();
+			for (int i=0; i<argsCount; i++) {
+				args.add(in.readUTF());
+			}
+			if (proxyPath.length() > 0 && !args.contains("-proxypath")) {
+				args.add(0, "-proxypath");
+				args.add(1, proxyPath);
+			}
+
+			PrintStream commandOut = new PrintStream(new FrameOutputStream(out, DaemonClient.FRAME_STDOUT), true);
+			PrintStream commandErr = new PrintStream(new FrameOutputStream(out, DaemonClient.FRAME_STDERR), true);
+			int status;
+			enter(proxyPath);
+			stdout.set(commandOut);
+			stderr.set(commandErr);
+			CLI.setWorkingDir(workingDir);
+			try {
+				status = execute(command, args.toArray(new String[args.size()]));
+			} catch (Throwable t) {
+				logger.error("Failed to execute command: " + command, t);
+				commandErr.println(t.toString());
+				status = -1;
+			} finally {
+				commandOut.flush();
+				commandErr.flush();
+				CLI.setWorkingDir(null);
+				CLI.releaseSessions();
+				stdout.set(null);
+				stderr.set(null);
+				leave();
+			}
+			synchronized (out) {
+				out.writeByte(DaemonClient.FRAME_EXIT);
+				out.writeInt(status);
+				out.flush();
+			}
+		} catch (IOException e) {
+			logger.debug("Failed to process request", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private static int execute(String command, String[] args) {
+		if (command.equals("JobStatus")) {
+			return JobStatus.execute(args);
+		} else if (command.equals("JobSubmit")) {
+			return JobSubmit.execute(args);
+		} else if (command.equals("JobOutput")) {
+			return JobOutput.execute(args);
+		} else if (command.equals("JobCancel")) {
+			return JobCancel.execute(args);
+		} else if (command.equals("JobMatch")) {
+			return JobMatch.execute(args);
+		} else {
+			System.err.println("Unsupported command: " + command);
+			return -1;
+		}
+	}
+
+	private synchronized void enter(String proxyPath) throws IOException {
+		while (activeRequests > 0 && !proxyPath.equals(activeProxyPath)) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+		activeProxyPath = proxyPath;
+		activeRequests++;
+	}
+
+	private synchronized void leave() {
+		activeRequests--;
+		lastRequestTime = System.currentTimeMillis();
+		if (activeRequests == 0) {
+			notifyAll();
+		}
+	}
+
+	private synchronized void checkIdle() {
+		if (activeRequests == 0 && System.currentTimeMillis() - lastRequestTime > idleTimeout * 1000L) {
+			logger.debug("Stopping idle daemon");
+			stop();
+		}
+	}
+
+	private void stop() {
+		// remove the daemon file unless it was replaced by another daemon
+		try {
+			Properties props = new Properties();
+			InputStream in = new FileInputStream(DaemonClient.getDaemonFile());
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			if (token.equals(props.getProperty("token"))) {
+				DaemonClient.getDaemonFile().delete();
+			}
+		} catch (IOException e) {
+			// already removed
+		}
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private void writeDaemonFile() throws IOException {
+		File file = DaemonClient.getDaemonFile();
+		File dir = file.getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs();
+			setOwnerOnly(dir);
+		}
+
+		// the token must not be readable by other users, so the permissions
+		// are set before writing the file and the file is renamed at once
+		File tmpFile = new File(dir, file.getName() + ".tmp");
+		tmpFile.delete();
+		tmpFile.createNewFile();
+		setOwnerOnly(tmpFile);
+		Properties props = new Properties();
+		props.setProperty("port", String.valueOf(serverSocket.getLocalPort()));
+		props.setProperty("token", token);
+		OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			props.store(out, "jLite daemon");
+		} finally {
+			out.close();
+		}
+		file.delete();
+		if (!tmpFile.renameTo(file)) {
+			throw new IOException("Could not create daemon file: " + file);
+		}
+	}
+
+	private static void setOwnerOnly(File file) {
+		file.setReadable(false, false);
+		file.setReadable(true, true);
+		file.setWritable(false, false);
+		file.setWritable(true, true);
+		if (file.isDirectory()) {
+			file.setExecutable(false, false);
+			file.setExecutable(true, true);
+		}
+	}
+
+	private static String createToken() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		return token.toString();
+	}
+
+	/**
+	 * Output stream which writes to the stream of the current thread,
+	 * or to the original stream if the thread does not execute a command.
+	 */
+	private static class ThreadStream extends OutputStream {
+
+		private PrintStream target;
+		private ThreadLocal<PrintStream> current = new ThreadLocal<PrintStream>();
+
+		private ThreadStream(PrintStream target) {
+			this.target = target;
+		}
+
+		private PrintStream getTarget() {
+			return target;
+		}
+
+		private void set(PrintStream stream) {
+			current.set(stream);
+		}
+
+		private PrintStream get() {
+			PrintStream stream = current.get();
+			return stream != null ? stream : target;
+		}
+
+		public void write(int b) {
+			get().write(b);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			get().write(b, off, len);
+		}
+
+		public void flush() {
+			get().flush();
+		}
+
+	}
+
+	/**
+	 * Output stream which sends data to the client in frames of the specified type.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+
+		private DataOutputStream out;
+		private int type;
+
+		private FrameOutputStream(DataOutputStream out, int type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (out) {
+				out.writeByte(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			synchronized (out) {
+				out.flush();
+			}
+		}
+
+	}
+
+}
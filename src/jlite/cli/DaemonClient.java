@@ -0,0 +1,219 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import jlite.util.JobRegistry;
+
+/**
+ * Client side of the jLite daemon protocol.<br>
+ * Commands are sent to the daemon running on the loopback interface
+ * of the local host. The daemon port and the access token are read
+ * from the daemon file (~/.jlite/daemon) which is readable only by
+ * its owner. If the daemon is not running, commands are executed
+ * in-process. Set the JLITE_DAEMON environment variable to "off"
+ * to always execute commands in-process.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class DaemonClient {
+
+	// request types
+	static final String STOP = "stop";
+
+	// response frame types
+	static final int FRAME_EXIT = 0;
+	static final int FRAME_STDOUT = 1;
+	static final int FRAME_STDERR = 2;
+
+	private static final int CONNECT_TIMEOUT = 1000;
+
+	/**
+	 * Executes the command in the daemon.
+	 *
+	 * @param command command class name
+	 * @param args command arguments
+	 * @return exit status of the command (null if the daemon is not available)
+	 */
+	static Integer execute(String command, String[] args) {
+		if ("off".equalsIgnoreCase(System.getenv("JLITE_DAEMON"))) {
+			return null;
+		}
+
+		// jobs are selected from a file interactively, which is only possible in-process
+		for (int i=0; i<args.length; i++) {
+			if (args[i].equals("-i") 
+					&& (i+1 == args.length || !args[i+1].startsWith(JobRegistry.QUERY_PREFIX))) {
+				return null;
+			}
+		}
+
+		Socket socket = connect();
+		if (socket == null) {
+			return null;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(readDaemonFile().getProperty("token"));
+			out.writeUTF(command);
+			out.writeUTF(System.getProperty("user.dir"));
+			out.writeUTF(getProxyPath(args));
+			out.writeInt(args.length);
+			for (String arg : args) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (true) {
+				int type = in.readByte();
+				if (type == FRAME_EXIT) {
+					System.out.flush();
+					System.err.flush();
+					return in.readInt();
+				}
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				if (type == FRAME_STDERR) {
+					System.err.write(data);
+					System.err.flush();
+				} else {
+					System.out.write(data);
+					System.out.flush();
+				}
+			}
+		} catch (EOFException e) {
+			System.err.println("Connection to jLite daemon is lost");
+			return -1;
+		} catch (IOException e) {
+			System.err.println("Connection to jLite daemon is lost: " + e.getMessage());
+			return -1;
+		} finally {
+			close(socket);
+		}
+	}
+
+	/**
+	 * Requests the running daemon to stop.
+	 *
+	 * @return true if the daemon was running
+	 */
+	static boolean stop() {
+		Socket socket = connect();
+		if (socket == null) {
+			return false;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeUTF(readDaemonFile().getProperty("token"));
+			out.writeUTF(STOP);
+			out.flush();
+			new DataInputStream(socket.getInputStream()).readByte();
+		} catch (IOException e) {
+			// the daemon is stopping
+		} finally {
+			close(socket);
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the daemon is running.
+	 *
+	 * @return true if the daemon accepts connections
+	 */
+	static boolean isRunning() {
+		Socket socket = connect();
+		close(socket);
+		return socket != null;
+	}
+
+	/**
+	 * Returns the file with the port and access token of the daemon.
+	 */
+	static File getDaemonFile() {
+		return new File(System.getProperty("user.home") + File.separator
+				+ ".jlite" + File.separator + "daemon");
+	}
+
+	private static Properties readDaemonFile() throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(getDaemonFile());
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	private static Socket connect() {
+		if (!getDaemonFile().exists()) {
+			return null;
+		}
+		Socket socket = new Socket();
+		try {
+			int port = Integer.parseInt(readDaemonFile().getProperty("port"));
+			socket.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), CONNECT_TIMEOUT);
+			return socket;
+		} catch (Exception e) {
+			// daemon is not running, the daemon file is stale
+			close(socket);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the absolute path of the proxy used by the command,
+	 * or an empty string if the default proxy location is used.
+	 */
+	private static String getProxyPath(String[] args) {
+		for (int i=0; i<args.length-1; i++) {
+			if (args[i].equals("-proxypath")) {
+				return new File(args[i+1]).getAbsolutePath();
+			}
+		}
+		if (System.getenv("X509_USER_PROXY") != null) {
+			return new File(System.getenv("X509_USER_PROXY")).getAbsolutePath();
+		}
+		return "";
+	}
+
+	private static void close(Socket socket) {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+}
@@ -19,10 +19,11 @@ package jlite.cli;
 import java.util.ArrayList;
 import java.util.List;
 
+import jdk.jfr.Recording;
+
 import jlite.GridAPIException;
 import jlite.GridSession;
 import jlite.GridSessionConfig;
-import jlite.GridSessionFactory;
 import jlite.util.Util;
 
 import org.apache.commons.cli.CommandLine;
@@ -38,6 +39,16 @@ public class JobCancel {
 	private static final String COMMAND = "job-cancel [options] <jobId> ...";
 	
 	public static void main(String[] args) {
+		Integer status = DaemonClient.execute("JobCancel", args);
+		if (status == null) {
+			status = execute(args);
+		}
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	public static int execute(String[] args) {
 		System.out.println(); // extra line
 	    CommandLineParser parser = new GnuParser();
 	    Options options = setupOptions();
@@ -49,18 +60,23 @@ public class JobCancel {
             if (line.hasOption("help")) {                
             	helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
         		System.out.println(); // extra line
-                System.exit(0);
+                return 0;
             } else {
             	if (line.hasOption("xml")) {
                     System.out.println("<output>");
                 }
-            	run(line.getArgs(), line);
+            	Recording recording = CLI.startRecording(line);
+            	try {
+            		run(line.getArgs(), line);
+            	} finally {
+            		CLI.stopRecording(recording, line);
+            	}
             }
 		} catch (ParseException e) {
 			System.err.println(e.getMessage() + "\n");
         	helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
     		System.out.println(); // extra line
-            System.exit(-1);
+            return -1;
 		} catch (Exception e) {
 			if (line.hasOption("xml")) {
             	System.out.println("<error>" + e.getMessage() + "</error>");
@@ -68,11 +84,12 @@ public class JobCancel {
 				System.err.println(e.getMessage());
 			}
 		} finally {
-			if (line.hasOption("xml")) {
+			if (line != null && line.hasOption("xml") && !line.hasOption("help")) {
                     System.out.println("</output>");
             }
 		}
 		System.out.println(); // extra line
+		return 0;
 	}
 
 	private static Options setupOptions() {
@@ -84,7 +101,8 @@ public class JobCancel {
 
         options.addOption(OptionBuilder
         		.withArgName("file_path")
-                .withDescription("select JobId(s) from the specified file")
+                .withDescription("select JobId(s) from the specified file or job registry query "
+                		+ "(registry:state=<state>;tag=<tag>;from=<yyyy-MM-dd>;to=<yyyy-MM-dd>)")
                 .hasArg()
                 .create("i"));
         
@@ -104,6 +122,11 @@ public class JobCancel {
                 .withArgName("xml")
                 .withDescription("output as xml")
                 .create("xml"));
+        options.addOption(OptionBuilder
+        		.withArgName("file")
+                .withDescription("dump a Java Flight Recorder recording of the command to the file")
+                .hasArg()
+                .create("jfr"));
         
         return options;
 	}
@@ -112,10 +135,14 @@ public class JobCancel {
 		GridSessionConfig conf = new GridSessionConfig();
 
 		if (line.hasOption("proxypath")) {
-            conf.setProxyPath(line.getOptionValue("proxypath"));
+            conf.setProxyPath(CLI.getFile(line.getOptionValue("proxypath")).getPath());
         }
 		
-		GridSession grid = GridSessionFactory.create(conf);
+		if (conf.getStatusCachePath() == null) {
+			conf.setStatusCachePath(CLI.getStatusCachePath());
+		}
+		
+		GridSession grid = CLI.createSession(conf);
 
 		List<String> jobIds = new ArrayList<String>();;
 		if (jobIdArgs.length > 0) {
@@ -164,7 +191,11 @@ public class JobCancel {
                 } else {
 					System.out.println("Requesting cancellation of job: " + jobId);
 				}
-				grid.cancelJob(wmProxyURL, jobId);
+				if (line.hasOption("e")) {
+					grid.cancelJob(wmProxyURL, jobId);
+				} else {
+					grid.cancelJob(CLI.getWMProxy(grid, jobId), jobId);
+				}
 				if (!line.hasOption("xml")) {
 					System.out.println("The cancellation request has been successfully submitted");
 				}
@@ -18,10 +18,11 @@ package jlite.cli;
 
 import java.util.List;
 
+import jdk.jfr.Recording;
+
 import jlite.GridAPIException;
 import jlite.GridSession;
 import jlite.GridSessionConfig;
-import jlite.GridSessionFactory;
 import jlite.MatchedCE;
 import jlite.util.Util;
 
@@ -41,6 +42,16 @@ public class JobMatch {
 	private static final String COMMAND = "job-match [options] <jdl_file>";
 
 	public static void main(String[] args) {
+		Integer status = DaemonClient.execute("JobMatch", args);
+		if (status == null) {
+			status = execute(args);
+		}
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	public static int execute(String[] args) {
 		System.out.println(); // extra line
 	    CommandLineParser parser = new GnuParser();
 	    Options options = setupOptions();
@@ -52,14 +63,19 @@ public class JobMatch {
             if (line.hasOption("help")) {                
             	helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
         		System.out.println(); // extra line
-                System.exit(0);
+                return 0;
             } else {
                 if (line.hasOption("xml")) {
                     System.out.println("<output>");
                 }
             	String[] remArgs = line.getArgs();
             	if (remArgs.length == 1) {
-            		run(remArgs[0], line);
+            		Recording recording = CLI.startRecording(line);
+            		try {
+            			run(remArgs[0], line);
+            		} finally {
+            			CLI.stopRecording(recording, line);
+            		}
             	} else if (remArgs.length == 0) {
             		throw new MissingArgumentException("Missing required argument: <jdl_file>");
             	} else {
@@ -70,7 +86,7 @@ public class JobMatch {
 			System.err.println(e.getMessage() + "\n");
             helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
     		System.out.println(); // extra line
-            System.exit(-1);
+            return -1;
 		} catch (Exception e) {
             if (line.hasOption("xml")) {
                 System.out.println("<error>" + e.getMessage() + "</error>");
@@ -78,11 +94,12 @@ public class JobMatch {
                 System.err.println(e.getMessage());
             }
 		} finally {
-            if (line.hasOption("xml")) {
+            if (line != null && line.hasOption("xml") && !line.hasOption("help")) {
                 System.out.println("</output>");
             }      
         }
 		System.out.println(); // extra line
+		return 0;
 	}
 
 	private static Options setupOptions() {
@@ -102,6 +119,10 @@ public class JobMatch {
                 .withDescription("automatic proxy delegation")
                 .create("a"));
         
+        options.addOption(OptionBuilder
+                .withDescription("with -a, delegate the proxy even if it is already delegated according to the delegation registry")
+                .create("force"));
+        
         options.addOption(OptionBuilder
         		.withArgName("service_URL")
                 .withDescription("WMProxy service endpoint")
@@ -118,6 +139,11 @@ public class JobMatch {
                 .withArgName("xml")
                 .withDescription("output as xml")
                 .create("xml"));
+        options.addOption(OptionBuilder
+        		.withArgName("file")
+                .withDescription("dump a Java Flight Recorder recording of the command to the file")
+                .hasArg()
+                .create("jfr"));
         
         return options;
 	}
@@ -127,7 +153,7 @@ public class JobMatch {
 		GridSession grid;        
 
         if (line.hasOption("proxypath")) {
-            conf.setProxyPath(line.getOptionValue("proxypath"));
+            conf.setProxyPath(CLI.getFile(line.getOptionValue("proxypath")).getPath());
         }
 
 		String vo = Util.readVOFromVOMSProxy(conf.getProxyPath());
@@ -143,16 +169,25 @@ public class JobMatch {
 		if (wmProxyURL == null) {
 			throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
 		}
-        if (line.hasOption("xml")) {
+        // without the endpoint option, the server is picked by the session for each request
+        if (!line.hasOption("e")) {
+        	if (!line.hasOption("xml")) {
+        		System.out.println("Connecting to WMProxy services of VO: " + vo + "\n");
+        	}
+        } else if (line.hasOption("xml")) {
             System.out.println("<wmProxy>" + wmProxyURL + "</wmProxy>");
         } else {
 		      System.out.println("Connecting to WMProxy service: " + wmProxyURL + "\n");
 	    }
 		String delegationId;
 		if (line.hasOption("a")) {
-			grid = GridSessionFactory.create(conf);			
+			grid = CLI.createSession(conf);			
 			delegationId = line.getOptionValue("d", System.getProperty("user.name"));	
-			grid.delegateProxy(wmProxyURL, delegationId);	
+			if (line.hasOption("e")) {
+				grid.delegateProxy(wmProxyURL, delegationId, line.hasOption("force"));
+			} else {
+				grid.delegateProxy(delegationId, line.hasOption("force"));
+			}
             if (line.hasOption("xml")) {
                 System.out.println("<delegationId>" + delegationId + "</delegationId>");
             } else {		
@@ -162,13 +197,18 @@ public class JobMatch {
 		} else {
 			delegationId = line.getOptionValue("d", System.getProperty("user.name"));
 			conf.setDelegationId(delegationId);
-			grid = GridSessionFactory.create(conf);
+			grid = CLI.createSession(conf);
 		}
 		
 		JobAd jad = new JobAd();
-        jad.fromFile(jdlFile);
+        jad.fromFile(CLI.getFile(jdlFile).getPath());
 		
-        List<MatchedCE> ces = grid.listMatchedCE(wmProxyURL, jad.toString());
+        List<MatchedCE> ces;
+        if (line.hasOption("e")) {
+        	ces = grid.listMatchedCE(wmProxyURL, jad.toString());
+        } else { // the VO servers are selected by the session
+        	ces = grid.listMatchedCE(jad.toString());
+        }
         
 //        System.out.println("Found " + ces.size() + " CE(s) matching your job requirements: ");
         int longestCeId = 0;
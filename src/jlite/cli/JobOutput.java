@@ -20,10 +20,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+import jdk.jfr.Recording;
+
 import jlite.GridAPIException;
 import jlite.GridSession;
 import jlite.GridSessionConfig;
-import jlite.GridSessionFactory;
 import jlite.util.Util;
 
 import org.apache.commons.cli.CommandLine;
@@ -39,6 +40,16 @@ public class JobOutput {
 	private static final String COMMAND = "job-output [options] <jobId> ...";
 	
 	public static void main(String[] args) {
+		Integer status = DaemonClient.execute("JobOutput", args);
+		if (status == null) {
+			status = execute(args);
+		}
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	public static int execute(String[] args) {
 		System.out.println(); // extra line
 	    CommandLineParser parser = new GnuParser();
 	    Options options = setupOptions();
@@ -50,18 +61,23 @@ public class JobOutput {
             if (line.hasOption("help")) {                
             	helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
         		System.out.println(); // extra line
-                System.exit(0);
+                return 0;
             } else {
             	if (line.hasOption("xml")) {
                     System.out.println("<output>");
                 }
-            	run(line.getArgs(), line);
+            	Recording recording = CLI.startRecording(line);
+            	try {
+            		run(line.getArgs(), line);
+            	} finally {
+            		CLI.stopRecording(recording, line);
+            	}
             }
 		} catch (ParseException e) {
 			System.err.println(e.getMessage() + "\n");
             helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
     		System.out.println(); // extra line
-            System.exit(-1);
+            return -1;
 		} catch (Exception e) {
 			if (line.hasOption("xml")) {
             	System.out.println("<error>" + e.getMessage() + "</error>");
@@ -69,11 +85,12 @@ public class JobOutput {
 				System.err.println(e.getMessage());
 			}
 		} finally {
-			if (line.hasOption("xml")) {
+			if (line != null && line.hasOption("xml") && !line.hasOption("help")) {
             	System.out.println("</output>");
             }
 		}
 		System.out.println(); // extra line
+		return 0;
 	}
 
 	private static Options setupOptions() {
@@ -85,7 +102,8 @@ public class JobOutput {
 
         options.addOption(OptionBuilder
         		.withArgName("file_path")
-                .withDescription("select JobId(s) from the specified file")
+                .withDescription("select JobId(s) from the specified file or job registry query "
+                		+ "(registry:state=<state>;tag=<tag>;from=<yyyy-MM-dd>;to=<yyyy-MM-dd>)")
                 .hasArg()
                 .create("i"));
         
@@ -119,12 +137,21 @@ public class JobOutput {
                 .withArgName("xml")
                 .withDescription("output as xml")
                 .create("xml"));
+
+        options.addOption(OptionBuilder
+                .withDescription("do not use the job status cache")
+                .create("nocache"));
         
 //      options.addOption(OptionBuilder
 //		.withArgName("protocol")
 //        .withDescription("protocol to be used for file tranfer {gsiftp,https} (default is gsiftp)")
 //        .hasArg()
 //        .create("proto"));
+        options.addOption(OptionBuilder
+        		.withArgName("file")
+                .withDescription("dump a Java Flight Recorder recording of the command to the file")
+                .hasArg()
+                .create("jfr"));
 
         return options;
 	}
@@ -133,10 +160,16 @@ public class JobOutput {
 		GridSessionConfig conf = new GridSessionConfig();
 
 		if (line.hasOption("proxypath")) {
-            conf.setProxyPath(line.getOptionValue("proxypath"));
+            conf.setProxyPath(CLI.getFile(line.getOptionValue("proxypath")).getPath());
         }
 		
-		GridSession grid = GridSessionFactory.create(conf);
+		if (line.hasOption("nocache")) {
+			conf.setStatusCachePath(null);
+		} else if (conf.getStatusCachePath() == null) {
+			conf.setStatusCachePath(CLI.getStatusCachePath());
+		}
+		
+		GridSession grid = CLI.createSession(conf);
 				
 		List<String> jobIds = new ArrayList<String>();;
 		if (jobIdArgs.length > 0) {
@@ -187,8 +220,9 @@ public class JobOutput {
 				System.out.println("Requesting output for job: " + jobId);
 			}
 			try {
+				String jobWMProxyURL = line.hasOption("e") ? wmProxyURL : CLI.getWMProxy(grid, jobId);
 				if (line.hasOption("list")) {
-					List<String> files = grid.listJobOutput(wmProxyURL, jobId);
+					List<String> files = grid.listJobOutput(jobWMProxyURL, jobId);
 					if (line.hasOption("xml")) {
         				System.out.println("<fileList>");
         			} 
@@ -203,9 +237,9 @@ public class JobOutput {
         				System.out.println("</fileList>");
         			} 
 				} else {
-					String outboxDir = line.getOptionValue("dir", 
-					System.getProperty("user.dir") + "/" + Util.getShortJobId(jobId));		
-					grid.getJobOutput(wmProxyURL, jobId, outboxDir, !line.hasOption("nopurge"));
+					String outboxDir = CLI.getFile(line.getOptionValue("dir", 
+					CLI.getWorkingDir() + "/" + Util.getShortJobId(jobId))).getPath();		
+					grid.getJobOutput(jobWMProxyURL, jobId, outboxDir, !line.hasOption("nopurge"));
 					if (line.hasOption("xml")) {
         				System.out.println("<dir>" + new File(outboxDir).getAbsolutePath() + "</dir>");
         			} else {				
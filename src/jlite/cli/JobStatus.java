@@ -16,14 +16,21 @@
 
 package jlite.cli;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
+import jdk.jfr.Recording;
+
+import jlite.GridAPIException;
 import jlite.GridSession;
 import jlite.GridSessionConfig;
-import jlite.GridSessionFactory;
+import jlite.util.JobRegistry;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -40,7 +47,24 @@ public class JobStatus {
 
 	private static final String COMMAND = "job-status [options] <jobId> ...";
 	
+	// default base polling interval in watch mode (in seconds)
+	private static final int WATCH_INTERVAL = 60;
+	// maximum growth of polling interval for jobs which do not change their state
+	private static final double WATCH_MAX_BACKOFF = 4;
+	// maximum number of consecutive failed polls in watch mode
+	private static final int WATCH_MAX_ERRORS = 5;
+	
 	public static void main(String[] args) {
+		Integer status = DaemonClient.execute("JobStatus", args);
+		if (status == null) {
+			status = execute(args);
+		}
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	public static int execute(String[] args) {
 		System.out.println(); // extra line
 	    CommandLineParser parser = new GnuParser();
 	    Options options = setupOptions();
@@ -52,18 +76,23 @@ public class JobStatus {
             if (line.hasOption("help")) {                
             	helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
             	System.out.println(); // extra line
-                System.exit(0);
+                return 0;
             } else {
             	if (line.hasOption("xml")) {
 					System.out.println("<output>");
 				}
-            	run(line.getArgs(), line);
+            	Recording recording = CLI.startRecording(line);
+            	try {
+            		run(line.getArgs(), line);
+            	} finally {
+            		CLI.stopRecording(recording, line);
+            	}
             }
 		} catch (ParseException e) {
 			System.err.println(e.getMessage() + "\n");
             helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
             System.out.println(); // extra line
-            System.exit(-1);
+            return -1;
 		} catch (Exception e) {
 			if (line.hasOption("xml")) {
 				System.out.println("<error>" + e.getMessage() + "</error>");
@@ -71,11 +100,12 @@ public class JobStatus {
 				System.err.println(e.getMessage());
 			}
 		} finally {
-			if (line.hasOption("xml")) {
+			if (line != null && line.hasOption("xml") && !line.hasOption("help")) {
 				System.out.println("</output>");
 			}
 		}
 		System.out.println(); // extra line
+		return 0;
 	}
 
 	private static Options setupOptions() {
@@ -87,7 +117,8 @@ public class JobStatus {
 
         options.addOption(OptionBuilder
         		.withArgName("file_path")
-                .withDescription("select JobId(s) from the specified file")
+                .withDescription("select JobId(s) from the specified file or job registry query "
+                		+ "(registry:state=<state>;tag=<tag>;from=<yyyy-MM-dd>;to=<yyyy-MM-dd>)")
                 .hasArg()
                 .create("i"));
 
@@ -102,11 +133,30 @@ public class JobStatus {
                 .withDescription("output as xml")
                 .create("xml"));
 
+        options.addOption(OptionBuilder
+                .withDescription("do not use the job status cache")
+                .create("nocache"));
+
+        options.addOption(OptionBuilder
+                .withDescription("watch jobs until they are finished, displaying only status changes")
+                .create("watch"));
+
+        options.addOption(OptionBuilder
+        		.withArgName("seconds")
+                .withDescription("base polling interval in watch mode (default is " + WATCH_INTERVAL + ")")
+                .hasArg()
+                .create("interval"));
+
 //        options.addOption(OptionBuilder
 //        		.withArgName("level")
 //                .withDescription("sets verbosity level of displayed information")
 //                .hasArg()
 //                .create("v"));
+        options.addOption(OptionBuilder
+        		.withArgName("file")
+                .withDescription("dump a Java Flight Recorder recording of the command to the file")
+                .hasArg()
+                .create("jfr"));
         
         return options;
 	}
@@ -115,10 +165,20 @@ public class JobStatus {
 		GridSessionConfig conf = new GridSessionConfig();
 
 		if (line.hasOption("proxypath")) {
-            conf.setProxyPath(line.getOptionValue("proxypath"));
+            conf.setProxyPath(CLI.getFile(line.getOptionValue("proxypath")).getPath());
         }
 		
-		GridSession grid = GridSessionFactory.create(conf);
+		if (line.hasOption("nocache")) {
+			conf.setStatusCachePath(null);
+		} else if (conf.getStatusCachePath() == null) {
+			conf.setStatusCachePath(CLI.getStatusCachePath());
+		}
+		if (line.hasOption("watch")) {
+			// watch mode needs fresh statuses of unfinished jobs
+			conf.setStatusCacheTTL(0);
+		}
+		
+		GridSession grid = CLI.createSession(conf);
 
 		List<String> jobIds = new ArrayList<String>();;
 		if (jobIdArgs.length > 0) {
@@ -137,9 +197,18 @@ public class JobStatus {
 			throw new Exception("JobId(s) not found");
 		}
 		
+		if (line.hasOption("watch")) {
+			watch(grid, jobIds, line);
+			return;
+		}
+		
+		// only the fields kept by the status cache are shown
+		Map<String,org.glite.wsdl.types.lb.JobStatus> statuses = grid.getJobSummaries(jobIds);
+		recordStates(statuses);
+		
 		for (String jobId : jobIds) {
 		
-			org.glite.wsdl.types.lb.JobStatus status = grid.getJobStatus(jobId);
+			org.glite.wsdl.types.lb.JobStatus status = statuses.get(jobId);
 	        if (line.hasOption("xml")) {
 				System.out.println("<jobId>" + jobId + "</jobId>");
 			} else {
@@ -298,5 +367,149 @@ public class JobStatus {
 		}
 
 	}
+
+	/**
+	 * Polls job statuses until all jobs are finished and displays status changes.<br>
+	 * Each job is polled with its own interval depending on its state: 
+	 * rarely while it is queued in a batch system, more often while it is running. 
+	 * The interval grows while the state does not change and is reset on change. 
+	 * Finished jobs are not polled anymore.
+	 */
+	private static void watch(GridSession grid, List<String> jobIds, CommandLine line) throws Exception {
+		long interval = CLI.getIntOption(line, "interval", WATCH_INTERVAL, 1) * 1000L;
+		SimpleDateFormat df = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.ENGLISH);
+		
+		Map<String,String> states = new HashMap<String,String>();
+		Map<String,Double> backoffs = new HashMap<String,Double>();
+		// map <job-identifier, next-poll-time> of unfinished jobs
+		Map<String,Long> nextPolls = new LinkedHashMap<String,Long>();
+		for (String jobId : jobIds) {
+			nextPolls.put(jobId, 0L);
+			backoffs.put(jobId, 1.0);
+		}
+		
+		if (line.hasOption("xml")) {
+			System.out.println("<statusChanges>");
+		}
+		int errors = 0;
+		while (!nextPolls.isEmpty()) {
+			long now = System.currentTimeMillis();
+			long nextPoll = Long.MAX_VALUE;
+			List<String> dueJobIds = new ArrayList<String>();
+			for (Map.Entry<String,Long> entry : nextPolls.entrySet()) {
+				if (entry.getValue() <= now) {
+					dueJobIds.add(entry.getKey());
+				} else {
+					nextPoll = Math.min(nextPoll, entry.getValue());
+				}
+			}
+			if (dueJobIds.isEmpty()) {
+				Thread.sleep(nextPoll - now);
+				continue;
+			}
+			
+			Map<String,org.glite.wsdl.types.lb.JobStatus> statuses;
+			try {
+				// only states are shown, so the children and job descriptions are not requested
+				statuses = grid.getJobStatuses(dueJobIds, true);
+				errors = 0;
+			} catch (GridAPIException e) {
+				if (++errors >= WATCH_MAX_ERRORS) {
+					throw e;
+				}
+				System.err.println(e.getMessage());
+				for (String jobId : dueJobIds) {
+					nextPolls.put(jobId, System.currentTimeMillis() + interval);
+				}
+				continue;
+			}
+			
+			recordStates(statuses);
+			
+			now = System.currentTimeMillis();
+			for (String jobId : dueJobIds) {
+				org.glite.wsdl.types.lb.JobStatus status = statuses.get(jobId);
+				if (status == null || status.getState() == null) {
+					System.err.println("Could not get status of job: " + jobId);
+					nextPolls.put(jobId, now + interval);
+					continue;
+				}
+				StatName state = status.getState();
+				String stateText = state.getValue();
+				if (state.equals(StatName.DONE) && status.getDoneCode() != null) {
+					stateText += " (" + status.getDoneCode().getValue() + ")";
+				}
+				
+				String previousStateText = states.put(jobId, stateText);
+				if (!stateText.equals(previousStateText)) {
+					backoffs.put(jobId, 1.0);
+					String time = df.format(new java.util.Date(now));
+					if (line.hasOption("xml")) {
+						System.out.println("<statusChange>");
+						System.out.println("<jobId>" + jobId + "</jobId>");
+						System.out.println("<time>" + time + "</time>");
+						if (previousStateText != null) {
+							System.out.println("<previousStatus>" + previousStateText + "</previousStatus>");
+						}
+						System.out.println("<status>" + stateText + "</status>");
+						System.out.println("</statusChange>");
+					} else if (previousStateText != null) {
+						System.out.println(time + "\t" + jobId + "\t" + previousStateText + " -> " + stateText);
+					} else {
+						System.out.println(time + "\t" + jobId + "\t" + stateText);
+					}
+				} else {
+					backoffs.put(jobId, Math.min(backoffs.get(jobId) * 1.5, WATCH_MAX_BACKOFF));
+				}
+				
+				if (isFinished(state)) {
+					nextPolls.remove(jobId);
+				} else {
+					long delay = (long)(interval * getPollFactor(state) * backoffs.get(jobId));
+					nextPolls.put(jobId, now + delay);
+				}
+			}
+		}
+		if (line.hasOption("xml")) {
+			System.out.println("</statusChanges>");
+		}
+	}
+	
+	/**
+	 * Records job states in the job registry.<br>
+	 * Failures are reported as warnings only.
+	 */
+	private static void recordStates(Map<String,org.glite.wsdl.types.lb.JobStatus> statuses) {
+		Map<String,String> states = new HashMap<String,String>();
+		for (Map.Entry<String,org.glite.wsdl.types.lb.JobStatus> status : statuses.entrySet()) {
+			if (status.getValue() != null && status.getValue().getState() != null) {
+				states.put(status.getKey(), status.getValue().getState().getValue());
+			}
+		}
+		try {
+			JobRegistry.open().updateStates(states);
+		} catch (IOException e) {
+			System.err.println("Warning: failed to update job registry: " + e.getMessage());
+		}
+	}
+	
+	private static boolean isFinished(StatName state) {
+		return state.equals(StatName.DONE) || state.equals(StatName.ABORTED) 
+				|| state.equals(StatName.CANCELLED) || state.equals(StatName.CLEARED) 
+				|| state.equals(StatName.PURGED);
+	}
+	
+	/**
+	 * Returns the factor of polling interval for the job state.
+	 */
+	private static double getPollFactor(StatName state) {
+		if (state.equals(StatName.SCHEDULED)) {
+			return 4; // waiting in a batch queue, usually for a long time
+		} else if (state.equals(StatName.RUNNING)) {
+			return 0.5; // may be completed soon
+		} else {
+			return 1;
+		}
+	}
 	
 }
@@ -18,12 +18,19 @@ package jlite.cli;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jdk.jfr.Recording;
 
 import jlite.GridAPIException;
 import jlite.GridSession;
 import jlite.GridSessionConfig;
-import jlite.GridSessionFactory;
 import jlite.GridSessionImpl;
+import jlite.SubmittedJob;
+import jlite.util.JobRegistry;
 import jlite.util.Util;
 
 import org.apache.commons.cli.CommandLine;
@@ -34,7 +41,6 @@ import org.apache.commons.cli.MissingArgumentException;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.cli.UnrecognizedOptionException;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.glite.jdl.JobAd;
@@ -45,9 +51,19 @@ import condor.classad.Op;
 
 public class JobSubmit {
 
-	private static final String COMMAND = "job-submit [options] <jdl_file>";
+	private static final String COMMAND = "job-submit [options] <jdl_file|jdl_dir> ...";
 	
 	public static void main(String[] args) {
+		Integer status = DaemonClient.execute("JobSubmit", args);
+		if (status == null) {
+			status = execute(args);
+		}
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	public static int execute(String[] args) {
 		System.out.println(); // extra line
 	    CommandLineParser parser = new GnuParser();
 	    Options options = setupOptions();
@@ -60,25 +76,28 @@ public class JobSubmit {
             if (line.hasOption("help")) {                
             	helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER+"\n", false);
             	System.out.println(); // extra line
-                System.exit(0);
+                return 0;
             } else {
                 if (line.hasOption("xml")) {
                     System.out.println("<output>");
                 }
             	String[] remArgs = line.getArgs();
-            	if (remArgs.length == 1) {
-            		run(remArgs[0], line);
-            	} else if (remArgs.length == 0) {
-            		throw new MissingArgumentException("Missing required argument: <jdl_file>");
+            	if (remArgs.length > 0) {
+            		Recording recording = CLI.startRecording(line);
+            		try {
+            			run(remArgs, line);
+            		} finally {
+            			CLI.stopRecording(recording, line);
+            		}
             	} else {
-            		throw new UnrecognizedOptionException("Unrecognized extra arguments");
+            		throw new MissingArgumentException("Missing required argument: <jdl_file>");
             	}
             }
 		} catch (ParseException e) {
 			System.err.println(e.getMessage() + "\n");
             helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER+"\n", false);
             System.out.println(); // extra line
-            System.exit(-1);
+            return -1;
 		} catch (Exception e) {
             if (line.hasOption("xml")) {
                 System.out.println("<error>" + e.getMessage() + "</error>");
@@ -86,11 +105,12 @@ public class JobSubmit {
 	            System.err.println(e.getMessage());
             }
 		} finally {
-            if (line.hasOption("xml")) {
+            if (line != null && line.hasOption("xml") && !line.hasOption("help")) {
                 System.out.println("</output>");
             }      
         }
 		System.out.println(); // extra line
+		return 0;
 	}
 
 	private static Options setupOptions() {
@@ -122,6 +142,42 @@ public class JobSubmit {
                 .hasArg()
                 .create("o"));
         
+        options.addOption(OptionBuilder
+        		.withArgName("tag")
+                .withDescription("tag the job in the job registry")
+                .hasArg()
+                .create("tag"));
+        
+        options.addOption(OptionBuilder
+        		.withArgName("number")
+                .withDescription("number of concurrent job registrations when submitting several jobs (default is 2)")
+                .hasArg()
+                .create("concurrency"));
+        
+        options.addOption(OptionBuilder
+        		.withArgName("number")
+                .withDescription("number of registered jobs uploading input files when submitting several jobs (default is 8)")
+                .hasArg()
+                .create("depth"));
+        
+        options.addOption(OptionBuilder
+        		.withArgName("number")
+                .withDescription("bundle up to the specified number of normal jobs into a single collection when submitting several jobs")
+                .hasArg()
+                .create("bundle"));
+        
+        options.addOption(OptionBuilder
+        		.withArgName("gsiftp_dir")
+                .withDescription("stage input files to the specified GridFTP directory once per content and refer jobs to the staged files")
+                .hasArg()
+                .create("stage"));
+        
+        options.addOption(OptionBuilder
+        		.withArgName("number")
+                .withDescription("pack input or output files of a job into a single archive if there are at least the specified number of them")
+                .hasArg()
+                .create("pack"));
+        
         options.addOption(OptionBuilder
         		.withArgName("id_string")
                 .withDescription("delegation id (default is user name)")
@@ -132,6 +188,10 @@ public class JobSubmit {
                 .withDescription("automatic proxy delegation")
                 .create("a"));
         
+        options.addOption(OptionBuilder
+                .withDescription("with -a, delegate the proxy even if it is already delegated according to the delegation registry")
+                .create("force"));
+        
         options.addOption(OptionBuilder
         		.withArgName("service_URL")
                 .withDescription("WMProxy service endpoint")
@@ -154,11 +214,16 @@ public class JobSubmit {
 //                .withDescription("protocol to be used for file tranfer {gsiftp,https} (default is gsiftp)")
 //                .hasArg()
 //                .create("proto"));
+        options.addOption(OptionBuilder
+        		.withArgName("file")
+                .withDescription("dump a Java Flight Recorder recording of the command to the file")
+                .hasArg()
+                .create("jfr"));
         
         return options;
 	}
 
-	private static void run(String jdlFile, CommandLine line) throws Exception {
+	private static void run(String[] jdlArgs, CommandLine line) throws Exception {
 		if (line.hasOption("debug")) {
 			Logger logger = Logger.getLogger(GridSessionImpl.class);
 			logger.setLevel(Level.DEBUG);
@@ -168,7 +233,27 @@ public class JobSubmit {
 		GridSession grid;        
 
         if (line.hasOption("proxypath")) {
-            conf.setProxyPath(line.getOptionValue("proxypath"));
+            conf.setProxyPath(CLI.getFile(line.getOptionValue("proxypath")).getPath());
+        }
+        if (line.hasOption("concurrency")) {
+        	conf.setSubmitConcurrency(CLI.getIntOption(line, "concurrency", conf.getSubmitConcurrency(), 1));
+        }
+        if (line.hasOption("depth")) {
+        	conf.setSubmitPipelineDepth(CLI.getIntOption(line, "depth", conf.getSubmitPipelineDepth(), 1));
+        }
+        if (line.hasOption("bundle")) {
+        	conf.setSubmitBundleSize(CLI.getIntOption(line, "bundle", conf.getSubmitBundleSize(), 0));
+        }
+        if (line.hasOption("stage")) {
+        	conf.setStagingURI(line.getOptionValue("stage"));
+        }
+        if (line.hasOption("pack")) {
+        	conf.setSandboxPackThreshold(CLI.getIntOption(line, "pack", conf.getSandboxPackThreshold(), 0));
+        }
+        
+        List<File> jdlFiles = listJDLFiles(jdlArgs);
+        if (jdlFiles.size() == 0) {
+        	throw new GridAPIException("JDL file(s) not found");
         }
 
 		String vo = Util.readVOFromVOMSProxy(conf.getProxyPath());
@@ -185,7 +270,12 @@ public class JobSubmit {
 		if (wmProxyURL == null) {
 			throw new GridAPIException("Could not find WMProxy server for VO: " + vo);
 		}
-        if (line.hasOption("xml")) {
+        // without the endpoint option, the server is picked by the session for each request
+        if (!line.hasOption("e")) {
+        	if (!line.hasOption("xml")) {
+        		System.out.println("Connecting to WMProxy services of VO: " + vo + "\n");
+        	}
+        } else if (line.hasOption("xml")) {
             System.out.println("<wmProxy>" + wmProxyURL + "</wmProxy>");
         } else {
 		    System.out.println("Connecting to WMProxy service: " + wmProxyURL + "\n");
@@ -193,9 +283,13 @@ public class JobSubmit {
 
 		String delegationId;
 		if (line.hasOption("a")) {
-			grid = GridSessionFactory.create(conf);	
+			grid = CLI.createSession(conf);	
 			delegationId = line.getOptionValue("d", System.getProperty("user.name"));	
-			grid.delegateProxy(wmProxyURL, delegationId);
+			if (line.hasOption("e")) {
+				grid.delegateProxy(wmProxyURL, delegationId, line.hasOption("force"));
+			} else {
+				grid.delegateProxy(delegationId, line.hasOption("force"));
+			}
             if (line.hasOption("xml")) {
                 System.out.println("<delegationId>" + delegationId + "</delegationId>");
             } else {		
@@ -205,23 +299,29 @@ public class JobSubmit {
 		} else {
 			delegationId = line.getOptionValue("d", System.getProperty("user.name"));
 			conf.setDelegationId(delegationId);
-			grid = GridSessionFactory.create(conf);
+			grid = CLI.createSession(conf);
 		}
 
-        JobAd jad = new JobAd();
-        jad.fromFile(jdlFile);
-        if (line.hasOption("r")) {        	
-        	Op expr = new Op(
-        			Expr.EQUAL,
-        			Constant.getInstance("other.GlueCEUniqueID"),
-        			Constant.getInstance(line.getOptionValue("r")));
-        	jad.delAttribute("Requirements");
-        	jad.setAttribute("Requirements", expr);
+        String inputDir = CLI.getFile(line.getOptionValue("in", CLI.getWorkingDir().getPath())).getPath();        
+        
+        // without the endpoint option, jobs are balanced between the VO servers by the session
+        if (!line.hasOption("e")) {
+        	wmProxyURL = null;
         }
         
-        String inputDir = line.getOptionValue("in", System.getProperty("user.dir"));        
+        if (jdlFiles.size() > 1 || CLI.getFile(jdlArgs[0]).isDirectory()) {
+        	submitJobs(grid, wmProxyURL, jdlFiles, inputDir, line);
+        	return;
+        }
         
-        String jobId = grid.submitJob(wmProxyURL, jad.toString(), inputDir);
+        String jdl = readJDL(jdlFiles.get(0), line);
+        String jobId;
+        if (wmProxyURL != null) {
+        	jobId = grid.submitJob(wmProxyURL, jdl, inputDir);
+        } else {
+        	jobId = grid.submitJob(jdl, inputDir);
+        }
+        recordJob(jobId, jdl, grid.getWMProxy(jobId), line);
         
         if (line.hasOption("xml")) {
               System.out.println("<jobId>" + jobId + "</jobId>");
@@ -231,17 +331,124 @@ public class JobSubmit {
 	    }	
 
 		if (line.hasOption("o")) {
-			File outFile = new File(line.getOptionValue("o"));
-			FileWriter out = new FileWriter(outFile, true);
+			saveJobIds(Arrays.asList(jobId), line);
+		}
+	}
+	
+	/**
+	 * Submits several jobs with a single pipelined bulk submission 
+	 * (to the VO servers selected by the session if the endpoint is null).
+	 */
+	private static void submitJobs(GridSession grid, String wmProxyURL, List<File> jdlFiles, 
+			String inputDir, CommandLine line) throws Exception {
+		List<String> jdls = new ArrayList<String>();
+		for (File jdlFile : jdlFiles) {
+			jdls.add(readJDL(jdlFile, line));
+		}
+		
+		List<SubmittedJob> jobs;
+		if (wmProxyURL != null) {
+			jobs = grid.submitJobs(wmProxyURL, jdls, inputDir);
+		} else {
+			jobs = grid.submitJobs(jdls, inputDir);
+		}
+		
+		List<String> jobIds = new ArrayList<String>();
+		for (int i=0; i<jobs.size(); i++) {
+			SubmittedJob job = jobs.get(i);
+			String jdlPath = jdlFiles.get(i).getPath();
+			if (job.isSubmitted()) {
+				recordJob(job.getJobId(), job.getJdl(), grid.getWMProxy(job.getJobId()), line);
+				jobIds.add(job.getJobId());
+			}
+			if (line.hasOption("xml")) {
+				System.out.println("<job>");
+				System.out.println("<jdlFile>" + jdlPath + "</jdlFile>");
+				if (job.isSubmitted()) {
+					System.out.println("<jobId>" + job.getJobId() + "</jobId>");
+				} else {
+					System.out.println("<error>" + job.getError().getMessage() + "</error>");
+				}
+				System.out.println("</job>");
+			} else if (job.isSubmitted()) {
+				System.out.println(jdlPath + "\t" + job.getJobId());
+			} else {
+				System.err.println(jdlPath + ": " + job.getError().getMessage());
+			}
+		}
+		if (!line.hasOption("xml")) {
+			System.out.println("\n" + jobIds.size() + " of " + jobs.size() 
+					+ " job(s) have been successfully submitted to the WMProxy");
+		}
+		
+		if (line.hasOption("o") && jobIds.size() > 0) {
+			saveJobIds(jobIds, line);
+		}
+		if (jobIds.size() < jobs.size()) {
+			throw new GridAPIException((jobs.size() - jobIds.size()) + " job(s) could not be submitted");
+		}
+	}
+	
+	/**
+	 * Returns JDL files specified by the arguments, 
+	 * directories are replaced by *.jdl files found in them.
+	 */
+	private static List<File> listJDLFiles(String[] jdlArgs) {
+		List<File> jdlFiles = new ArrayList<File>();
+		for (String jdlArg : jdlArgs) {
+			File file = CLI.getFile(jdlArg);
+			if (file.isDirectory()) {
+				File[] files = file.listFiles();
+				if (files != null) {
+					Arrays.sort(files);
+					for (File dirFile : files) {
+						if (dirFile.isFile() && dirFile.getName().endsWith(".jdl")) {
+							jdlFiles.add(dirFile);
+						}
+					}
+				}
+			} else {
+				jdlFiles.add(file);
+			}
+		}
+		return jdlFiles;
+	}
+	
+	private static String readJDL(File jdlFile, CommandLine line) throws Exception {
+        JobAd jad = new JobAd();
+        jad.fromFile(jdlFile.getPath());
+        if (line.hasOption("r")) {        	
+        	Op expr = new Op(
+        			Expr.EQUAL,
+        			Constant.getInstance("other.GlueCEUniqueID"),
+        			Constant.getInstance(line.getOptionValue("r")));
+        	jad.delAttribute("Requirements");
+        	jad.setAttribute("Requirements", expr);
+        }
+        return jad.toString();
+	}
+	
+	private static void recordJob(String jobId, String jdl, String wmProxyURL, CommandLine line) {
+        try {
+        	JobRegistry.open().addJob(jobId, jdl, wmProxyURL, line.getOptionValue("tag"));
+        } catch (IOException e) {
+        	System.err.println("Warning: failed to record the job in job registry: " + e.getMessage());
+        }
+	}
+	
+	private static void saveJobIds(List<String> jobIds, CommandLine line) throws IOException {
+		File outFile = CLI.getFile(line.getOptionValue("o"));
+		FileWriter out = new FileWriter(outFile, true);
+		for (String jobId : jobIds) {
 			out.write(jobId + "\n");
-			out.close();
-            if (line.hasOption("xml")) {
-                 System.out.println("<jodIdFile>" + outFile.getAbsolutePath() + "</jobIdFile>");
-            } else {
-			     System.out.println("\nThe job identifier has been saved in the following file:\n" + 
-					outFile.getAbsolutePath());
-            }
 		}
+		out.close();
+        if (line.hasOption("xml")) {
+             System.out.println("<jodIdFile>" + outFile.getAbsolutePath() + "</jobIdFile>");
+        } else {
+		     System.out.println((jobIds.size() == 1 ? "\nThe job identifier has been" : "\nThe job identifiers have been") 
+		    		 + " saved in the following file:\n" + outFile.getAbsolutePath());
+        }
 	}
 	
 }
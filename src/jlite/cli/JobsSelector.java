@@ -26,11 +26,17 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import jlite.util.JobRegistry;
+
 public class JobsSelector {
 
 	public static List<String> select(String jobsFile) throws IOException {
+		if (jobsFile.startsWith(JobRegistry.QUERY_PREFIX)) {
+			return JobRegistry.open().select(jobsFile);
+		}
+		
 		List<String> fileJobIds = new ArrayList<String>();
-		File inFile = new File(jobsFile);
+		File inFile = CLI.getFile(jobsFile);
 		BufferedReader in = new BufferedReader(new FileReader(inFile));
 		String jobLine;
 		while ((jobLine = in.readLine()) != null) {
@@ -42,6 +48,9 @@ public class JobsSelector {
 		
 		List<String> selectedJobIds = new ArrayList<String>();
 		if (fileJobIds.size() > 1) {
+			if (!CLI.isInteractive()) {
+				throw new IOException("Jobs can not be selected interactively by the jLite daemon");
+			}
 			System.out.println("------------------------------------------------------------------");
 			for (int i=0; i<fileJobIds.size(); i++) {
 				System.out.println((i+1) + " : " + fileJobIds.get(i));
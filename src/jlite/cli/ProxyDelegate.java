@@ -16,6 +16,8 @@
 
 package jlite.cli;
 
+import jdk.jfr.Recording;
+
 import jlite.GridAPIException;
 import jlite.GridSession;
 import jlite.GridSessionConfig;
@@ -51,7 +53,12 @@ public class ProxyDelegate {
             if (line.hasOption("xml")) {
 				System.out.println("<output>");
 			}
-            run(line);
+            Recording recording = CLI.startRecording(line);
+            try {
+            	run(line);
+            } finally {
+            	CLI.stopRecording(recording, line);
+            }
 		} catch (ParseException e) {
 			System.err.println(e.getMessage() + "\n");
             helpFormatter.printHelp(100, COMMAND, "\noptions:", options, "\n"+CLI.FOOTER, false);
@@ -90,6 +97,10 @@ public class ProxyDelegate {
                 .hasArg()
                 .create("e"));
 
+        options.addOption(OptionBuilder
+                .withDescription("delegate the proxy even if it is already delegated according to the delegation registry")
+                .create("force"));
+        
         options.addOption(OptionBuilder
                 .withArgName("proxyfile")
                 .withDescription("non-standard location of proxy cert")
@@ -101,6 +112,11 @@ public class ProxyDelegate {
                 .withDescription("output as xml")
                 .create("xml"));
           
+        options.addOption(OptionBuilder
+        		.withArgName("file")
+                .withDescription("dump a Java Flight Recorder recording of the command to the file")
+                .hasArg()
+                .create("jfr"));
         
         return options;
 	}
@@ -134,7 +150,7 @@ public class ProxyDelegate {
 		}
 
 		String delegationId = line.getOptionValue("d", System.getProperty("user.name"));	
-		grid.delegateProxy(wmProxyURL, delegationId);
+		grid.delegateProxy(wmProxyURL, delegationId, line.hasOption("force"));
 
 		if (line.hasOption("xml")) {
 			System.out.println("<delegationId>" + delegationId + "</delegationId>");
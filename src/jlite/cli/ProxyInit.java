@@ -21,6 +21,8 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
+import jdk.jfr.Recording;
+
 import jlite.GridSession;
 import jlite.GridSessionConfig;
 import jlite.GridSessionFactory;
@@ -63,7 +65,12 @@ public class ProxyInit {
 				}
             	String[] remArgs = line.getArgs();
             	if (remArgs.length > 0) {
-            		run(remArgs, line);
+            		Recording recording = CLI.startRecording(line);
+            		try {
+            			run(remArgs, line);
+            		} finally {
+            			CLI.stopRecording(recording, line);
+            		}
             	} else {
             		throw new MissingArgumentException("Missing required argument: <voms>[:<command>]");
             	}
@@ -140,6 +147,11 @@ public class ProxyInit {
         		.withArgName("xml")
                 .withDescription("output as xml")
                 .create("xml"));
+        options.addOption(OptionBuilder
+        		.withArgName("file")
+                .withDescription("dump a Java Flight Recorder recording of the command to the file")
+                .hasArg()
+                .create("jfr"));
         
         return options;
 	}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.glite.voms.contact.VOMSServerInfo;
+import org.glite.voms.contact.VOMSServerMap;
+
+/**
+ * Snapshot of parsed configuration files stored in a single file.<br>
+ * Parsed WMProxy endpoints and VOMS servers are kept together with a
+ * fingerprint of their source files (paths, modification times and sizes).
+ * A cached entry is used only while the fingerprint of its sources is
+ * unchanged, otherwise the sources are parsed again and the snapshot is
+ * rewritten. The snapshot is enabled by setting the JLITE_CONFIG_CACHE
+ * environment variable or system property to the snapshot file path.<br>
+ * Parsed values are stored as rows of strings in a plain binary format, 
+ * so reading a snapshot does not instantiate arbitrary classes.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class ConfigCache {
+
+	public static final String CONFIG_CACHE_PROPERTY = "JLITE_CONFIG_CACHE";
+
+	// version of the snapshot format, snapshots of other versions are ignored
+	private static final int VERSION = 2;
+
+	// limits of the snapshot format, larger values are treated as corruption
+	private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+	private static final int MAX_COUNT = 1024 * 1024;
+
+	private static final Logger logger = Logger.getLogger(ConfigCache.class);
+
+	private File file;
+	private Map<String,Entry> entries;
+	private boolean modified = false;
+
+	private ConfigCache(File file) {
+		this.file = file;
+		this.entries = new HashMap<String,Entry>();
+	}
+
+	/**
+	 * Opens the configuration snapshot specified by the JLITE_CONFIG_CACHE
+	 * environment variable or system property.
+	 *
+	 * @return configuration snapshot (null if the snapshot is not enabled)
+	 */
+	public static ConfigCache open() {
+		String path = System.getProperty(CONFIG_CACHE_PROPERTY);
+		if (path == null) {
+			path = System.getenv(CONFIG_CACHE_PROPERTY);
+		}
+		if (path == null || path.length() == 0) {
+			return null;
+		}
+		return open(new File(path));
+	}
+
+	/**
+	 * Opens the configuration snapshot stored in the file.<br>
+	 * A missing or unreadable snapshot results in an empty snapshot.
+	 *
+	 * @param file snapshot file
+	 * @return configuration snapshot
+	 */
+	public static ConfigCache open(File file) {
+		ConfigCache cache = new ConfigCache(file);
+		if (file.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				if (in.readInt() == VERSION) {
+					cache.entries = readEntries(in);
+					logger.debug("Loaded configuration snapshot: " + file);
+				}
+			} catch (Exception e) {
+				logger.debug("Failed to load configuration snapshot: " + file, e);
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns all WMProxy endpoints configured in the directory.
+	 *
+	 * @see WMSDirParser#readWMProxyEndpoints(String)
+	 * @param dir configuration directory
+	 * @return map <VO-name, WMProxy-endpoints>
+	 */
+	public Map<String,List<String>> readWMProxyEndpoints(String dir) {
+		String key = "wmslist:" + dir;
+		String fingerprint = fingerprint(new File(dir), 2);
+		Entry entry = entries.get(key);
+		if (entry != null && entry.fingerprint.equals(fingerprint) && entry.hasRows(1)) {
+			// a row per VO: VO name followed by its endpoints
+			Map<String,List<String>> wmProxies = new HashMap<String,List<String>>();
+			for (String[] row : entry.rows) {
+				wmProxies.put(row[0], new ArrayList<String>(Arrays.asList(row).subList(1, row.length)));
+			}
+			return wmProxies;
+		}
+
+		Map<String,List<String>> wmProxies = WMSDirParser.readWMProxyEndpoints(dir);
+		List<String[]> rows = new ArrayList<String[]>();
+		for (Map.Entry<String,List<String>> vo : wmProxies.entrySet()) {
+			String[] row = new String[vo.getValue().size() + 1];
+			row[0] = vo.getKey();
+			for (int i=0; i<vo.getValue().size(); i++) {
+				row[i+1] = vo.getValue().get(i);
+			}
+			rows.add(row);
+		}
+		put(key, fingerprint, rows);
+		return wmProxies;
+	}
+
+	/**
+	 * Returns VOMS servers configured in the vomses file or directory.
+	 *
+	 * @see VOMSESFileParser#parseServers(File)
+	 * @param vomsDir vomses file or directory
+	 * @return VOMS servers
+	 * @throws IOException if the vomses files could not be read
+	 */
+	public VOMSServerMap readVOMSServers(String vomsDir) throws IOException {
+		String key = "vomses:" + vomsDir;
+		String fingerprint = fingerprint(new File(vomsDir), 1);
+		Entry entry = entries.get(key);
+		if (entry != null && entry.fingerprint.equals(fingerprint) && entry.hasRows(4)) {
+			// a row per server: VO name, host, port and DN
+			VOMSServerMap vomsServers = new VOMSServerMap();
+			for (String[] server : entry.rows) {
+				VOMSServerInfo info = new VOMSServerInfo();
+				info.setVoName(server[0]);
+				info.setHostName(server[1]);
+				info.setPort(Integer.parseInt(server[2]));
+				info.setHostDn(server[3]);
+				vomsServers.add(info);
+			}
+			return vomsServers;
+		}
+
+		VOMSServerMap vomsServers = new VOMSServerMap();
+		List<String[]> servers = new ArrayList<String[]>();
+		for (VOMSServerInfo info : VOMSESFileParser.parseServers(new File(vomsDir))) {
+			vomsServers.add(info);
+			servers.add(new String[] {info.getVoName(), info.getHostName(),
+					String.valueOf(info.getPort()), info.getHostDn()});
+		}
+		put(key, fingerprint, servers);
+		return vomsServers;
+	}
+
+	/**
+	 * Writes the snapshot to its file if any entry is changed.<br>
+	 * Failures are logged and otherwise ignored.
+	 */
+	public void save() {
+		if (!modified) {
+			return;
+		}
+		File tmpFile = null;
+		DataOutputStream out = null;
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			dir.mkdirs();
+			tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(VERSION);
+			writeEntries(out, entries);
+			out.close();
+			out = null;
+
+			// replace the snapshot at once, so concurrent readers do not see a partial file
+			if (!tmpFile.renameTo(file)) {
+				file.delete();
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Could not rename " + tmpFile + " to " + file);
+				}
+			}
+			modified = false;
+			logger.debug("Saved configuration snapshot: " + file);
+		} catch (IOException e) {
+			logger.debug("Failed to save configuration snapshot: " + file, e);
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ce) {
+					// ignore
+				}
+			}
+			if (tmpFile != null) {
+				tmpFile.delete();
+			}
+		}
+	}
+
+	private void put(String key, String fingerprint, List<String[]> rows) {
+		Entry entry = new Entry();
+		entry.fingerprint = fingerprint;
+		entry.rows = rows;
+		entries.put(key, entry);
+		modified = true;
+	}
+
+	private static void writeEntries(DataOutputStream out, Map<String,Entry> entries) throws IOException {
+		out.writeInt(entries.size());
+		for (Map.Entry<String,Entry> entry : entries.entrySet()) {
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue().fingerprint);
+			out.writeInt(entry.getValue().rows.size());
+			for (String[] row : entry.getValue().rows) {
+				out.writeInt(row.length);
+				for (String value : row) {
+					writeString(out, value);
+				}
+			}
+		}
+	}
+
+	private static Map<String,Entry> readEntries(DataInputStream in) throws IOException {
+		Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+		int count = readCount(in);
+		for (int i=0; i<count; i++) {
+			String key = readString(in);
+			Entry entry = new Entry();
+			entry.fingerprint = readString(in);
+			int rowCount = readCount(in);
+			entry.rows = new ArrayList<String[]>(rowCount);
+			for (int j=0; j<rowCount; j++) {
+				String[] row = new String[readCount(in)];
+				for (int k=0; k<row.length; k++) {
+					row[k] = readString(in);
+				}
+				entry.rows.add(row);
+			}
+			entries.put(key, entry);
+		}
+		return entries;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = value.getBytes("UTF-8");
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > MAX_STRING_LENGTH) {
+			throw new IOException("Invalid string length in configuration snapshot: " + length);
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return new String(data, "UTF-8");
+	}
+
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > MAX_COUNT) {
+			throw new IOException("Invalid number of values in configuration snapshot: " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Builds a fingerprint of the file or directory tree up to the specified depth.
+	 */
+	private static String fingerprint(File file, int depth) {
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint(file, depth, fingerprint);
+		return fingerprint.toString();
+	}
+
+	private static void fingerprint(File file, int depth, StringBuilder fingerprint) {
+		fingerprint.append(file.getPath()).append(':').append(file.lastModified())
+				.append(':').append(file.length()).append('\n');
+		if (depth > 0 && file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				Arrays.sort(children);
+				for (File child : children) {
+					fingerprint(child, depth - 1, fingerprint);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parsed value of configuration files with the fingerprint of the files.
+	 */
+	private static class Entry {
+
+		private String fingerprint;
+		private List<String[]> rows;
+
+		/**
+		 * Checks that each row has at least the specified number of values.
+		 */
+		boolean hasRows(int minLength) {
+			for (String[] row : rows) {
+				if (row.length < minLength) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local registry of submitted jobs.<br>
+ * For each job the registry keeps its identifier, submission time,
+ * hash of its JDL, WMProxy endpoint, optional tag and last known state.
+ * The registry is stored in an append-only log file which is shared by
+ * concurrent processes. The log is read once and then tailed on every
+ * access, the records are indexed in memory by state, tag and submission
+ * time. The log is compacted when it is dominated by stale state records.<br>
+ * The registry file is ~/.jlite/jobs.log unless the JLITE_JOB_REGISTRY
+ * environment variable or system property specifies another path.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class JobRegistry {
+
+	public static final String JOB_REGISTRY_PROPERTY = "JLITE_JOB_REGISTRY";
+
+	// prefix of registry queries accepted in place of a job identifiers file
+	public static final String QUERY_PREFIX = "registry:";
+
+	// minimum number of stale records which triggers compaction of the log
+	private static final int MIN_COMPACT_RECORDS = 10000;
+
+	private static final String HEADER = "# jlite job registry ";
+	private static final String JOB_RECORD = "J";
+	private static final String STATE_RECORD = "S";
+	private static final String INITIAL_STATE = "Submitted";
+
+	private static final Logger logger = Logger.getLogger(JobRegistry.class);
+
+	// opened registries, map <registry-file, registry>
+	private static final Map<File,JobRegistry> registries = new HashMap<File,JobRegistry>();
+
+	private File file;
+	private File lockFile;
+
+	// generation of the log, changes when the log is compacted
+	private String generation;
+	// length of the log part already read
+	private long offset;
+	private int staleRecords;
+
+	private Map<String,Entry> entries;
+	private Map<String,Set<String>> stateIndex;
+	private Map<String,Set<String>> tagIndex;
+	private TreeMap<Long,Set<String>> timeIndex;
+
+	private JobRegistry(File file) {
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+		reset();
+	}
+
+	/**
+	 * Opens the job registry specified by the JLITE_JOB_REGISTRY environment
+	 * variable or system property, or the default registry ~/.jlite/jobs.log.
+	 *
+	 * @return job registry
+	 */
+	public static JobRegistry open() {
+		String path = System.getProperty(JOB_REGISTRY_PROPERTY);
+		if (path == null) {
+			path = System.getenv(JOB_REGISTRY_PROPERTY);
+		}
+		if (path == null || path.length() == 0) {
+			path = System.getProperty("user.home") + File.separator
+					+ ".jlite" + File.separator + "jobs.log";
+		}
+		return open(new File(path));
+	}
+
+	/**
+	 * Opens the job registry stored in the file.<br>
+	 * Registries are shared within the process, so repeated calls
+	 * for the same file only read records appended since the last access.
+	 *
+	 * @param file registry log file
+	 * @return job registry
+	 */
+	public static JobRegistry open(File file) {
+		file = file.getAbsoluteFile();
+		synchronized (registries) {
+			JobRegistry registry = registries.get(file);
+			if (registry == null) {
+				registry = new JobRegistry(file);
+				registries.put(file, registry);
+			}
+			return registry;
+		}
+	}
+
+	/**
+	 * Records a submitted job.
+	 *
+	 * @param jobId job identifier
+	 * @param jdl JDL of the job
+	 * @param wmProxyURL WMProxy service endpoint
+	 * @param tag job tag (may be null)
+	 * @throws IOException if the registry could not be written
+	 */
+	public void addJob(String jobId, String jdl, String wmProxyURL, String tag) throws IOException {
+		StringBuilder record = new StringBuilder();
+		record.append(JOB_RECORD).append('\t').append(jobId)
+				.append('\t').append(System.currentTimeMillis())
+				.append('\t').append(hash(jdl))
+				.append('\t').append(clean(wmProxyURL))
+				.append('\t').append(clean(tag)).append('\n');
+		append(record.toString());
+	}
+
+	/**
+	 * Records states of jobs.<br>
+	 * Only the jobs which are present in the registry and
+	 * whose state is changed are written to the log.
+	 *
+	 * @param states map <job-identifier, state>
+	 * @throws IOException if the registry could not be written
+	 */
+	public void updateStates(Map<String,String> states) throws IOException {
+		StringBuilder records = new StringBuilder();
+		synchronized (this) {
+			refresh();
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String,String> state : states.entrySet()) {
+				Entry entry = entries.get(state.getKey());
+				if (entry != null && !entry.state.equalsIgnoreCase(state.getValue())) {
+					records.append(STATE_RECORD).append('\t').append(state.getKey())
+							.append('\t').append(clean(state.getValue()))
+							.append('\t').append(now).append('\n');
+				}
+			}
+		}
+		if (records.length() > 0) {
+			append(records.toString());
+		}
+	}
+
+	/**
+	 * Returns the registered job.
+	 *
+	 * @param jobId job identifier
+	 * @return registered job (null if the job is not registered)
+	 * @throws IOException if the registry could not be read
+	 */
+	public synchronized Entry getJob(String jobId) throws IOException {
+		refresh();
+		return entries.get(jobId);
+	}
+
+	/**
+	 * Selects jobs matching the query.<br>
+	 * The query is a list of conditions separated by semicolons:
+	 * <ul>
+	 * <li>state=&lt;state&gt;[,&lt;state&gt;...] - last known state of the job</li>
+	 * <li>tag=&lt;tag&gt; - tag of the job</li>
+	 * <li>wms=&lt;url&gt; - WMProxy endpoint the job was submitted to</li>
+	 * <li>from=&lt;time&gt; - jobs submitted at or after the time</li>
+	 * <li>to=&lt;time&gt; - jobs submitted before the time (or within the day)</li>
+	 * </ul>
+	 * The time is specified as yyyy-MM-dd, yyyy-MM-dd'T'HH:mm or yyyy-MM-dd'T'HH:mm:ss.
+	 * An empty query selects all jobs. The query may start with the "registry:" prefix.
+	 *
+	 * @param query registry query
+	 * @return identifiers of selected jobs ordered by submission time
+	 * @throws IOException if the registry could not be read
+	 * @throws IllegalArgumentException if the query is malformed
+	 */
+	public synchronized List<String> select(String query) throws IOException {
+		if (query.startsWith(QUERY_PREFIX)) {
+			query = query.substring(QUERY_PREFIX.length());
+		}
+		Set<String> states = null;
+		String tag = null;
+		String wms = null;
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		for (String condition : query.split(";")) {
+			condition = condition.trim();
+			if (condition.length() == 0) {
+				continue;
+			}
+			int pos = condition.indexOf('=');
+			if (pos < 0) {
+				throw new IllegalArgumentException("Malformed registry query condition: " + condition);
+			}
+			String name = condition.substring(0, pos).trim();
+			String value = condition.substring(pos + 1).trim();
+			if (name.equals("state")) {
+				states = new LinkedHashSet<String>();
+				for (String state : value.split(",")) {
+					states.add(state.trim().toLowerCase());
+				}
+			} else if (name.equals("tag")) {
+				tag = value;
+			} else if (name.equals("wms")) {
+				wms = value;
+			} else if (name.equals("from")) {
+				from = parseTime(value, false);
+			} else if (name.equals("to")) {
+				to = parseTime(value, true);
+			} else {
+				throw new IllegalArgumentException("Unknown registry query condition: " + name);
+			}
+		}
+
+		refresh();
+
+		// take candidates from the most selective index
+		Collection<String> candidates;
+		if (tag != null) {
+			candidates = get(tagIndex, tag);
+		} else if (states != null) {
+			candidates = new ArrayList<String>();
+			for (String state : states) {
+				candidates.addAll(get(stateIndex, state));
+			}
+		} else if (from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+			candidates = new ArrayList<String>();
+			for (Set<String> jobIds : timeIndex.subMap(from, to).values()) {
+				candidates.addAll(jobIds);
+			}
+		} else {
+			candidates = entries.keySet();
+		}
+
+		List<Entry> selected = new ArrayList<Entry>();
+		for (String jobId : candidates) {
+			Entry entry = entries.get(jobId);
+			if ((states == null || states.contains(entry.state.toLowerCase()))
+					&& (tag == null || tag.equals(entry.tag))
+					&& (wms == null || wms.equals(entry.wmProxyURL))
+					&& entry.submitTime >= from && entry.submitTime < to) {
+				selected.add(entry);
+			}
+		}
+		Collections.sort(selected, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return e1.submitTime < e2.submitTime ? -1 : (e1.submitTime > e2.submitTime ? 1 : 0);
+			}
+		});
+
+		List<String> jobIds = new ArrayList<String>(selected.size());
+		for (Entry entry : selected) {
+			jobIds.add(entry.jobId);
+		}
+		return jobIds;
+	}
+
+	/**
+	 * Reads records appended to the log since the last access.<br>
+	 * If the log was compacted by another process, it is read again from the start.
+	 */
+	private void refresh() throws IOException {
+		if (!file.exists()) {
+			if (offset > 0) {
+				reset();
+			}
+			return;
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long length = in.length();
+			if (offset > 0 && (length < offset || !readHeader(in).equals(generation))) {
+				reset();
+			}
+			if (length == offset) {
+				return;
+			}
+			in.seek(offset);
+			byte[] data = new byte[(int)(length - offset)];
+			in.readFully(data);
+
+			// skip the incomplete last record which is being written
+			int end = data.length;
+			while (end > 0 && data[end - 1] != '\n') {
+				end--;
+			}
+			int start = 0;
+			for (int i=0; i<end; i++) {
+				if (data[i] == '\n') {
+					apply(new String(data, start, i - start, "UTF-8"));
+					start = i + 1;
+				}
+			}
+			offset += end;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void apply(String record) {
+		if (record.startsWith(HEADER)) {
+			generation = record;
+			return;
+		}
+		String[] fields = record.split("\t", -1);
+		try {
+			if (fields[0].equals(JOB_RECORD) && fields.length >= 6) {
+				Entry entry = entries.get(fields[1]);
+				if (entry != null) {
+					unindex(entry);
+					staleRecords++;
+				} else {
+					entry = new Entry();
+					entry.jobId = fields[1];
+					entry.state = INITIAL_STATE;
+				}
+				entry.submitTime = Long.parseLong(fields[2]);
+				entry.stateTime = entry.submitTime;
+				entry.jdlHash = fields[3];
+				entry.wmProxyURL = fields[4].length() > 0 ? fields[4] : null;
+				entry.tag = fields[5].length() > 0 ? fields[5] : null;
+				entries.put(entry.jobId, entry);
+				index(entry);
+			} else if (fields[0].equals(STATE_RECORD) && fields.length >= 4) {
+				Entry entry = entries.get(fields[1]);
+				if (entry != null) {
+					if (entry.stateRecorded) {
+						staleRecords++;
+					}
+					entry.stateRecorded = true;
+					get(stateIndex, entry.state.toLowerCase()).remove(entry.jobId);
+					entry.state = fields[2];
+					entry.stateTime = Long.parseLong(fields[3]);
+					add(stateIndex, entry.state.toLowerCase(), entry.jobId);
+				} else {
+					staleRecords++;
+				}
+			}
+		} catch (NumberFormatException e) {
+			logger.debug("Malformed job registry record: " + record);
+		}
+	}
+
+	/**
+	 * Appends records to the log, compacting the log if necessary.<br>
+	 * Writers of all processes are serialized by the lock file.
+	 */
+	private void append(String records) throws IOException {
+		File dir = file.getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+		try {
+			FileLock fileLock = lock.getChannel().lock();
+			try {
+				synchronized (this) {
+					if (!file.exists() || file.length() == 0) {
+						write(file, newHeader(), false);
+					}
+					write(file, records, true);
+					refresh();
+					if (staleRecords > Math.max(entries.size(), MIN_COMPACT_RECORDS)) {
+						compact();
+					}
+				}
+			} finally {
+				fileLock.release();
+			}
+		} finally {
+			lock.close();
+		}
+	}
+
+	/**
+	 * Rewrites the log leaving only the last record of each job.
+	 */
+	private void compact() throws IOException {
+		StringBuilder log = new StringBuilder(newHeader());
+		for (Entry entry : entries.values()) {
+			log.append(JOB_RECORD).append('\t').append(entry.jobId)
+					.append('\t').append(entry.submitTime)
+					.append('\t').append(entry.jdlHash)
+					.append('\t').append(clean(entry.wmProxyURL))
+					.append('\t').append(clean(entry.tag)).append('\n');
+			if (entry.stateRecorded) {
+				log.append(STATE_RECORD).append('\t').append(entry.jobId)
+						.append('\t').append(entry.state)
+						.append('\t').append(entry.stateTime).append('\n');
+			}
+		}
+
+		// replace the log at once, so concurrent readers do not see a partial file
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			write(tmpFile, log.toString(), false);
+			if (!tmpFile.renameTo(file)) {
+				file.delete();
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Could not rename " + tmpFile + " to " + file);
+				}
+			}
+		} finally {
+			tmpFile.delete();
+		}
+		logger.debug("Compacted job registry " + file + ": " + staleRecords + " stale records removed");
+		reset();
+		refresh();
+	}
+
+	private void reset() {
+		generation = null;
+		offset = 0;
+		staleRecords = 0;
+		entries = new LinkedHashMap<String,Entry>();
+		stateIndex = new HashMap<String,Set<String>>();
+		tagIndex = new HashMap<String,Set<String>>();
+		timeIndex = new TreeMap<Long,Set<String>>();
+	}
+
+	private void index(Entry entry) {
+		add(stateIndex, entry.state.toLowerCase(), entry.jobId);
+		if (entry.tag != null) {
+			add(tagIndex, entry.tag, entry.jobId);
+		}
+		add(timeIndex, entry.submitTime, entry.jobId);
+	}
+
+	private void unindex(Entry entry) {
+		get(stateIndex, entry.state.toLowerCase()).remove(entry.jobId);
+		if (entry.tag != null) {
+			get(tagIndex, entry.tag).remove(entry.jobId);
+		}
+		get(timeIndex, entry.submitTime).remove(entry.jobId);
+	}
+
+	private static <K> void add(Map<K,Set<String>> index, K key, String jobId) {
+		Set<String> jobIds = index.get(key);
+		if (jobIds == null) {
+			jobIds = new LinkedHashSet<String>();
+			index.put(key, jobIds);
+		}
+		jobIds.add(jobId);
+	}
+
+	private static <K> Set<String> get(Map<K,Set<String>> index, K key) {
+		Set<String> jobIds = index.get(key);
+		return jobIds != null ? jobIds : Collections.<String>emptySet();
+	}
+
+	private static String readHeader(RandomAccessFile in) throws IOException {
+		in.seek(0);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			header.write(b);
+		}
+		return header.toString("UTF-8");
+	}
+
+	private static String newHeader() {
+		return HEADER + Long.toHexString(new Random().nextLong()) + "\n";
+	}
+
+	private static void write(File file, String data, boolean append) throws IOException {
+		OutputStream out = new FileOutputStream(file, append);
+		try {
+			out.write(data.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String clean(String value) {
+		return value != null ? value.replaceAll("[\\t\\r\\n]", " ") : "";
+	}
+
+	private static String hash(String jdl) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest(jdl.getBytes("UTF-8"))) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long parseTime(String value, boolean end) {
+		String pattern;
+		if (value.length() == 10) {
+			pattern = "yyyy-MM-dd";
+		} else if (value.length() == 16) {
+			pattern = "yyyy-MM-dd'T'HH:mm";
+		} else {
+			pattern = "yyyy-MM-dd'T'HH:mm:ss";
+		}
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setLenient(false);
+		try {
+			long time = format.parse(value).getTime();
+			if (end && value.length() == 10) {
+				time += 24 * 3600 * 1000L; // include the whole day
+			}
+			return time;
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Malformed time in registry query: " + value);
+		}
+	}
+
+	/**
+	 * Registered job.
+	 */
+	public static class Entry {
+
+		private String jobId;
+		private long submitTime;
+		private String jdlHash;
+		private String wmProxyURL;
+		private String tag;
+		private String state;
+		private long stateTime;
+		private boolean stateRecorded;
+
+		/**
+		 * Returns job identifier.
+		 */
+		public String getJobId() {
+			return jobId;
+		}
+
+		/**
+		 * Returns job submission time in milliseconds.
+		 */
+		public long getSubmitTime() {
+			return submitTime;
+		}
+
+		/**
+		 * Returns SHA-256 hash of the job JDL as a hex string.
+		 */
+		public String getJdlHash() {
+			return jdlHash;
+		}
+
+		/**
+		 * Returns WMProxy endpoint the job was submitted to.
+		 */
+		public String getWMProxyURL() {
+			return wmProxyURL;
+		}
+
+		/**
+		 * Returns job tag (null if the job is not tagged).
+		 */
+		public String getTag() {
+			return tag;
+		}
+
+		/**
+		 * Returns last known job state.
+		 */
+		public String getState() {
+			return state;
+		}
+
+		/**
+		 * Returns time when the last known job state was recorded, in milliseconds.
+		 */
+		public long getStateTime() {
+			return stateTime;
+		}
+
+	}
+
+}
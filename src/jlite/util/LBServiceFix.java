@@ -31,10 +31,12 @@ public class LBServiceFix {
 		StateEnterTimesItem[] states = status.getStateEnterTimes();
 		StatName prevState = StatName.SUBMITTED;
 		StatName temp = null;
-		for (StateEnterTimesItem state : states) {
-			temp = state.getState();
-			state.setState(prevState);
-			prevState = temp;
+		if (states != null) { // not requested
+			for (StateEnterTimesItem state : states) {
+				temp = state.getState();
+				state.setState(prevState);
+				prevState = temp;
+			}
 		}
 		JobStatus[] children = status.getChildrenStates();
 		if (children != null && children.length > 0) {
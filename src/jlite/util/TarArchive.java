@@ -0,0 +1,265 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes gzip-compressed tar archives of sandbox files.<br>
+ * Files are stored by their names only, as in job sandboxes.
+ * Archives are written in the POSIX ustar format, which is understood by
+ * tar on worker nodes, and archives produced by GNU tar can be read.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class TarArchive {
+
+	private static final int BLOCK_SIZE = 512;
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * Packs files into the archive, streaming each file as it is read.
+	 *
+	 * @param files files to pack
+	 * @param archive archive file (.tar.gz)
+	 * @throws IOException if a file could not be read or the archive could not be written
+	 */
+	public static void pack(List<File> files, File archive) throws IOException {
+		OutputStream out = new GZIPOutputStream(new BufferedOutputStream(
+				new FileOutputStream(archive), BUFFER_SIZE), BUFFER_SIZE);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (File file : files) {
+				long size = file.length();
+				out.write(header(file.getName(), size, file.lastModified()));
+				InputStream in = new FileInputStream(file);
+				try {
+					long copied = 0;
+					int n;
+					while (copied < size && (n = in.read(buffer, 0, (int)Math.min(buffer.length, size - copied))) > 0) {
+						out.write(buffer, 0, n);
+						copied += n;
+					}
+					if (copied < size) {
+						throw new IOException("File changed while packing: " + file);
+					}
+				} finally {
+					in.close();
+				}
+				out.write(new byte[padding(size)]);
+			}
+			// end of archive
+			out.write(new byte[2 * BLOCK_SIZE]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Unpacks regular files from the archive into the directory.<br>
+	 * Directory parts of file names are ignored.
+	 *
+	 * @param archive archive file (.tar.gz)
+	 * @param dir destination directory
+	 * @return unpacked files
+	 * @throws IOException if the archive could not be read or is malformed
+	 */
+	public static List<File> unpack(File archive, File dir) throws IOException {
+		List<File> files = new ArrayList<File>();
+		InputStream in = new GZIPInputStream(new BufferedInputStream(
+				new FileInputStream(archive), BUFFER_SIZE), BUFFER_SIZE);
+		try {
+			byte[] header = new byte[BLOCK_SIZE];
+			byte[] buffer = new byte[BUFFER_SIZE];
+			String longName = null;
+			while (true) {
+				if (!readBlock(in, header)) {
+					break;
+				}
+				if (isZero(header)) { // end of archive
+					break;
+				}
+				String name = longName != null ? longName : readString(header, 0, 100);
+				longName = null;
+				if (name.length() == 0) {
+					name = readString(header, 0, 100);
+				}
+				String prefix = readString(header, 345, 155);
+				if (prefix.length() > 0 && readString(header, 257, 5).equals("ustar")) {
+					name = prefix + "/" + name;
+				}
+				long size = readOctal(header, 124, 12);
+				char type = (char)header[156];
+
+				if (type == 'L') { // GNU long name of the next entry
+					byte[] data = new byte[(int)size];
+					readFully(in, data, data.length);
+					skip(in, padding(size));
+					longName = readString(data, 0, data.length);
+				} else if (type == '0' || type == '\0') { // regular file
+					String fileName = name.substring(name.lastIndexOf('/') + 1);
+					if (fileName.length() == 0 || fileName.equals("..") || fileName.equals(".")) {
+						throw new IOException("Invalid file name in archive " + archive + ": " + name);
+					}
+					File file = new File(dir, fileName);
+					OutputStream out = new FileOutputStream(file);
+					try {
+						long copied = 0;
+						while (copied < size) {
+							int n = in.read(buffer, 0, (int)Math.min(buffer.length, size - copied));
+							if (n < 0) {
+								throw new EOFException("Unexpected end of archive " + archive);
+							}
+							out.write(buffer, 0, n);
+							copied += n;
+						}
+					} finally {
+						out.close();
+					}
+					skip(in, padding(size));
+					files.add(file);
+				} else { // directories, links, extended headers
+					skip(in, size + padding(size));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return files;
+	}
+
+	private static byte[] header(String name, long size, long lastModified) throws IOException {
+		byte[] nameBytes = name.getBytes("UTF-8");
+		if (nameBytes.length > 100) {
+			throw new IOException("File name is too long for archive: " + name);
+		}
+		byte[] header = new byte[BLOCK_SIZE];
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		writeOctal(header, 100, 8, 0644);
+		writeOctal(header, 108, 8, 0);
+		writeOctal(header, 116, 8, 0);
+		writeOctal(header, 124, 12, size);
+		writeOctal(header, 136, 12, lastModified / 1000);
+		header[156] = '0';
+		System.arraycopy("ustar\u000000".getBytes("US-ASCII"), 0, header, 257, 8);
+
+		// checksum is computed with the checksum field filled with spaces
+		for (int i=148; i<156; i++) {
+			header[i] = ' ';
+		}
+		long checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		writeOctal(header, 148, 7, checksum);
+		return header;
+	}
+
+	private static void writeOctal(byte[] header, int offset, int length, long value) {
+		String octal = Long.toOctalString(value);
+		int digits = length - 1;
+		for (int i=0; i<digits; i++) {
+			int pos = octal.length() - digits + i;
+			header[offset + i] = (byte)(pos >= 0 ? octal.charAt(pos) : '0');
+		}
+		header[offset + digits] = 0;
+	}
+
+	private static long readOctal(byte[] header, int offset, int length) {
+		long value = 0;
+		for (int i=offset; i<offset + length; i++) {
+			byte b = header[i];
+			if (b >= '0' && b <= '7') {
+				value = value * 8 + (b - '0');
+			} else if (b == 0 || (b == ' ' && value > 0)) {
+				break;
+			}
+		}
+		return value;
+	}
+
+	private static String readString(byte[] data, int offset, int length) throws IOException {
+		int end = offset;
+		while (end < offset + length && data[end] != 0) {
+			end++;
+		}
+		return new String(data, offset, end - offset, "UTF-8");
+	}
+
+	private static boolean isZero(byte[] block) {
+		for (byte b : block) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int padding(long size) {
+		return (int)((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+	}
+
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+		int read = 0;
+		while (read < block.length) {
+			int n = in.read(block, read, block.length - read);
+			if (n < 0) {
+				if (read == 0) {
+					return false;
+				}
+				throw new EOFException("Unexpected end of archive");
+			}
+			read += n;
+		}
+		return true;
+	}
+
+	private static void readFully(InputStream in, byte[] data, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int n = in.read(data, read, length - read);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of archive");
+			}
+			read += n;
+		}
+	}
+
+	private static void skip(InputStream in, long count) throws IOException {
+		byte[] buffer = new byte[BLOCK_SIZE];
+		while (count > 0) {
+			int n = in.read(buffer, 0, (int)Math.min(buffer.length, count));
+			if (n < 0) {
+				throw new EOFException("Unexpected end of archive");
+			}
+			count -= n;
+		}
+	}
+
+}
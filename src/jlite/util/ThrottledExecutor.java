@@ -0,0 +1,213 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Executes tasks addressed to remote hosts with a limit on the total
+ * number of running tasks and on the number of running tasks per host.<br>
+ * Tasks that exceed the limits are queued and dispatched in round-robin
+ * order of hosts as running tasks complete, so a slow host does not hold
+ * back tasks for other hosts. Tasks are run on virtual threads if the JVM
+ * supports them, otherwise on daemon threads which are created on demand.<br>
+ * Tasks must not wait for other tasks submitted to the same executor. 
+ * Tasks still queued at shutdown fail with {@link RejectedExecutionException}.
+ */
+public class ThrottledExecutor {
+
+	private static final Logger logger = Logger.getLogger(ThrottledExecutor.class);
+
+	private ExecutorService executor;
+	private int maxTasks;
+	private int maxTasksPerHost;
+
+	private int runningTasks = 0;
+	private Map<String,Integer> runningHostTasks = new HashMap<String,Integer>();
+	private Map<String,LinkedList<Task<?>>> queuedHostTasks = new HashMap<String,LinkedList<Task<?>>>();
+	private LinkedList<String> queuedHosts = new LinkedList<String>();
+	private boolean shutdown = false;
+
+	/**
+	 * @param name name prefix of worker threads
+	 * @param maxTasks maximum number of running tasks
+	 * @param maxTasksPerHost maximum number of running tasks per host
+	 */
+	public ThrottledExecutor(String name, int maxTasks, int maxTasksPerHost) {
+		this.maxTasks = Math.max(1, maxTasks);
+		this.maxTasksPerHost = Math.max(1, maxTasksPerHost);
+		this.executor = createExecutor(name);
+	}
+
+	/**
+	 * Submits a task addressed to the specified host.
+	 *
+	 * @param host remote host (or any other key to limit the tasks by)
+	 * @param task task to execute
+	 * @return future result of the task
+	 * @throws RejectedExecutionException if the executor is shut down
+	 */
+	public <T> CompletableFuture<T> submit(String host, Callable<T> task) {
+		Task<T> queuedTask = new Task<T>(host, task);
+		synchronized (this) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Executor is shut down");
+			}
+			LinkedList<Task<?>> queue = queuedHostTasks.get(host);
+			if (queue == null) {
+				queue = new LinkedList<Task<?>>();
+				queuedHostTasks.put(host, queue);
+				queuedHosts.addLast(host);
+			}
+			queue.addLast(queuedTask);
+			dispatch();
+		}
+		return queuedTask.future;
+	}
+
+	/**
+	 * Stops accepting new tasks, fails the queued tasks with 
+	 * {@link RejectedExecutionException} and releases worker threads
+	 * once the running tasks complete.
+	 */
+	public void shutdown() {
+		List<Task<?>> rejectedTasks = new ArrayList<Task<?>>();
+		synchronized (this) {
+			shutdown = true;
+			for (LinkedList<Task<?>> queue : queuedHostTasks.values()) {
+				rejectedTasks.addAll(queue);
+			}
+			queuedHostTasks.clear();
+			queuedHosts.clear();
+		}
+		// futures are completed outside the lock, since they may run dependent actions
+		for (Task<?> task : rejectedTasks) {
+			task.future.completeExceptionally(
+					new RejectedExecutionException("Executor is shut down before the task has started"));
+		}
+		executor.shutdown();
+	}
+
+	private synchronized void taskCompleted(String host) {
+		runningTasks--;
+		int hostTasks = runningHostTasks.get(host) - 1;
+		if (hostTasks == 0) {
+			runningHostTasks.remove(host);
+		} else {
+			runningHostTasks.put(host, hostTasks);
+		}
+		dispatch();
+	}
+
+	private void dispatch() {
+		while (runningTasks < maxTasks) {
+			// find the first host in round-robin order which is below its limit
+			String host = null;
+			Iterator<String> iHosts = queuedHosts.iterator();
+			while (iHosts.hasNext()) {
+				String candidate = iHosts.next();
+				Integer hostTasks = runningHostTasks.get(candidate);
+				if (hostTasks == null || hostTasks < maxTasksPerHost) {
+					host = candidate;
+					iHosts.remove();
+					break;
+				}
+			}
+			if (host == null) {
+				return;
+			}
+
+			LinkedList<Task<?>> queue = queuedHostTasks.get(host);
+			Task<?> task = queue.removeFirst();
+			if (queue.isEmpty()) {
+				queuedHostTasks.remove(host);
+			} else {
+				queuedHosts.addLast(host);
+			}
+
+			runningTasks++;
+			Integer hostTasks = runningHostTasks.get(host);
+			runningHostTasks.put(host, hostTasks == null ? 1 : hostTasks + 1);
+			executor.execute(task);
+		}
+	}
+
+	private static ExecutorService createExecutor(final String name) {
+		// virtual threads are available since Java 21
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService executor = (ExecutorService)factory.invoke(null);
+			logger.debug("Using virtual threads for " + name + " tasks");
+			return executor;
+		} catch (Exception e) {
+			logger.debug("Virtual threads are not available, using platform threads for " + name + " tasks");
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Task waiting for execution or running.
+	 */
+	private class Task<T> implements Runnable {
+
+		private String host;
+		private Callable<T> callable;
+		private CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Task(String host, Callable<T> callable) {
+			this.host = host;
+			this.callable = callable;
+		}
+
+		public void run() {
+			try {
+				// the future may be cancelled while the task is queued
+				if (!future.isDone()) {
+					future.complete(callable.call());
+				}
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				taskCompleted(host);
+			}
+		}
+
+	}
+
+}
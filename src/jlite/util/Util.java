@@ -20,15 +20,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
 
 import jlite.GridAPIException;
 
 import org.glite.jdl.Ad;
 import org.glite.jdl.Jdl;
-import org.glite.voms.VOMSAttribute;
-import org.glite.voms.VOMSValidator;
-import org.globus.gsi.GlobusCredential;
 import org.globus.gsi.GlobusCredentialException;
 
 import condor.classad.Constant;
@@ -67,32 +63,36 @@ public class Util {
 	
 			// filter local files and add path prefix
 			for (String file : isbFiles) { 
-				if (!file.startsWith("gsiftp://") && !file.startsWith("root.")) { // local file
-					String path;
-					if (file.startsWith("file")) {
-						path = file.replace("file://","");
-					} else {
-						path = pathPrefix!=null ? pathPrefix+"/"+file : file;
-					}
-					files.add(new File(path));
+				File localFile = getLocalInputSandboxFile(file, pathPrefix);
+				if (localFile != null) {
+					files.add(localFile);
 				}
 			}
 		}
 		return files;
 	}
 	
+	/**
+	 * Returns the local file referenced by the input sandbox entry
+	 * (null if the entry references a remote file).
+	 */
+	public static File getLocalInputSandboxFile(String file, String pathPrefix) {
+		if (file.startsWith("gsiftp://") || file.startsWith("root.")) { // remote file
+			return null;
+		}
+		String path;
+		if (file.startsWith("file")) {
+			path = file.replace("file://","");
+		} else {
+			path = pathPrefix!=null ? pathPrefix+"/"+file : file;
+		}
+		return new File(path);
+	}
+	
 	public static String readVOFromVOMSProxy(String proxyPath) throws GridAPIException {
 		if ((new File(proxyPath).exists())) {
 			try {
-				GlobusCredential vomsProxy = new GlobusCredential(proxyPath);
-				String vo = null;
-				Vector<VOMSAttribute> atts = VOMSValidator.parse(vomsProxy.getCertificateChain());
-				for (VOMSAttribute att : atts) {
-					vo = att.getVO();
-					if (vo != null) {
-						break;
-					}
-				}
+				String vo = VOMSProxyInfo.getFileInfo(proxyPath).getVO();
 				if (vo != null) {
 					return vo;
 				} else {
@@ -22,6 +22,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,10 +38,18 @@ public class VOMSESFileParser {
 	private static final Logger log = Logger.getLogger(VOMSESFileParser.class);
 	
     public static VOMSServerMap parse(File vomsesFile) throws IOException {
+        VOMSServerMap vomses = new VOMSServerMap();
+        for (VOMSServerInfo info : parseServers(vomsesFile)) {
+            vomses.add(info);
+        }
+        return vomses;
+    }
+
+    public static List<VOMSServerInfo> parseServers(File vomsesFile) throws IOException {
         if (vomsesFile.isDirectory()) {
             return parseDir(vomsesFile);
         } else {
-	        VOMSServerMap vomses = new VOMSServerMap();
+	        List<VOMSServerInfo> vomses = new ArrayList<VOMSServerInfo>();
 	        BufferedReader reader = null;
 	        try {
 	            reader = new BufferedReader(new InputStreamReader(
@@ -73,11 +83,11 @@ public class VOMSESFileParser {
     }
 
     
-    private static VOMSServerMap parseDir(File vomsesDir) throws IOException {
-        VOMSServerMap vomses = new VOMSServerMap();
+    private static List<VOMSServerInfo> parseDir(File vomsesDir) throws IOException {
+        List<VOMSServerInfo> vomses = new ArrayList<VOMSServerInfo>();
         log.debug("Parsing vomses dir: " + vomsesDir);
         for (File file : vomsesDir.listFiles()) {
-            vomses.merge(parse(file));
+            vomses.addAll(parseServers(file));
         }
         return vomses;
     }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import org.glite.voms.VOMSAttribute;
+import org.glite.voms.VOMSValidator;
+import org.globus.gsi.GlobusCredential;
+import org.globus.gsi.GlobusCredentialException;
+
+/**
+ * VOMS information of a proxy certificate: VO, FQANs and expiry time.<br>
+ * The VOMS attribute certificates are parsed once when the information
+ * is created. Information of proxy files is cached by the file path
+ * and is parsed again only if the file is modified.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class VOMSProxyInfo {
+
+	// map <proxy-file-path, proxy-file-info>
+	private static Map<String,VOMSProxyInfo> fileCache = new HashMap<String,VOMSProxyInfo>();
+
+	private GlobusCredential proxy;
+	private String vo;
+	private List<String> fqans;
+	private long expiryTime;
+
+	// proxy file attributes, used to check the cached file info
+	private long fileModified;
+	private long fileLength;
+
+	/**
+	 * Parses VOMS attributes of the proxy.
+	 *
+	 * @param proxy proxy certificate
+	 */
+	public VOMSProxyInfo(GlobusCredential proxy) {
+		this.proxy = proxy;
+		this.expiryTime = System.currentTimeMillis() + proxy.getTimeLeft()*1000;
+
+		List<String> fqans = new ArrayList<String>();
+		Vector<?> atts = VOMSValidator.parse(proxy.getCertificateChain());
+		for (Object attribute : atts) {
+			VOMSAttribute att = (VOMSAttribute)attribute;
+			if (vo == null) {
+				vo = att.getVO();
+			}
+			for (Object fqan : att.getFullyQualifiedAttributes()) {
+				fqans.add(fqan.toString());
+			}
+		}
+		this.fqans = Collections.unmodifiableList(fqans);
+	}
+
+	/**
+	 * Returns VOMS information of the proxy file,
+	 * reading and parsing the file only if it is modified
+	 * since the last call.
+	 *
+	 * @param proxyPath proxy file path
+	 * @return VOMS proxy information
+	 * @throws GlobusCredentialException if the proxy file could not be read
+	 */
+	public static VOMSProxyInfo getFileInfo(String proxyPath) throws GlobusCredentialException {
+		File proxyFile = new File(proxyPath);
+		long modified = proxyFile.lastModified();
+		long length = proxyFile.length();
+		synchronized (fileCache) {
+			VOMSProxyInfo info = fileCache.get(proxyPath);
+			if (info != null && info.fileModified == modified && info.fileLength == length) {
+				return info;
+			}
+		}
+
+		VOMSProxyInfo info = new VOMSProxyInfo(new GlobusCredential(proxyPath));
+		info.fileModified = modified;
+		info.fileLength = length;
+		synchronized (fileCache) {
+			fileCache.put(proxyPath, info);
+		}
+		return info;
+	}
+
+	/**
+	 * Returns the proxy certificate.
+	 *
+	 * @return proxy certificate
+	 */
+	public GlobusCredential getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * Returns the VO of the first VOMS attribute certificate.
+	 *
+	 * @return VO name (null if the proxy has no VOMS attributes)
+	 */
+	public String getVO() {
+		return vo;
+	}
+
+	/**
+	 * Returns FQANs of all VOMS attribute certificates.
+	 *
+	 * @return list of FQANs
+	 */
+	public List<String> getFQANs() {
+		return fqans;
+	}
+
+	/**
+	 * Returns the expiry time of the proxy.
+	 *
+	 * @return expiry time in milliseconds since the epoch
+	 */
+	public long getExpiryTime() {
+		return expiryTime;
+	}
+
+	/**
+	 * Returns the remaining lifetime of the proxy.
+	 *
+	 * @return time left in seconds (0 if the proxy has expired)
+	 */
+	public long getTimeLeft() {
+		return Math.max(0, (expiryTime - System.currentTimeMillis()) / 1000);
+	}
+
+}
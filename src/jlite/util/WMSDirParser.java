@@ -19,8 +19,12 @@ package jlite.util;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.glite.jdl.Ad;
 import org.glite.jdl.JobAd;
@@ -31,8 +35,29 @@ import condor.classad.ListExpr;
 
 public class WMSDirParser {
 
+	/**
+	 * Returns the first WMProxy endpoint configured for each VO.
+	 * 
+	 * @param dir parent directory with <VO-name> subdirectories
+	 * @return map <VO-name, WMProxy-endpoint>
+	 */
 	public static Map<String,String> readWMProxies(String dir) {
 		Map<String,String> wmProxies = new HashMap<String,String>();
+		for (Entry<String,List<String>> entry : readWMProxyEndpoints(dir).entrySet()) {
+			wmProxies.put(entry.getKey(), entry.getValue().get(0));
+		}
+		return wmProxies;
+	}
+	
+	/**
+	 * Returns all WMProxy endpoints configured for each VO, 
+	 * in the order of WMProxyEndPoints.
+	 * 
+	 * @param dir parent directory with <VO-name> subdirectories
+	 * @return map <VO-name, WMProxy-endpoints>
+	 */
+	public static Map<String,List<String>> readWMProxyEndpoints(String dir) {
+		Map<String,List<String>> wmProxies = new HashMap<String,List<String>>();
 		File parent = new File(dir);
 		if (parent.exists() && parent.isDirectory()) {
 			File[] children = parent.listFiles();
@@ -52,12 +77,21 @@ public class WMSDirParser {
 									ad = ad.getAd("WmsClient");
 									expr = ad.lookup("WMProxyEndPoints");
 								}
+								List<String> endpoints = new ArrayList<String>();
 								if (expr instanceof Constant) { // single value
-									wmProxies.put(child.getName(), ((Constant)expr).stringValue());
+									endpoints.add(((Constant)expr).stringValue());
 								} else if (expr instanceof ListExpr) { // list
-									wmProxies.put(child.getName(),
-											((ListExpr)expr).iterator().next().toString().replaceAll("\"", ""));
-								}						
+									Iterator<?> iEndpoints = ((ListExpr)expr).iterator();
+									while (iEndpoints.hasNext()) {
+										String endpoint = iEndpoints.next().toString().replaceAll("\"", "");
+										if (!endpoints.contains(endpoint)) {
+											endpoints.add(endpoint);
+										}
+									}
+								}
+								if (!endpoints.isEmpty()) {
+									wmProxies.put(child.getName(), endpoints);
+								}
 							}
 						}
 					}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+
+import org.apache.axis.AxisFault;
+import org.glite.wsdl.services.lb.LoggingAndBookkeepingPortType;
+import org.glite.wsdl.types.lb.JobFlags;
+
+/**
+ * Tests of the handling of failed multi-job LB queries.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class LBClientRegistryTest {
+
+	private static final String JOB_ID = "https://lb.example.org:9000/abcdef";
+
+	public static void main(String[] args) throws Exception {
+		testUnsupportedOperation();
+		testOtherFault();
+		System.out.println("LBClientRegistryTest: OK");
+	}
+
+	/**
+	 * A query rejected as an unsupported operation disables multi-job queries.
+	 */
+	private static void testUnsupportedOperation() throws Exception {
+		LBClientRegistry.LBClient client = createClient(new AxisFault("No such operation 'QueryJobs'"));
+		check(client.isBulkQuerySupported(), "multi-job queries are supported initially");
+		check(client.queryJobStatuses(Arrays.asList(JOB_ID), new JobFlags()) == null,
+				"no statuses are returned by an unsupported query");
+		check(!client.isBulkQuerySupported(), "multi-job queries are disabled");
+	}
+
+	/**
+	 * Other faults, e.g. about an invalid job identifier, are thrown
+	 * and do not disable multi-job queries.
+	 */
+	private static void testOtherFault() throws Exception {
+		LBClientRegistry.LBClient client = createClient(new AxisFault("Invalid job identifier"));
+		check(client.isBulkQuerySupported(), "multi-job queries are supported initially");
+		try {
+			client.queryJobStatuses(Arrays.asList(JOB_ID), new JobFlags());
+			check(false, "the fault is thrown");
+		} catch (AxisFault e) {
+			check("Invalid job identifier".equals(e.getMessage()), "the original fault is thrown");
+		}
+		check(client.isBulkQuerySupported(), "multi-job queries stay enabled");
+	}
+
+	/**
+	 * Creates a client of the LB stub which fails multi-job queries with the specified fault.
+	 */
+	private static LBClientRegistry.LBClient createClient(final RemoteException queryFault) throws Exception {
+		LoggingAndBookkeepingPortType service = (LoggingAndBookkeepingPortType)Proxy.newProxyInstance(
+				LBClientRegistryTest.class.getClassLoader(),
+				new Class<?>[] { LoggingAndBookkeepingPortType.class },
+				new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("getVersion")) {
+					return "2.1.0";
+				} else if (method.getName().equals("queryJobs")) {
+					throw queryFault;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		LBClientRegistry registry = new LBClientRegistry(3600);
+		return registry.new LBClient(new URL("https://lb.example.org:9003"), service);
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError("Failed: " + description);
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite;
+
+import org.apache.axis.AxisFault;
+import org.glite.wms.wmproxy.AuthenticationFaultException;
+import org.glite.wms.wmproxy.CredentialException;
+
+/**
+ * Tests of the recognition of faults about delegated proxies.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class ServiceGuardTest {
+
+	public static void main(String[] args) throws Exception {
+		testDelegationFault();
+		testUserProxyFault();
+		System.out.println("ServiceGuardTest: OK");
+	}
+
+	/**
+	 * Faults about a missing or expired delegation are recognized.
+	 */
+	private static void testDelegationFault() throws Exception {
+		check(ServiceGuard.isDelegationFault(new AuthenticationFaultException("Delegated Proxy not found")),
+				"a missing delegated proxy is a delegation fault");
+		check(ServiceGuard.isDelegationFault(new AxisFault("The delegation has expired")),
+				"an expired delegation is a delegation fault");
+		check(ServiceGuard.isDelegationFault(new GridAPIException(
+				new CredentialException("Unable to find delegated proxy"))),
+				"a wrapped delegation fault is recognized");
+	}
+
+	/**
+	 * Faults about the user proxy itself are not recognized.
+	 */
+	private static void testUserProxyFault() throws Exception {
+		check(!ServiceGuard.isDelegationFault(new CredentialException("Proxy has expired")),
+				"an expired user proxy is not a delegation fault");
+		check(!ServiceGuard.isDelegationFault(new AuthenticationFaultException("Invalid proxy certificate")),
+				"an invalid user proxy is not a delegation fault");
+		check(!ServiceGuard.isDelegationFault(new AxisFault("Delegation operation failed")),
+				"other delegation errors are not recognized");
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError("Failed: " + description);
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2008-2010 Oleg Sukhoroslov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jlite.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the shutdown of the throttled executor.
+ *
+ * @author Oleg Sukhoroslov
+ */
+public class ThrottledExecutorTest {
+
+	public static void main(String[] args) throws Exception {
+		testShutdown();
+		System.out.println("ThrottledExecutorTest: OK");
+	}
+
+	/**
+	 * The running task completes, the queued task fails and new tasks are rejected.
+	 */
+	private static void testShutdown() throws Exception {
+		ThrottledExecutor executor = new ThrottledExecutor("test", 1, 1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Future<String> running = executor.submit("host", new Callable<String>() {
+			public String call() throws Exception {
+				started.countDown();
+				release.await();
+				return "done";
+			}
+		});
+		Future<String> queued = executor.submit("host", new Callable<String>() {
+			public String call() throws Exception {
+				return "queued";
+			}
+		});
+		check(started.await(10, TimeUnit.SECONDS), "the first task is started");
+
+		executor.shutdown();
+		try {
+			queued.get(10, TimeUnit.SECONDS);
+			check(false, "the queued task fails");
+		} catch (ExecutionException e) {
+			check(e.getCause() instanceof RejectedExecutionException, "the queued task is rejected");
+		}
+		try {
+			executor.submit("host", new Callable<String>() {
+				public String call() throws Exception {
+					return "new";
+				}
+			});
+			check(false, "new tasks are rejected");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		release.countDown();
+		check("done".equals(running.get(10, TimeUnit.SECONDS)), "the running task completes");
+	}
+
+	private static void check(boolean condition, String description) {
+		if (!condition) {
+			throw new AssertionError("Failed: " + description);
+		}
+	}
+
+}